@@ -0,0 +1,50 @@
+package net.reduls.jada.bench;
+
+import net.reduls.jada.Trie;
+import net.reduls.jada.TrieBuilder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TrieBuilder#build(boolean)}のベンチマーク。<br />
+ * 一回の操作は、キーセット全体からのトライ構築。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class BuildBenchmark {
+    @Param({"ASCII", "CJK", "URL", "SKEWED"})
+    public KeySets.Distribution distribution;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    @Param({"false", "true"})
+    public boolean shrinkTail;
+
+    private List<String> keys;
+
+    @Setup
+    public void setup() {
+	keys = KeySets.generate(distribution, keyCount, 1);
+    }
+
+    @Benchmark
+    public Trie build() {
+	return new TrieBuilder(keys).build(shrinkTail);
+    }
+}
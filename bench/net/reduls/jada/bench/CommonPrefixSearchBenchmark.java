@@ -0,0 +1,55 @@
+package net.reduls.jada.bench;
+
+import net.reduls.jada.Trie;
+import net.reduls.jada.TrieBuilder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Trie#commonPrefixSearch(CharSequence,int,int,Trie.PrefixMatches)}のベンチマーク。<br />
+ * 一回の操作は、キーをいくつか連結したテキストの先頭に対する共通接頭辞検索。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class CommonPrefixSearchBenchmark {
+    private static final int TEXT_COUNT = 1<<16;
+
+    @Param({"ASCII", "CJK", "URL", "SKEWED"})
+    public KeySets.Distribution distribution;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    private Trie trie;
+    private String[] texts;
+    private final Trie.PrefixMatches matches = new Trie.PrefixMatches(64);
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+	final List<String> keys = KeySets.generate(distribution, keyCount, 1);
+	trie = new TrieBuilder(keys).build(true);
+	texts = KeySets.texts(keys, TEXT_COUNT, 3);
+    }
+
+    @Benchmark
+    public int commonPrefixSearch() {
+	final String text = texts[next++ & (TEXT_COUNT-1)];
+	return trie.commonPrefixSearch(text, 0, text.length(), matches);
+    }
+}
@@ -0,0 +1,65 @@
+package net.reduls.jada.bench;
+
+import net.reduls.jada.Trie;
+import net.reduls.jada.TrieBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Trie#save}および{@link Trie#load}のベンチマーク。<br />
+ * インデックスファイルは一時ディレクトリに作成されるため、結果にはそのファイルシステム(およびページキャッシュ)の性能が含まれる。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class IoBenchmark {
+    @Param({"ASCII", "CJK", "URL", "SKEWED"})
+    public KeySets.Distribution distribution;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    private Trie trie;
+    private File loadFile;
+    private File saveFile;
+
+    @Setup
+    public void setup() throws IOException {
+	trie = new TrieBuilder(KeySets.generate(distribution, keyCount, 1)).build(true);
+	loadFile = File.createTempFile("jada-bench", ".idx");
+	saveFile = File.createTempFile("jada-bench", ".idx");
+	trie.save(loadFile.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+	loadFile.delete();
+	saveFile.delete();
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+	trie.save(saveFile.getPath());
+    }
+
+    @Benchmark
+    public Trie load() throws IOException {
+	return Trie.load(loadFile.getPath());
+    }
+}
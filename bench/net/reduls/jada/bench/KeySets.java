@@ -0,0 +1,222 @@
+package net.reduls.jada.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * ベンチマーク用の合成キーセットを生成するクラス。<br />
+ * 生成されるキーセットはソート済みかつユニークであり、そのまま{@link net.reduls.jada.TrieBuilder}に渡せる。<br />
+ * 同じ引数に対しては、常に同じキーセット(および検索キー列)が生成される。
+ */
+public final class KeySets {
+    private KeySets() {}
+
+    /**
+     * キーセットの種類。
+     */
+    public static enum Distribution {
+	/**
+	 * 英小文字と数字からなる、長さ4～16文字のランダムなキー。
+	 */
+	ASCII,
+
+	/**
+	 * ひらがな、カタカナ、CJK統合漢字からなる、長さ2～8文字のキー。<br />
+	 * 文字の出現頻度は偏っており、遷移に用いられる文字の種類が多い。
+	 */
+	CJK,
+
+	/**
+	 * {@code http://host/path/...}形式のURL風のキー。<br />
+	 * 少数のホスト名を共有するため、長い共通接頭辞を持つ。
+	 */
+	URL,
+
+	/**
+	 * Zipf分布に従って選ばれた単語を連結したキー。<br />
+	 * 単語・接頭辞の出現頻度が大きく偏った、自然言語の語彙に近いキーセット。
+	 */
+	SKEWED
+    }
+
+    private static final String ALNUM = "abcdefghijklmnopqrstuvwxyz0123456789";
+    private static final String[] SCHEMES = {"http://", "https://"};
+    private static final String[] TLDS = {".com", ".org", ".net", ".jp", ".co.jp", ".io"};
+
+    /**
+     * キーセットを生成する。
+     *
+     * @param dist キーセットの種類
+     * @param count キー数
+     * @param seed 乱数のシード
+     * @return ソート済みかつユニークなキーセット
+     */
+    public static List<String> generate(final Distribution dist, final int count, final long seed) {
+	final Random rnd = new Random(seed);
+	final Zipf words = dist==Distribution.SKEWED ? new Zipf(vocabulary(rnd, 5000), 1.1) : null;
+	final String[] hosts = dist==Distribution.URL ? hosts(rnd, Math.max(1, count/1000)) : null;
+	final Zipf hostZipf = hosts != null ? new Zipf(hosts, 1.0) : null;
+
+	final TreeSet<String> keys = new TreeSet<String>();
+	final StringBuilder sb = new StringBuilder();
+	while(keys.size() < count) {
+	    sb.setLength(0);
+	    switch(dist) {
+	    case ASCII:
+		appendRandom(sb, rnd, ALNUM, 4+rnd.nextInt(13));
+		break;
+	    case CJK:
+		appendCjk(sb, rnd, 2+rnd.nextInt(7));
+		break;
+	    case URL:
+		sb.append(SCHEMES[rnd.nextInt(4)==0 ? 0 : 1]).append(hostZipf.next(rnd));
+		for(int depth=1+rnd.nextInt(4); depth > 0; depth--) {
+		    sb.append('/');
+		    appendRandom(sb, rnd, ALNUM, 2+rnd.nextInt(10));
+		}
+		if(rnd.nextInt(3)==0)
+		    sb.append("?id=").append(rnd.nextInt(100000));
+		break;
+	    case SKEWED:
+		for(int n=1+rnd.nextInt(3); n > 0; n--)
+		    sb.append(words.next(rnd));
+		break;
+	    }
+	    keys.add(sb.toString());
+	}
+	return new ArrayList<String>(keys);
+    }
+
+    /**
+     * キーセットに対する検索キー列を生成する。<br />
+     * 検索キーは、キーセット中のキー(ヒット)と、キーセット中のキーの末尾の一文字を置き換えた、あるいは一文字追加したキー(ミス)からなる。
+     * ミスとなるキーはトライを途中まで辿ってから検索に失敗するため、ランダムな文字列より現実的な負荷となる。
+     *
+     * @param keys キーセット
+     * @param count 生成する検索キーの数
+     * @param hitRatio ヒットとなる検索キーの割合(0.0～1.0)
+     * @param seed 乱数のシード
+     * @return 検索キー列
+     */
+    public static String[] queries(final List<String> keys, final int count, final double hitRatio, final long seed) {
+	final Random rnd = new Random(seed);
+	final Set<String> keySet = new HashSet<String>(keys);
+	final String[] queries = new String[count];
+	for(int i=0; i < count; i++) {
+	    final String key = keys.get(rnd.nextInt(keys.size()));
+	    if(rnd.nextDouble() < hitRatio) {
+		queries[i] = key;
+		continue;
+	    }
+
+	    String miss;
+	    do {
+		final char c = key.charAt(rnd.nextInt(key.length()));
+		miss = rnd.nextBoolean() ? key+c : key.substring(0, key.length()-1)+(char)(c+1+rnd.nextInt(3));
+	    } while(keySet.contains(miss));
+	    queries[i] = miss;
+	}
+	return queries;
+    }
+
+    /**
+     * キーセットから共通接頭辞検索用のテキスト列を生成する。<br />
+     * 各テキストは、キーセット中のキーをいくつか連結したものであり、その先頭から複数のキーにマッチし得る。
+     *
+     * @param keys キーセット
+     * @param count 生成するテキストの数
+     * @param seed 乱数のシード
+     * @return テキスト列
+     */
+    public static String[] texts(final List<String> keys, final int count, final long seed) {
+	final Random rnd = new Random(seed);
+	final String[] texts = new String[count];
+	final StringBuilder sb = new StringBuilder();
+	for(int i=0; i < count; i++) {
+	    sb.setLength(0);
+	    for(int n=1+rnd.nextInt(3); n > 0; n--)
+		sb.append(keys.get(rnd.nextInt(keys.size())));
+	    texts[i] = sb.toString();
+	}
+	return texts;
+    }
+
+    private static void appendRandom(final StringBuilder sb, final Random rnd, final String chars, final int length) {
+	for(int i=0; i < length; i++)
+	    sb.append(chars.charAt(rnd.nextInt(chars.length())));
+    }
+
+    // hiragana and katakana are frequent, and kanji are drawn with a bias towards the lower code points
+    private static void appendCjk(final StringBuilder sb, final Random rnd, final int length) {
+	for(int i=0; i < length; i++) {
+	    final int r = rnd.nextInt(10);
+	    if(r < 4)
+		sb.append((char)(0x3041+rnd.nextInt(83)));  // hiragana
+	    else if(r < 6)
+		sb.append((char)(0x30A1+rnd.nextInt(90)));  // katakana
+	    else {
+		final double d = rnd.nextDouble();
+		sb.append((char)(0x4E00+(int)(d*d*20000))); // CJK unified ideographs
+	    }
+	}
+    }
+
+    private static String[] vocabulary(final Random rnd, final int size) {
+	final Set<String> words = new HashSet<String>();
+	final StringBuilder sb = new StringBuilder();
+	while(words.size() < size) {
+	    sb.setLength(0);
+	    appendRandom(sb, rnd, "abcdefghijklmnopqrstuvwxyz", 2+rnd.nextInt(7));
+	    words.add(sb.toString());
+	}
+	final String[] ary = words.toArray(new String[size]);
+	Arrays.sort(ary);
+	return ary;
+    }
+
+    private static String[] hosts(final Random rnd, final int size) {
+	final Set<String> hosts = new HashSet<String>();
+	final StringBuilder sb = new StringBuilder();
+	while(hosts.size() < size) {
+	    sb.setLength(0);
+	    if(rnd.nextBoolean())
+		sb.append("www.");
+	    appendRandom(sb, rnd, "abcdefghijklmnopqrstuvwxyz", 3+rnd.nextInt(10));
+	    sb.append(TLDS[rnd.nextInt(TLDS.length)]);
+	    hosts.add(sb.toString());
+	}
+	final String[] ary = hosts.toArray(new String[size]);
+	Arrays.sort(ary);
+	return ary;
+    }
+
+    /**
+     * 要素をZipf分布に従って選択するクラス。
+     */
+    private static final class Zipf {
+	private final String[] items;
+	private final double[] cumulative;
+
+	public Zipf(String[] items, double exponent) {
+	    this.items = items;
+	    cumulative = new double[items.length];
+	    double sum = 0;
+	    for(int i=0; i < items.length; i++)
+		cumulative[i] = sum += 1.0/Math.pow(i+1, exponent);
+	    for(int i=0; i < items.length; i++)
+		cumulative[i] /= sum;
+	}
+
+	public String next(Random rnd) {
+	    int i = Arrays.binarySearch(cumulative, rnd.nextDouble());
+	    if(i < 0)
+		i = -(i+1);
+	    return items[Math.min(i, items.length-1)];
+	}
+    }
+}
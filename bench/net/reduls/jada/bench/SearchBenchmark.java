@@ -0,0 +1,59 @@
+package net.reduls.jada.bench;
+
+import net.reduls.jada.Trie;
+import net.reduls.jada.TrieBuilder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Trie#search(CharSequence)}のベンチマーク。<br />
+ * 一回の操作は一つのキーの検索。検索キーは、{@link #hitRatio}の割合でヒットするキー列を順に巡回して選ばれる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final int QUERY_COUNT = 1<<16;
+
+    @Param({"ASCII", "CJK", "URL", "SKEWED"})
+    public KeySets.Distribution distribution;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    /**
+     * ヒットする検索キーの割合。0.9はヒット中心、0.1はミス中心の負荷となる。
+     */
+    @Param({"0.9", "0.1"})
+    public double hitRatio;
+
+    private Trie trie;
+    private String[] queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+	final List<String> keys = KeySets.generate(distribution, keyCount, 1);
+	trie = new TrieBuilder(keys).build(true);
+	queries = KeySets.queries(keys, QUERY_COUNT, hitRatio, 2);
+    }
+
+    @Benchmark
+    public int search() {
+	return trie.search(queries[next++ & (QUERY_COUNT-1)]);
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * JMHを用いたベンチマークを集めたパッケージ。<br />
+ * {@code ant bench}で実行する(JMHのjarファイルを{@code lib/jmh}に配置するか、{@code -Djmh.lib.dir=dir}で指定する必要がある)。
+ */
+package net.reduls.jada.bench;
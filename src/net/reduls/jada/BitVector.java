@@ -1,68 +1,235 @@
 package net.reduls.jada;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 
 /**
- * rank操作を有するビット配列の実装。
+ * rank操作およびselect操作を有するビット配列の実装。<br />
+ * ファイル上のrankインデックスは、{@code 2^rankShift}ブロック毎に、そのブロックより前の1bitの数を保持する。<br />
+ * selectインデックスは、256個の1bit毎に、その1bitを含むブロックの位置を保持する。<br />
+ * ヒープ上の配列を参照する実装({@link Heap})と、マッピングされたファイルの領域をバッファ越しに参照する実装({@link Mapped})がある。
  */
-final class BitVector {
+abstract class BitVector {
     private static final int PER_BLOCK_SIZE=32;
-    private int blocks[];
-    private int rankIndex[];
+    private static final int RANK_SHIFT=3; // 8ブロック(256bit)毎にrankインデックスを保持する
+    private static final int SELECT_SHIFT=8; // 256個の1bit毎にselectインデックスを保持する
+    /**
+     * {@code [0,index)}の範囲に含まれる1bitの数を返す。
+     *
+     * @param index 位置
+     * @return 1bitの数
+     */
+    public abstract int rank(int index);
 
     /**
-     * 指定されたサイズの空のビット配列を作成する。<br />
-     * ビット配列の全ての要素は0bitに初期化される。<br />
-     * {@link #set}メソッドで各ビット値を設定し、最後に{@link #buildRankIndex}メソッドを呼び出すことで、{@link #rank}メソッドが使用可能となる。
+     * {@code k}番目(0始まり)の1bitの位置を返す。
      *
-     * @param nodeSize ビット配列のサイズ
+     * @param k 1bitの順位。0以上、ビット配列中の1bitの数未満。
+     * @return 1bitの位置。{@code rank(select(k)) == k}を満たす。
      */
-    public BitVector(int nodeSize) {
-	blocks = new int[nodeSize/PER_BLOCK_SIZE+1];
-	for(int i=0; i < blocks.length; i++)
-	    blocks[i] = 0;
-    }
+    public abstract int select(int k);
 
     /**
-     * 構築/書き出し済みのビット配列を入力ストリームから読み込む。
-     * 
+     * ビット配列をインデックスファイルのセクションとして登録する。
+     * @param out 出力先
+     */
+    public abstract void write(IndexWriter out);
+
+    /**
+     * バージョン1形式で書き出されたビット配列を入力ストリームから読み込む。
+     *
      * @param in ビット配列データを保持する入力ストリーム
+     * @param mapped trueの場合は、データをヒープにコピーせず、マッピングされた領域を直接参照する
+     * @return ビット配列
      * @throws IOException 入出力エラーが生じた場合に送出される
      */
-    public BitVector(FileMappedInputStream in) throws IOException {
+    public static BitVector read(FileMappedInputStream in, boolean mapped) throws IOException {
 	final int size = in.getInt();
-	blocks = in.getIntArray(size);
-	rankIndex = in.getIntArray(size);
+	if(mapped)
+	    return new Mapped(in.mapIntBuffer(size), in.mapIntBuffer(size), 0);
+	final Heap bv = new Heap(in.getIntArray(size));
+	in.position(in.position() + size*4); // the rank index is rebuilt from the blocks
+	return bv;
+    }
+
+    /**
+     * インデックスファイルからビット配列を読み込む。
+     *
+     * @param in インデックスファイル
+     * @param copy trueの場合はデータをヒープ上の配列にコピーする。falseの場合はマッピングされた領域を直接参照する。
+     * @return ビット配列
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static BitVector read(IndexReader in, boolean copy) throws IOException {
+	final IntBuffer blocks = in.intSection(IndexFormat.BV_BLOCKS);
+	if(copy)
+	    return new Heap(Buffers.toArray(blocks)); // the rank and select indices are rebuilt from the blocks
+
+	final Mapped bv = 
+	    in.has(IndexFormat.BV_RANK8) ? new Mapped(blocks, in.intSection(IndexFormat.BV_RANK8), RANK_SHIFT)
+					 : new Mapped(blocks, in.intSection(IndexFormat.BV_RANK), 0);
+	if(in.has(IndexFormat.BV_SELECT))
+	    bv.selectIndex = in.intSection(IndexFormat.BV_SELECT);
+	return bv;
+    }
+
+    /**
+     * ヒープ上の配列を参照するビット配列。<br />
+     * 各ブロックを、そのブロックより前の1bitの数と組にして一つのlong値に保持し、rank操作を一回の配列参照で行う。
+     * rankインデックスおよびselectインデックスは、作成時にブロックから求められる。
+     */
+    static final class Heap extends BitVector {
+	private final long[] units; // 上位32bit: ブロックより前の1bitの数、下位32bit: ブロック
+	private int[] selectIndex;
+
+	/**
+	 * 指定されたサイズの空のビット配列を作成する。<br />
+	 * ビット配列の全ての要素は0bitに初期化される。<br />
+	 * {@link #set}メソッドで各ビット値を設定し、最後に{@link #buildRankIndex}メソッドを呼び出すことで、{@link #rank}メソッドが使用可能となる。
+	 *
+	 * @param nodeSize ビット配列のサイズ
+	 */
+	public Heap(int nodeSize) {
+	    units = new long[nodeSize/PER_BLOCK_SIZE+1];
+	}
+
+	/**
+	 * ビットブロックから、構築済みのビット配列を作成する。
+	 *
+	 * @param blocks ビットブロック
+	 */
+	public Heap(int[] blocks) {
+	    units = new long[blocks.length];
+	    for(int i=0; i < blocks.length; i++)
+		units[i] = blocks[i] & 0xFFFFFFFFL;
+	    buildRankIndex();
+	}
+
+	public void set(int index, boolean is1bit) {
+	    final int idx = index/PER_BLOCK_SIZE;
+	    final int off = index%PER_BLOCK_SIZE;
+
+	    if(is1bit) units[idx] |=   1L<<off;  // set bit 1
+	    else       units[idx] &= ~(1L<<off); // set bit 0
+	}
+
+	public void buildRankIndex() {
+	    final int[] blocks = blocks();
+	    int count = 0;
+	    for(int i=0; i < units.length; i++) {
+		units[i] = ((long)count << 32) | (blocks[i] & 0xFFFFFFFFL);
+		count += Integer.bitCount(blocks[i]);
+	    }
+	    selectIndex = buildSelectIndex(IntBuffer.wrap(blocks), count);
+	}
+
+	private int[] blocks() {
+	    final int[] blocks = new int[units.length];
+	    for(int i=0; i < units.length; i++)
+		blocks[i] = (int)units[i];
+	    return blocks;
+	}
+
+	public void write(IndexWriter out) {
+	    final int[] rankIndex = new int[(units.length>>RANK_SHIFT)+1];
+	    for(int i=0; i < units.length; i += 1<<RANK_SHIFT)
+		rankIndex[i>>RANK_SHIFT] = (int)(units[i] >>> 32);
+	    out.add(IndexFormat.BV_BLOCKS, IntBuffer.wrap(blocks()));
+	    out.add(IndexFormat.BV_RANK8, IntBuffer.wrap(rankIndex));
+	    out.add(IndexFormat.BV_SELECT, IntBuffer.wrap(selectIndex));
+	}
+
+	public int rank(int index) {
+	    final long unit = units[index/PER_BLOCK_SIZE];
+	    return (int)(unit >>> 32) + Integer.bitCount((int)unit & ((1<<(index%PER_BLOCK_SIZE))-1));
+	}
+
+	public int select(final int k) {
+	    int i = selectIndex[k>>SELECT_SHIFT];
+	    while(i+1 < units.length && (int)(units[i+1] >>> 32) <= k)
+		i++;
+	    return i*PER_BLOCK_SIZE + selectInBlock((int)units[i], k-(int)(units[i] >>> 32));
+	}
     }
 
-    public int dataSize() { return blocks.length * 4 * 2; }
+    /**
+     * マッピングされたファイルの領域を参照するビット配列。
+     */
+    static final class Mapped extends BitVector {
+	private final IntBuffer blocks;
+	private final IntBuffer rankIndex;
+	private final int rankShift;
+	private volatile IntBuffer selectIndex; // 保持していないファイルの場合は、最初のselect呼び出し時にヒープ上に作成される
+
+	public Mapped(IntBuffer blocks, IntBuffer rankIndex, int rankShift) {
+	    this.rankShift = rankShift;
+	    this.blocks = blocks;
+	    this.rankIndex = rankIndex;
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.BV_BLOCKS, blocks);
+	    out.add(rankShift==RANK_SHIFT ? IndexFormat.BV_RANK8 : IndexFormat.BV_RANK, rankIndex);
+	    out.add(IndexFormat.BV_SELECT, selectIndex());
+	}
+
+	private IntBuffer selectIndex() {
+	    IntBuffer index = selectIndex;
+	    if(index == null)
+		selectIndex = index = IntBuffer.wrap(buildSelectIndex(blocks, countOnes(blocks)));
+	    return index;
+	}
+
+	public int rank(int index) {
+	    final int idx = index/PER_BLOCK_SIZE;
+	    final int off = index%PER_BLOCK_SIZE;
+	    int count = rankIndex.get(idx>>rankShift);
+	    for(int i=(idx>>rankShift)<<rankShift; i < idx; i++)
+		count += Integer.bitCount(blocks.get(i));
+	    return off==0 ? count : count + Integer.bitCount(blocks.get(idx)&((1<<off)-1));
+	}
+
+	public int select(final int k) {
+	    final int groupCount = ((blocks.limit()-1)>>rankShift)+1;
+	    int group = selectIndex().get(k>>SELECT_SHIFT) >> rankShift;
+	    while(group+1 < groupCount && rankIndex.get(group+1) <= k)
+		group++;
 
-    public void write(FileMappedOutputStream out) throws IOException {
-	out.putInt(blocks.length);
-	for(int i=0; i < blocks.length; i++)
-	    out.putInt(blocks[i]);
-	for(int i=0; i < rankIndex.length; i++)
-	    out.putInt(rankIndex[i]);
+	    int count = rankIndex.get(group);
+	    int i = group<<rankShift;
+	    for(;; i++) {
+		final int ones = Integer.bitCount(blocks.get(i));
+		if(count+ones > k)
+		    break;
+		count += ones;
+	    }
+	    return i*PER_BLOCK_SIZE + selectInBlock(blocks.get(i), k-count);
+	}
     }
 
-    public void set(int index, boolean is1bit) {
-	final int idx = index/PER_BLOCK_SIZE;
-	final int off = index%PER_BLOCK_SIZE;
-	
-	if(is1bit) blocks[idx] |=   1<<off;  // set bit 1
-	else       blocks[idx] &= ~(1<<off); // set bit 0
+    private static int countOnes(final IntBuffer blocks) {
+	int count = 0;
+	for(int i=0; i < blocks.limit(); i++)
+	    count += Integer.bitCount(blocks.get(i));
+	return count;
     }
 
-    public void buildRankIndex() {
-	rankIndex = new int[blocks.length];
-	rankIndex[0] = 0;
-	for(int i=1; i < blocks.length; i++)
-	    rankIndex[i] = rankIndex[i-1] + Integer.bitCount(blocks[i-1]);
+    private static int[] buildSelectIndex(final IntBuffer blocks, final int oneCount) {
+	final int[] index = new int[(oneCount>>SELECT_SHIFT)+1];
+	int count = 0;
+	int sample = 0;
+	for(int i=0; i < blocks.limit(); i++) {
+	    count += Integer.bitCount(blocks.get(i));
+	    for(; (sample<<SELECT_SHIFT) < count; sample++)
+		index[sample] = i;
+	}
+	return index;
     }
 
-    public int rank(int index) {
-	final int idx = index/PER_BLOCK_SIZE;
-	final int off = index%PER_BLOCK_SIZE;
-	return off==0 ? rankIndex[idx] : rankIndex[idx] + Integer.bitCount(blocks[idx]&((1<<off)-1));
+    // the position of the r-th (0-origin) 1bit in 'block'
+    private static int selectInBlock(int block, int r) {
+	for(; r > 0; r--)
+	    block &= block-1; // drop the lowest 1bit
+	return Integer.numberOfTrailingZeros(block);
     }
-}
\ No newline at end of file
+}
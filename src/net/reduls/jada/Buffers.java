@@ -0,0 +1,107 @@
+package net.reduls.jada;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * NIOバッファ操作用のユーティリティ。
+ */
+final class Buffers {
+    private Buffers() {}
+
+    /**
+     * {@code copy}がtrueの場合は、バッファの内容をヒープ上の配列にコピーし、それをラップしたバッファを返す。<br />
+     * falseの場合は、引数のバッファをそのまま返す。
+     */
+    public static ByteBuffer copyIf(boolean copy, ByteBuffer src) {
+	if(copy==false)
+	    return src;
+	final byte[] ary = new byte[src.remaining()];
+	src.duplicate().get(ary);
+	return ByteBuffer.wrap(ary).order(src.order());
+    }
+
+    /**
+     * {@code copy}がtrueの場合は、バッファの内容をヒープ上の配列にコピーし、それをラップしたバッファを返す。<br />
+     * falseの場合は、引数のバッファをそのまま返す。
+     */
+    public static IntBuffer copyIf(boolean copy, IntBuffer src) {
+	if(copy==false)
+	    return src;
+	final int[] ary = new int[src.remaining()];
+	src.duplicate().get(ary);
+	return IntBuffer.wrap(ary);
+    }
+
+    /**
+     * バッファの先頭から{@code size}要素までの領域のビューを返す。内容はコピーされない。
+     */
+    public static IntBuffer head(IntBuffer src, int size) {
+	final IntBuffer dup = src.duplicate();
+	dup.position(0);
+	dup.limit(size);
+	return dup.slice();
+    }
+
+    /**
+     * {@code copy}がtrueの場合は、バッファの内容をヒープ上の配列にコピーし、それをラップしたバッファを返す。<br />
+     * falseの場合は、引数のバッファをそのまま返す。
+     */
+    public static LongBuffer copyIf(boolean copy, LongBuffer src) {
+	if(copy==false)
+	    return src;
+	final long[] ary = new long[src.remaining()];
+	src.duplicate().get(ary);
+	return LongBuffer.wrap(ary);
+    }
+
+    /**
+     * {@code copy}がtrueの場合は、バッファの内容をヒープ上の配列にコピーし、それをラップしたバッファを返す。<br />
+     * falseの場合は、引数のバッファをそのまま返す。
+     */
+    public static CharBuffer copyIf(boolean copy, CharBuffer src) {
+	if(copy==false)
+	    return src;
+	final char[] ary = new char[src.remaining()];
+	src.duplicate().get(ary);
+	return CharBuffer.wrap(ary);
+    }
+
+    /**
+     * バッファの現在位置からリミットまでの内容を、ヒープ上の配列にコピーして返す。
+     */
+    public static byte[] toArray(ByteBuffer src) {
+	final byte[] ary = new byte[src.remaining()];
+	src.duplicate().get(ary);
+	return ary;
+    }
+
+    /**
+     * バッファの現在位置からリミットまでの内容を、ヒープ上の配列にコピーして返す。
+     */
+    public static int[] toArray(IntBuffer src) {
+	final int[] ary = new int[src.remaining()];
+	src.duplicate().get(ary);
+	return ary;
+    }
+
+    /**
+     * バッファの現在位置からリミットまでの内容を、ヒープ上の配列にコピーして返す。
+     */
+    public static long[] toArray(LongBuffer src) {
+	final long[] ary = new long[src.remaining()];
+	src.duplicate().get(ary);
+	return ary;
+    }
+
+    /**
+     * バッファの現在位置からリミットまでの内容を、ヒープ上の配列にコピーして返す。
+     */
+    public static char[] toArray(CharBuffer src) {
+	final char[] ary = new char[src.remaining()];
+	src.duplicate().get(ary);
+	return ary;
+    }
+}
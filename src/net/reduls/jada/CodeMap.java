@@ -0,0 +1,176 @@
+package net.reduls.jada;
+
+import java.nio.IntBuffer;
+
+/**
+ * 文字のコード値から、実際に遷移に用いる値(遷移コード)へのマッピングテーブル。<br />
+ * テーブルのインデックスは、文字のコード値に1を加えたもの。インデックス0はキーの終端を表す。<br />
+ * トライ内に出現しない文字に対しては、遷移コード0が返される。<br />
+ * <br />
+ * 入力キーセットのアルファベットに応じて、以下のいずれかの表現が選択される。
+ * <ul>
+ * <li>ByteTable: 遷移コードが1byteに収まり、かつ、出現する文字のコード値の範囲が狭い場合の、byte型の密なテーブル</li>
+ * <li>PagedTable: 256文字単位のページからなる二段のテーブル。文字が一つも出現しないページは共有される</li>
+ * <li>IntTable: 上記のいずれにも該当しない場合の、int型の密なテーブル</li>
+ * </ul>
+ */
+abstract class CodeMap {
+    private static final int INDEX_LIMIT = 0x10001;
+    private static final int DENSE_INDEX_LIMIT = 0x1000;
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1<<PAGE_BITS;
+
+    private final int[] decode; // 遷移コードから、テーブルのインデックスへの逆変換テーブル
+    private volatile int[] ordered; // インデックスの昇順に並べた遷移コードの列。最初に必要になった時点で作成される
+
+    protected CodeMap(int[] decode) {
+	this.decode = decode;
+    }
+
+    /**
+     * 文字に対応する遷移コードを返す。
+     *
+     * @param index 文字のコード値+1。キーの終端の場合は0。
+     * @return 遷移コード。トライ内に出現しない文字の場合は0。
+     */
+    public abstract int code(int index);
+
+    /**
+     * 遷移コードの上限値を返す。全ての遷移コードはこの値未満となる。
+     * @return 遷移コードの上限値
+     */
+    public final int limit() { return decode.length; }
+
+    /**
+     * 遷移コードに対応するテーブルのインデックス(文字のコード値+1)を返す。
+     *
+     * @param code 遷移コード。1以上{@link #limit}未満。
+     * @return テーブルのインデックス
+     */
+    public final int index(int code) { return decode[code]; }
+
+    /**
+     * 全ての遷移コードを、対応するインデックス(文字のコード値+1)の昇順に並べた配列を返す。<br />
+     * キーの終端に対応する遷移コードが先頭に来るため、この順で子ノードを辿ると、キーが辞書順に列挙される。<br />
+     * 返された配列は変更してはならない。
+     *
+     * @return 遷移コードの配列
+     */
+    public final int[] orderedCodes() {
+	int[] codes = ordered;
+	if(codes == null) {
+	    final long[] pairs = new long[decode.length-1];
+	    for(int code=1; code < decode.length; code++)
+		pairs[code-1] = ((long)decode[code] << 32) | code;
+	    java.util.Arrays.sort(pairs);
+	    
+	    codes = new int[pairs.length];
+	    for(int i=0; i < pairs.length; i++)
+		codes[i] = (int)pairs[i];
+	    ordered = codes;
+	}
+	return codes;
+    }
+
+    /**
+     * 逆変換テーブルを返す。<br />
+     * このテーブルから{@link #fromDecodeTable}メソッドにより、マッピングテーブルを復元可能。
+     * @return 逆変換テーブル
+     */
+    public final IntBuffer decodeTable() { return IntBuffer.wrap(decode); }
+
+    /**
+     * インデックスから遷移コードへの密なテーブルをもとに、{@link CodeMap}インスタンスを作成する。
+     *
+     * @param charcode インデックスから遷移コードへのテーブル
+     * @return {@link CodeMap}インスタンス
+     */
+    public static CodeMap fromTable(IntBuffer charcode) {
+	int limit = 1;
+	for(int i=0; i < charcode.limit(); i++)
+	    limit = Math.max(limit, charcode.get(i)+1);
+
+	final int[] decode = new int[limit];
+	decode[0] = -1;
+	for(int i=0; i < charcode.limit(); i++)
+	    if(charcode.get(i) != 0)
+		decode[charcode.get(i)] = i;
+	return fromDecodeTable(IntBuffer.wrap(decode));
+    }
+
+    /**
+     * 逆変換テーブルをもとに、{@link CodeMap}インスタンスを作成する。<br />
+     * 遷移コードの上限値と、出現する文字のコード値の範囲をもとに、適切な表現が選択される。
+     *
+     * @param src 逆変換テーブル
+     * @return {@link CodeMap}インスタンス
+     */
+    public static CodeMap fromDecodeTable(IntBuffer src) {
+	final int[] decode = new int[src.limit()];
+	src.duplicate().get(decode);
+
+	int maxIndex = 0;
+	for(int code=1; code < decode.length; code++)
+	    maxIndex = Math.max(maxIndex, decode[code]);
+
+	if(decode.length <= 0x100 && maxIndex < DENSE_INDEX_LIMIT)
+	    return new ByteTable(decode, maxIndex+1);
+	if(decode.length <= 0x10000)
+	    return new PagedTable(decode);
+	return new IntTable(decode);
+    }
+
+    private static final class ByteTable extends CodeMap {
+	private final byte[] table;
+
+	public ByteTable(int[] decode, int size) {
+	    super(decode);
+	    table = new byte[size];
+	    for(int code=1; code < decode.length; code++)
+		table[decode[code]] = (byte)code;
+	}
+
+	public int code(int index) {
+	    return index < table.length ? table[index]&0xFF : 0;
+	}
+    }
+
+    private static final class PagedTable extends CodeMap {
+	private final int[] pages;   // ページ番号から、leaves内でのページの開始位置へのテーブル
+	private final char[] leaves; // 先頭のページは、全要素が0の共有ページ
+
+	public PagedTable(int[] decode) {
+	    super(decode);
+	    pages = new int[(INDEX_LIMIT+PAGE_SIZE-1)/PAGE_SIZE];
+	    
+	    int pageCount = 1;
+	    for(int code=1; code < decode.length; code++) {
+		final int page = decode[code]>>>PAGE_BITS;
+		if(pages[page]==0)
+		    pages[page] = (pageCount++)*PAGE_SIZE;
+	    }
+	    
+	    leaves = new char[pageCount*PAGE_SIZE];
+	    for(int code=1; code < decode.length; code++) 
+		leaves[pages[decode[code]>>>PAGE_BITS] + (decode[code]&(PAGE_SIZE-1))] = (char)code;
+	}
+
+	public int code(int index) {
+	    return leaves[pages[index>>>PAGE_BITS] + (index&(PAGE_SIZE-1))];
+	}
+    }
+
+    private static final class IntTable extends CodeMap {
+	private final int[] table = new int[INDEX_LIMIT];
+
+	public IntTable(int[] decode) {
+	    super(decode);
+	    for(int code=1; code < decode.length; code++)
+		table[decode[code]] = code;
+	}
+
+	public int code(int index) {
+	    return table[index];
+	}
+    }
+}
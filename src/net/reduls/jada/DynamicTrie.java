@@ -0,0 +1,498 @@
+package net.reduls.jada;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * キーの追加/削除が可能なDoubleArray Trieクラス。<br />
+ * <br />
+ * {@link Trie}と同様に、BASE/CHECK配列と、葉ノード以下の末尾文字列を保持するTAIL配列からなる。
+ * 未使用ノードの管理には、構築時と同じ{@link NodeAllocator}を用いる。<br />
+ * 各ノードは、最初の子の遷移コードと次の兄弟の遷移コードを保持し、子の列挙は(アルファベットサイズではなく)子の数に比例する時間で行われる。
+ * 遷移コードで保持するため、子を移動してもリンクは変化しない。<br />
+ * <ul>
+ * <li>追加: 遷移先のノードが既に他の親に使用されている場合は、親ノードの子を全て、新しい子を含めて配置可能な位置に移動する。
+ *     ただし他の親の子の方が少ない場合は、そちらを移動して遷移先を空ける。
+ *     葉ノードに到達した場合は、既存のキーの末尾文字列と新しいキーの共通接頭辞の分だけ内部ノードを作成し、分岐後の二つの葉ノードに末尾文字列を分割する。</li>
+ * <li>削除: 葉ノードを解放し、子を持たなくなった祖先の内部ノードも解放する。</li>
+ * </ul>
+ * 遷移コードは、文字の出現頻度ではなく、最初に出現した順に割り当てられる。<br />
+ * <br />
+ * キーのIDは追加時に割り当てられ、そのキーが削除されるまで(ノードの移動や分割が起きても)変化しない。
+ * 削除されたキーのIDは、以降に追加されるキーに再利用される。<br />
+ * {@link #freeze}により、保持しているキーセットから静的な{@link Trie}を構築できる。その際のIDの対応は{@link #freeze(int[])}で取得する。<br />
+ * <br />
+ * 削除されたキーの末尾文字列の領域は再利用されないため、更新を繰り返すとTAIL配列は単調に増加する。
+ * 定期的に{@link #freeze}した静的なトライから作り直すことで、領域は回収される。<br />
+ * インスタンスはスレッドセーフではない。
+ */
+public final class DynamicTrie {
+    private static final int TERMINAL_CODE = 1; // キーの終端の遷移コード
+    private static final int SKIP_WINDOWS = 16; // 割り当て時に、前回の割り当て位置へ読み飛ばすまでに調べる64候補単位の探索回数
+    private static final int INITIAL_NODES = 1024;
+
+    private IntBuffer base;
+    private IntBuffer chck;
+    private final NodeAllocator alloca;
+    private int[] firstChild; // ノード => 最初の子の遷移コード。子が無い場合は0
+    private int[] sibling;    // ノード => 同じ親を持つ次の兄弟の遷移コード。無い場合は0
+    private final int[] charcode = new int[0x10001]; // 文字のコード値+1 => 遷移コード。未割り当ての場合は0
+    private int[] decode = new int[16];               // 遷移コード => 文字のコード値+1
+    private int codeLimit = TERMINAL_CODE+1;
+
+    private char[] tail = new char[256]; // 先頭の'\0'は、末尾文字列が空の葉ノードで共有される
+    private int tailLength = 1;
+    private int[] tails = new int[16];    // ID => 葉ノードの末尾文字列のTAIL配列内での開始位置
+    private int[] leaves = new int[16];   // ID => 葉ノード。削除済みのIDの場合は-1
+    private int[] freeIds = new int[16];  // 削除済みのIDのスタック
+    private int freeIdCount = 0;
+    private int idLimit = 0;              // これまでに割り当てた最大のID+1
+    private int size = 0;
+
+    /**
+     * 空の{@link DynamicTrie}インスタンスを作成する。
+     */
+    public DynamicTrie() {
+	base = WorkArea.HEAP.allocate(INITIAL_NODES);
+	chck = WorkArea.HEAP.allocate(INITIAL_NODES);
+	alloca = new NodeAllocator(base, chck, codeLimit, WorkArea.HEAP);
+	alloca.skipAllSizeClasses(SKIP_WINDOWS);
+	firstChild = new int[INITIAL_NODES];
+	sibling = new int[INITIAL_NODES];
+	base.put(0, 0); // the root has no children
+	chck.put(0, -1);
+	charcode[0] = TERMINAL_CODE;
+	decode[TERMINAL_CODE] = 0;
+    }
+
+    /**
+     * 静的な{@link Trie}が保持するキーセットから、{@link DynamicTrie}インスタンスを作成する。<br />
+     * 各キーには、{@code trie}内でのIDと同じIDが割り当てられる。
+     *
+     * @param trie 初期キーセットを保持するトライ
+     */
+    public DynamicTrie(Trie trie) {
+	this();
+	final String[] keys = new String[trie.keyCount()];
+	final Trie.PredictiveCursor cursor = trie.predictiveSearch("");
+	while(cursor.next())
+	    keys[cursor.id()] = cursor.key().toString();
+	for(String key : keys)
+	    insert(key); // the IDs are assigned sequentially from 0
+    }
+
+    /**
+     * 保持しているキーの数を返す。
+     * @return キー数
+     */
+    public int size() { return size; }
+
+    /**
+     * IDの上限値を返す。全てのキーのIDはこの値未満となる。
+     * @return IDの上限値
+     */
+    public int idLimit() { return idLimit; }
+
+    /**
+     * ノード配列のサイズを返す。
+     * @return ノード配列のサイズ
+     */
+    public int nodeCount() { return base.limit(); }
+
+    /**
+     * TAIL配列の長さを返す(削除されたキーの領域を含む)。
+     * @return TAIL配列の長さ
+     */
+    public int tailLength() { return tailLength; }
+
+    /**
+     * キーを検索する。
+     *
+     * @param key 検索対象のキー文字列
+     * @return キーのID。キーが存在しない場合は-1が返される。
+     */
+    public int search(final CharSequence key) {
+	int node = 0;
+	for(int pos=0;; pos++) {
+	    final int b = base.get(node);
+	    if(b < 0) {
+		final int rest = Math.max(0, key.length()-pos); // pos exceeds the length after the terminal transition
+		return compareTail(-b-1, key, pos)==rest && tail[tails[-b-1]+rest]=='\0' ? -b-1 : -1;
+	    }
+	    node = next(node, pos < key.length() ? code(key.charAt(pos)) : TERMINAL_CODE);
+	    if(node == -1)
+		return -1;
+	}
+    }
+
+    /**
+     * キーを追加する。<br />
+     * キーが既に存在する場合は、何もせずにそのキーのIDを返す。
+     *
+     * @param key 追加するキー文字列。文字'\0'を含んではならない
+     * @return キーのID
+     * @throws IllegalStateException ノード数が上限に達した場合に送出される
+     */
+    public int insert(final CharSequence key) {
+	int node = 0;
+	for(int pos=0;; pos++) {
+	    final int b = base.get(node);
+	    if(b < 0)
+		return splitLeaf(node, key, pos);
+
+	    final int code = pos < key.length() ? assignCode(key.charAt(pos)) : TERMINAL_CODE;
+	    final int child = next(node, code);
+	    if(child == -1)
+		return addLeaf(node, code, key, pos+1);
+	    node = child;
+	}
+    }
+
+    /**
+     * キーを削除する。
+     *
+     * @param key 削除するキー文字列
+     * @return 削除したキーのID。キーが存在しない場合は-1
+     */
+    public int delete(final CharSequence key) {
+	final int id = search(key);
+	if(id == -1)
+	    return -1;
+
+	// releases the leaf, and the ancestors which have no other children
+	for(int node=leaves[id];;) {
+	    final int parent = chck.get(node);
+	    if(base.get(node) > 0)
+		alloca.releaseBase(base.get(node));
+	    unlink(parent, node-base.get(parent));
+	    release(node);
+	    node = parent;
+	    if(firstChild[node] != 0)
+		break;
+	    if(node == 0) {
+		alloca.releaseBase(base.get(0));
+		base.put(0, 0);
+		break;
+	    }
+	}
+
+	leaves[id] = -1;
+	freeIds = ensure(freeIds, freeIdCount+1);
+	freeIds[freeIdCount++] = id;
+	size--;
+	return id;
+    }
+
+    /**
+     * IDに対応するキーを復元する。
+     *
+     * @param id キーのID
+     * @return キー文字列。IDが範囲外の場合、あるいは削除済みのIDの場合はnull。
+     */
+    public String key(final int id) {
+	if(id < 0 || id >= idLimit || leaves[id] == -1)
+	    return null;
+
+	final StringBuilder sb = new StringBuilder();
+	for(int node=leaves[id]; node != 0;) {
+	    final int parent = chck.get(node);
+	    final int code = node - base.get(parent);
+	    if(code != TERMINAL_CODE)
+		sb.append((char)(decode[code]-1));
+	    node = parent;
+	}
+	sb.reverse();
+	for(int i=tails[id]; tail[i] != '\0'; i++)
+	    sb.append(tail[i]);
+	return sb.toString();
+    }
+
+    /**
+     * 文字列の指定範囲に対して共通接頭辞検索を行う。<br />
+     * {@link Trie#commonPrefixSearch(CharSequence,int,int,Trie.PrefixCallback)}と同様に、マッチしたキーが長さの昇順でコールバックに通知される。
+     *
+     * @param text 検索対象の文字列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @param fn マッチしたキーの長さおよびIDを受け取るコールバック
+     */
+    public void commonPrefixSearch(final CharSequence text, final int start, final int end, final Trie.PrefixCallback fn) {
+	int node = 0;
+	for(int pos=start;; pos++) {
+	    final int b = base.get(node);
+	    if(b < 0) {
+		final int id = -b-1;
+		int i = tails[id];
+		for(int p=pos; tail[i] != '\0'; i++, p++)
+		    if(p == end || text.charAt(p) != tail[i])
+			return;
+		fn.found(pos+(i-tails[id])-start, id);
+		return;
+	    }
+
+	    if(node != 0) {
+		final int terminal = next(node, TERMINAL_CODE);
+		if(terminal != -1)
+		    fn.found(pos-start, -base.get(terminal)-1);
+	    }
+
+	    if(pos == end)
+		return;
+	    node = next(node, code(text.charAt(pos)));
+	    if(node == -1)
+		return;
+	}
+    }
+
+    /**
+     * 保持しているキーセットから、静的な{@link Trie}を構築する。<br />
+     * {@code freeze(null)}に等しい。
+     *
+     * @return 構築済みの{@link Trie}インスタンス
+     */
+    public Trie freeze() {
+	return freeze(null);
+    }
+
+    /**
+     * 保持しているキーセットから、静的な{@link Trie}を構築する。<br />
+     * キーはソートされた後に{@link TrieBuilder}に渡されるため、静的なトライでのIDは、このインスタンスでのIDとは一致しない。
+     * 対応が必要な場合は{@code idMap}を指定する。
+     *
+     * @param idMap nullでない場合は、{@code idMap[このインスタンスでのID]}に静的なトライでのIDが格納される。削除済みのIDの要素には-1が格納される。
+     *              {@link #idLimit}以上の長さが必要。
+     * @return 構築済みの{@link Trie}インスタンス
+     */
+    public Trie freeze(final int[] idMap) {
+	final List<String> keys = new ArrayList<String>(size);
+	for(int id=0; id < idLimit; id++)
+	    if(leaves[id] != -1)
+		keys.add(key(id));
+	Collections.sort(keys);
+
+	final Trie trie = new TrieBuilder(keys).build();
+	if(idMap != null)
+	    for(int id=0; id < idLimit; id++)
+		idMap[id] = leaves[id]==-1 ? -1 : trie.search(key(id));
+	return trie;
+    }
+
+    // returns the transition code of 'ch', or 0 if no code has been assigned to it
+    private int code(final char ch) {
+	return charcode[ch+1];
+    }
+
+    // returns the transition code of 'ch', assigning a new code if necessary
+    private int assignCode(final char ch) {
+	if(charcode[ch+1] == 0) {
+	    decode = ensure(decode, codeLimit+1);
+	    decode[codeLimit] = ch+1;
+	    charcode[ch+1] = codeLimit++;
+	    alloca.extendCodeLimit(codeLimit);
+	}
+	return charcode[ch+1];
+    }
+
+    private int next(final int node, final int code) {
+	final int b = base.get(node);
+	if(b <= 0 || code == 0)
+	    return -1;
+	final int child = b+code;
+	return child < chck.limit() && chck.get(child)==node ? child : -1;
+    }
+
+    // returns the codes of the children of 'node'
+    private int[] children(final int node) {
+	final int[] codes = new int[childCount(node)];
+	int i = 0;
+	for(int code=firstChild[node]; code != 0; code=sibling[base.get(node)+code])
+	    codes[i++] = code;
+	return codes;
+    }
+
+    private int childCount(final int node) {
+	int count = 0;
+	for(int code=firstChild[node]; code != 0; code=sibling[base.get(node)+code])
+	    count++;
+	return count;
+    }
+
+    // adds the child of 'parent' with 'code' to the head of its children list. the child has no children yet
+    private void link(final int parent, final int code) {
+	final int child = base.get(parent)+code;
+	firstChild[child] = 0;
+	sibling[child] = firstChild[parent];
+	firstChild[parent] = code;
+    }
+
+    // removes the child of 'parent' with 'code' from its children list
+    private void unlink(final int parent, final int code) {
+	final int b = base.get(parent);
+	if(firstChild[parent] == code) {
+	    firstChild[parent] = sibling[b+code];
+	    return;
+	}
+	int prev = firstChild[parent];
+	while(sibling[b+prev] != code)
+	    prev = sibling[b+prev];
+	sibling[b+prev] = sibling[b+code];
+    }
+
+    private void release(final int node) {
+	alloca.release(node);
+	firstChild[node] = 0;
+	sibling[node] = 0;
+    }
+
+    // adds the leaf of 'key' as the child of 'node' with 'code'. the tail of the leaf is key[rest..]
+    private int addLeaf(final int node, final int code, final CharSequence key, final int rest) {
+	final int b = base.get(node);
+	final int child;
+	if(b > 0 && alloca.occupy(b+code)) {
+	    syncArrays();
+	    child = b+code;
+	} else if(b > 0 && movable(b+code, node)) {
+	    // the slot is taken by a child of a node with fewer children: moves that node's children instead
+	    relocate(chck.get(b+code), 0);
+	    alloca.occupy(b+code);
+	    syncArrays();
+	    child = b+code;
+	} else {
+	    child = relocate(node, code);
+	}
+	chck.put(child, node);
+	link(node, code);
+	return newLeaf(child, key, rest);
+    }
+
+    // whether the owner of the used 'slot' can be relocated more cheaply than 'node', which needs the slot for a new child
+    private boolean movable(final int slot, final int node) {
+	if(slot <= TERMINAL_CODE || slot >= chck.limit())
+	    return false;  // reserved nodes
+	final int owner = chck.get(slot);
+	if(owner < 0 || owner == chck.get(node))
+	    return false;  // relocating the parent of 'node' would move 'node' itself
+	return childCount(owner) <= childCount(node);
+    }
+
+    // moves the children of 'node' to a new base where 'code' (0: none) can also be placed, and returns the node for 'code'
+    private int relocate(final int node, final int code) {
+	final int oldBase = base.get(node);
+	final int[] olds = children(node);
+	final int[] codes = code==0 ? olds : Arrays.copyOf(olds, olds.length+1);
+	if(code != 0)
+	    codes[olds.length] = code;
+	final int newBase = allocate(codes);
+
+	for(int c : olds) {
+	    final int from = oldBase+c;
+	    final int to = newBase+c;
+	    final int b = base.get(from);
+	    base.put(to, b);
+	    chck.put(to, node);
+	    firstChild[to] = firstChild[from]; // the links are codes, so they stay valid under the new base
+	    sibling[to] = sibling[from];
+	    if(b < 0) {
+		leaves[-b-1] = to;
+	    } else {
+		for(int gc=firstChild[from]; gc != 0; gc=sibling[b+gc])
+		    chck.put(b+gc, to);
+	    }
+	    release(from);
+	}
+	if(oldBase > 0)
+	    alloca.releaseBase(oldBase);
+	base.put(node, newBase);
+	return newBase+code;
+    }
+
+    // turns the leaf 'node' into internal nodes, when the new key (whose rest is key[pos..]) diverges from the tail of the leaf
+    private int splitLeaf(int node, final CharSequence key, final int pos) {
+	final int id = -base.get(node)-1;
+	final int rest = Math.max(0, key.length()-pos);
+	final int common = compareTail(id, key, pos);
+	final char tailCh = tail[tails[id]+common];
+	if(common == rest && tailCh == '\0')
+	    return id; // already exists
+
+	for(int i=0; i < common; i++) {
+	    final int code = assignCode(key.charAt(pos+i));
+	    final int b = allocate(new int[]{code});
+	    base.put(node, b);
+	    chck.put(b+code, node);
+	    link(node, code);
+	    node = b+code;
+	}
+
+	final int oldCode = tailCh=='\0' ? TERMINAL_CODE : assignCode(tailCh);
+	final int newCode = common==rest ? TERMINAL_CODE : assignCode(key.charAt(pos+common));
+	final int b = allocate(new int[]{oldCode, newCode});
+	base.put(node, b);
+	chck.put(b+oldCode, node);
+	chck.put(b+newCode, node);
+	link(node, oldCode);
+	link(node, newCode);
+	base.put(b+oldCode, -id-1);
+	leaves[id] = b+oldCode;
+	tails[id] += tailCh=='\0' ? common : common+1;
+	return newLeaf(b+newCode, key, pos+common+1);
+    }
+
+    // sets the new key (whose tail is key[rest..]) to the leaf node, and returns its ID
+    private int newLeaf(final int node, final CharSequence key, final int rest) {
+	final int id;
+	if(freeIdCount > 0) {
+	    id = freeIds[--freeIdCount];
+	} else {
+	    id = idLimit++;
+	    tails = ensure(tails, idLimit);
+	    leaves = ensure(leaves, idLimit);
+	}
+	base.put(node, -id-1);
+	leaves[id] = node;
+	tails[id] = appendTail(key, rest);
+	size++;
+	return id;
+    }
+
+    // returns the length of the common prefix of the tail of 'id' and key[pos..]
+    private int compareTail(final int id, final CharSequence key, final int pos) {
+	int i = 0;
+	for(int t=tails[id]; pos+i < key.length() && tail[t+i] != '\0' && tail[t+i] == key.charAt(pos+i); i++);
+	return i;
+    }
+
+    private int appendTail(final CharSequence key, final int beg) {
+	if(beg >= key.length())
+	    return 0;
+	final int head = tailLength;
+	final int len = key.length()-beg;
+	if(tailLength+len+1 > tail.length)
+	    tail = Arrays.copyOf(tail, Math.max(tail.length*2, tailLength+len+1));
+	for(int i=0; i < len; i++)
+	    tail[tailLength++] = key.charAt(beg+i);
+	tail[tailLength++] = '\0';
+	return head;
+    }
+
+    private int allocate(final int[] codes) {
+	final int b = alloca.allocate(codes, codes.length);
+	syncArrays();
+	return b;
+    }
+
+    // the allocator may have extended the arrays
+    private void syncArrays() {
+	base = alloca.base();
+	chck = alloca.check();
+	firstChild = ensure(firstChild, base.limit());
+	sibling = ensure(sibling, base.limit());
+    }
+
+    private static int[] ensure(final int[] ary, final int size) {
+	return size <= ary.length ? ary : Arrays.copyOf(ary, Math.max(ary.length*2, size));
+    }
+}
@@ -0,0 +1,238 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.IntBuffer;
+
+/**
+ * トライ上のAho-Corasickオートマトン用の失敗リンク。<br />
+ * <br />
+ * オートマトンの状態は、ダブル配列のノードとTAIL配列内の各文字の位置からなる。
+ * <ul>
+ * <li>0以上ノード数未満: ダブル配列のノード。0はルートノード(初期状態)。</li>
+ * <li>ノード数以上: TAIL配列内の位置{@code (状態-ノード数)}の文字まで読み込んだ状態。</li>
+ * </ul>
+ * TAIL配列内の各位置がただ一つの葉ノードに属している必要があるため、TAIL配列の圧縮を行ったトライには使用できない。<br />
+ * <br />
+ * 各状態について、失敗時の遷移先と、その状態で受理されるキーのうち最長のもののIDを保持する。
+ * 同じ状態で受理される残りのキーは、キーのIDから次に短いキーのIDへのリンクを辿ることで列挙される。
+ */
+final class FailureLinks {
+    private final NodeArray nodes;
+    private final TailArray tail;
+    private final CodeMap codes;
+    private final IntBuffer fail;      // 状態 => 失敗時の遷移先の状態
+    private final IntBuffer output;    // 状態 => その状態で受理される最長のキーのID。無い場合は-1
+    private final IntBuffer nextOutput;// キーのID => 同じ状態で受理される次に短いキーのID。無い場合は-1
+    private final IntBuffer keyLength; // キーのID => キーの長さ
+
+    private FailureLinks(NodeArray nodes, TailArray tail, CodeMap codes,
+			 IntBuffer fail, IntBuffer output, IntBuffer nextOutput, IntBuffer keyLength) {
+	this.nodes = nodes;
+	this.tail = tail;
+	this.codes = codes;
+	this.fail = fail;
+	this.output = output;
+	this.nextOutput = nextOutput;
+	this.keyLength = keyLength;
+    }
+
+    /**
+     * 構築済みのトライの各要素から、失敗リンクを幅優先で計算する。
+     *
+     * @param nodes ノード配列
+     * @param chck 構築時のCHECK配列。子ノードの列挙に用いる
+     * @param tail 圧縮されていないTAIL配列
+     * @param codes 遷移コードのマッピングテーブル
+     * @param bv ID算出用のビット配列
+     * @param order 辞書順のIDの割り当て。ビット配列のrankをIDとする場合はnull
+     * @return 失敗リンク
+     */
+    public static FailureLinks build(NodeArray nodes, IntBuffer chck, TailArray tail, CodeMap codes, BitVector bv, KeyOrder order) {
+	final int nodeCount = nodes.size();
+	final int stateCount = nodeCount + tail.length();
+	final int terminalCode = codes.code(0);
+
+	// children of each node (terminal transitions excluded)
+	final int[] childBegin = new int[nodeCount+1];
+	for(int i=1; i < nodeCount; i++)
+	    if(chck.get(i) >= 0)
+		childBegin[chck.get(i)+1]++;
+	for(int i=0; i < nodeCount; i++)
+	    childBegin[i+1] += childBegin[i];
+	final int[] children = new int[childBegin[nodeCount]];
+	final int[] fill = new int[nodeCount];
+	for(int i=1; i < nodeCount; i++)
+	    if(chck.get(i) >= 0)
+		children[childBegin[chck.get(i)] + fill[chck.get(i)]++] = i;
+
+	final int[] fail = new int[stateCount];
+	final int[] output = new int[stateCount];
+	final int[] depth = new int[stateCount];
+	final int[] owner = new int[stateCount-nodeCount]; // TAIL内の状態 => それを含む葉ノードのID
+	final int[] queue = new int[stateCount];
+	final int keyCount = bv.rank(nodeCount);
+	final int[] nextOutput = new int[keyCount];
+	final int[] keyLength = new int[keyCount];
+	final FailureLinks links = new FailureLinks(nodes, tail, codes, IntBuffer.wrap(fail), IntBuffer.wrap(output),
+						    IntBuffer.wrap(nextOutput), IntBuffer.wrap(keyLength));
+	java.util.Arrays.fill(output, -1);
+
+	int head=0, last=0;
+	queue[last++] = 0;
+	while(head < last) {
+	    final int s = queue[head++];
+	    final int base = s < nodeCount ? nodes.base(s) : 0;
+	    if(s < nodeCount && base >= 0) {
+		for(int i=childBegin[s]; i < childBegin[s+1]; i++) {
+		    final int t = children[i];
+		    final int label = t - base;
+		    if(label == terminalCode)
+			continue;
+		    depth[t] = depth[s]+1;
+		    fail[t] = s==0 ? 0 : links.step(fail[s], codes.index(label)-1);
+		    queue[last++] = t;
+		}
+	    } else {
+		final int pos = s < nodeCount ? -base : s-nodeCount+1;
+		final int ch = tail.charAt(pos);
+		if(ch != '\0') {
+		    final int t = nodeCount+pos;
+		    depth[t] = depth[s]+1;
+		    owner[pos] = s < nodeCount ? KeyOrder.id(order, bv, s) : owner[s-nodeCount];
+		    fail[t] = s==0 ? 0 : links.step(fail[s], ch);
+		    queue[last++] = t;
+		}
+	    }
+	}
+
+	// outputs are resolved in BFS order, so that the output of a failure target is always ready
+	for(int i=0; i < last; i++) {
+	    final int s = queue[i];
+	    final int inherited = s==0 ? -1 : output[fail[s]];
+
+	    int id = -1;
+	    if(s == 0) {
+		// the empty key is never reported, whether it is a terminal of the root or the root itself is its leaf
+	    } else if(s >= nodeCount) {
+		if(tail.charAt(s-nodeCount+1) == '\0')
+		    id = owner[s-nodeCount];
+	    } else if(nodes.base(s) < 0) {
+		if(tail.charAt(-nodes.base(s)) == '\0')
+		    id = KeyOrder.id(order, bv, s);
+	    } else {
+		final int terminal = nodes.next(s, terminalCode);
+		if(terminal != -1)
+		    id = KeyOrder.id(order, bv, terminal);
+	    }
+
+	    if(id == -1) {
+		output[s] = inherited;
+	    } else {
+		output[s] = id;
+		nextOutput[id] = inherited;
+		keyLength[id] = depth[s];
+	    }
+	}
+	return links;
+    }
+
+    /**
+     * インデックスファイルから失敗リンクを読み込む。
+     *
+     * @param in インデックスファイル
+     * @param copy trueの場合はデータをヒープにコピーする。falseの場合はマッピングされた領域を直接参照する。
+     * @param nodes ノード配列
+     * @param tail TAIL配列
+     * @param codes 遷移コードのマッピングテーブル
+     * @return 失敗リンク。インデックスファイルが失敗リンクを保持していない場合はnull。
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static FailureLinks read(IndexReader in, boolean copy, NodeArray nodes, TailArray tail, CodeMap codes) throws IOException {
+	if(in.has(IndexFormat.AC_FAIL)==false)
+	    return null;
+	return new FailureLinks(nodes, tail, codes,
+				Buffers.copyIf(copy, in.intSection(IndexFormat.AC_FAIL)),
+				Buffers.copyIf(copy, in.intSection(IndexFormat.AC_OUTPUT)),
+				Buffers.copyIf(copy, in.intSection(IndexFormat.AC_NEXT_OUTPUT)),
+				Buffers.copyIf(copy, in.intSection(IndexFormat.AC_KEY_LENGTH)));
+    }
+
+    /**
+     * 失敗リンクをインデックスファイルのセクションとして登録する。
+     * @param out 出力先
+     */
+    public void write(IndexWriter out) {
+	out.add(IndexFormat.AC_FAIL,        fail);
+	out.add(IndexFormat.AC_OUTPUT,      output);
+	out.add(IndexFormat.AC_NEXT_OUTPUT, nextOutput);
+	out.add(IndexFormat.AC_KEY_LENGTH,  keyLength);
+    }
+
+    /**
+     * 文字列中に出現する全てのキーを報告する。
+     *
+     * @param text 走査対象の文字列
+     * @param fn 出現位置およびキーのIDを受け取るコールバック
+     */
+    public void scan(CharSequence text, Trie.ScanCallback fn) {
+	int state = 0;
+	for(int i=0; i < text.length(); i++) {
+	    state = step(state, text.charAt(i));
+	    report(state, i+1, fn);
+	}
+    }
+
+    /**
+     * 文字ストリーム中に出現する全てのキーを報告する。<br />
+     * ストリームは終端まで読み込まれるが、クローズはされない。
+     *
+     * @param in 走査対象の文字ストリーム
+     * @param fn 出現位置およびキーのIDを受け取るコールバック
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public void scan(Reader in, Trie.ScanCallback fn) throws IOException {
+	final char[] buf = new char[8192];
+	long offset = 0;
+	int state = 0;
+	for(int len=in.read(buf); len != -1; len=in.read(buf)) {
+	    for(int i=0; i < len; i++) {
+		state = step(state, buf[i]);
+		report(state, offset+i+1, fn);
+	    }
+	    offset += len;
+	}
+    }
+
+    private void report(final int state, final long end, Trie.ScanCallback fn) {
+	for(int id=output.get(state); id != -1; id=nextOutput.get(id))
+	    fn.found(end-keyLength.get(id), end, id);
+    }
+
+    // follows failure links from 'state' until 'ch' can be consumed
+    private int step(int state, final int ch) {
+	for(;;) {
+	    final int next = transit(state, ch);
+	    if(next != -1)
+		return next;
+	    if(state == 0)
+		return 0;
+	    state = fail.get(state);
+	}
+    }
+
+    private int transit(final int state, final int ch) {
+	final int nodeCount = nodes.size();
+	final int pos;
+	if(state < nodeCount) {
+	    final int base = nodes.base(state);
+	    if(base >= 0)
+		return nodes.next(state, codes.code(ch+1));
+	    pos = -base;
+	} else {
+	    pos = state-nodeCount+1;
+	}
+	final int t = tail.charAt(pos);
+	return t != '\0' && t == ch ? nodeCount+pos : -1;
+    }
+}
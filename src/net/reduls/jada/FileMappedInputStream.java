@@ -4,22 +4,86 @@ import java.io.IOException;
 import java.io.FileInputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * ファイルにマッピングされた入力ストリーム。<br />
- * 効率のために、多バイトデータは、ホストマシンのエンディアンに応じて解釈される。
+ * ファイル全体は、インスタンス作成時に一度だけマッピングされる。
+ * ただし、一つのマッピングの大きさはintの範囲に制限されるため、それを超えるファイルの場合は先頭の2GBのみがマッピングされ、
+ * それ以降の領域は{@link #slice}の呼び出し毎に個別にマッピングされる。<br />
+ * 多バイトデータは、デフォルトではホストマシンのエンディアンに応じて解釈される。{@link #order}メソッドで変更可能。
  */
 final class FileMappedInputStream {
+    // sun.misc.Unsafe.invokeCleaner (Java 9 or later). null if it is not available
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+	Object unsafe = null;
+	Method invokeCleaner = null;
+	try {
+	    final Class<?> c = Class.forName("sun.misc.Unsafe");
+	    final Field f = c.getDeclaredField("theUnsafe");
+	    f.setAccessible(true);
+	    invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+	    unsafe = f.get(null);
+	} catch (Exception e) {
+	    unsafe = null;
+	}
+	UNSAFE = unsafe;
+	INVOKE_CLEANER = invokeCleaner;
+    }
+
     private final FileChannel cnl;
-    private int cur=0;
+    private final ByteBuffer mbb;
+    private final long size;
+    private final List<ByteBuffer> mappings = new ArrayList<ByteBuffer>(); // このストリームが作成した全てのマッピング
 
     public FileMappedInputStream(String filepath) throws IOException {
 	cnl = new FileInputStream(filepath).getChannel();
+	try {
+	    size = cnl.size();
+	    mbb = cnl.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE)).order(ByteOrder.nativeOrder());
+	    mappings.add(mbb);
+	} catch (IOException e) {
+	    cnl.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * 多バイトデータの解釈に用いるバイトオーダを設定する。
+     * @param bo バイトオーダ
+     */
+    public void order(ByteOrder bo) { mbb.order(bo); }
+
+    /**
+     * ストリーム内での現在位置を返す。
+     * @return ストリーム内での現在位置
+     */
+    public int position() { return mbb.position(); }
+
+    /**
+     * ストリーム内での現在位置を設定する。
+     * @param pos 新しい位置
+     */
+    public void position(int pos) { mbb.position(pos); }
+
+    public byte getByte() throws IOException {
+	return mbb.get();
     }
 
     public int getInt() throws IOException {
-	return map(4).getInt();
+	return mbb.getInt();
+    }
+
+    public long getLong() throws IOException {
+	return mbb.getLong();
     }
     
     public int[] getIntArray(int elementCount) throws IOException {
@@ -40,22 +104,99 @@ final class FileMappedInputStream {
 	return ary;
     }
 
+    /**
+     * 指定された要素数分の領域をマッピングし、そのビューを返す。<br />
+     * {@link #getIntArray}とは異なり、ヒープへのコピーは行われない。
+     * 返されたバッファは、ストリームのクローズ後も有効。
+     *
+     * @param elementCount 要素数
+     * @return マッピングされた領域のビュー
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public IntBuffer mapIntBuffer(int elementCount) throws IOException {
+	return map(elementCount*4).asIntBuffer();
+    }
+
+    /**
+     * 指定された要素数分の領域をマッピングし、そのビューを返す。<br />
+     * {@link #getCharArray}とは異なり、ヒープへのコピーは行われない。
+     * 返されたバッファは、ストリームのクローズ後も有効。
+     *
+     * @param elementCount 要素数
+     * @return マッピングされた領域のビュー
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public CharBuffer mapCharBuffer(int elementCount) throws IOException {
+	return map(elementCount*2).asCharBuffer();
+    }
+
     public String getString(int elementCount) throws IOException {
 	return map(elementCount*2).asCharBuffer().toString();
     }
 
-    public int size() throws IOException {
-	return (int)cnl.size();
+    /**
+     * ストリーム内の任意の領域のビューを返す。<br />
+     * ストリーム内の現在位置は変更されない。
+     *
+     * @param offset 領域の開始位置
+     * @param length 領域のバイト長。intの範囲に収まる必要がある
+     * @return 領域のビュー。バイトオーダはストリームのものを引き継ぐ。
+     * @throws IOException 入力エラーが生じた場合、あるいは領域が大き過ぎる場合に送出される
+     */
+    public ByteBuffer slice(long offset, long length) throws IOException {
+	if(length > Integer.MAX_VALUE)
+	    throw new IOException("Too large region to map: "+length+" bytes");
+	if(offset+length > mbb.limit()) {
+	    final ByteBuffer buf = cnl.map(FileChannel.MapMode.READ_ONLY, offset, length).order(mbb.order());
+	    mappings.add(buf);
+	    return buf;
+	}
+	
+	final ByteBuffer dup = mbb.duplicate();
+	dup.position((int)offset).limit((int)(offset+length));
+	return dup.slice().order(mbb.order());
+    }
+
+    public long size() throws IOException {
+	return size;
     }
 
-    public void close() {
+    public void close() throws IOException {
+	cnl.close();
+    }
+
+    /**
+     * このストリームがこれまでに作成したマッピングのリストを返す。<br />
+     * {@link #slice}等が返したビューは、全てこのリスト内のいずれかのマッピングを参照している。
+     * @return マッピングのリスト
+     */
+    public List<ByteBuffer> mappings() {
+	return new ArrayList<ByteBuffer>(mappings);
+    }
+
+    /**
+     * マッピングを即座に解除する。<br />
+     * 通常、マッピングはバッファがGCにより回収されるまで解除されない。
+     * 解除後にマッピングを参照する(ビューを含む)バッファにアクセスすると、JVMがクラッシュし得るため、呼び出し側で参照が残っていないことを保証する必要がある。<br />
+     * JVMが即座の解除に対応していない場合は何もしない。
+     *
+     * @param mapping {@link #mappings}が返したマッピング
+     * @return マッピングを解除した場合はtrue
+     */
+    public static boolean unmap(ByteBuffer mapping) {
+	if(UNSAFE == null || mapping.isDirect()==false)
+	    return false;
 	try {
-	    cnl.close();
-	} catch (IOException e) {}
+	    INVOKE_CLEANER.invoke(UNSAFE, mapping);
+	    return true;
+	} catch (Exception e) {
+	    return false;
+	}
     }
 
     private ByteBuffer map(int size) throws IOException {
-	cur += size;
-	return cnl.map(FileChannel.MapMode.READ_ONLY, cur-size, size).order(ByteOrder.nativeOrder());
+	final ByteBuffer buf = slice(mbb.position(), size);
+	mbb.position(mbb.position()+size);
+	return buf;
     }
-}
\ No newline at end of file
+}
@@ -3,38 +3,155 @@ package net.reduls.jada;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
 
 /**
  * ファイルにマッピングされた出力ストリーム。<br />
- * 効率のために、多バイトデータは、ホストマシンのエンディアンに従い出力される。
+ * 効率のために、多バイトデータは、ホストマシンのエンディアンに従い出力される。<br />
+ * 一つのマッピングの大きさはintの範囲に制限されるため、ファイルは{@code 2^CHUNK_SHIFT}バイト単位の複数の領域に分けてマッピングされる。
+ * 多バイトデータの書き込み位置はその要素のバイト長の倍数である必要がある(その場合、要素が領域の境界を跨ぐことはない)。
  */
 final class FileMappedOutputStream {
-    private final MappedByteBuffer mbb;
+    private static final int CHUNK_SHIFT = 30; // 1GB
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    
+    private final MappedByteBuffer[] chunks;
+    private MappedByteBuffer mbb; // 現在位置を含む領域
+    private long position = 0;
 
-    public FileMappedOutputStream(String filepath, int size) throws IOException {
+    public FileMappedOutputStream(String filepath, long size) throws IOException {
 	new File(filepath).delete();
 	
+	chunks = new MappedByteBuffer[(int)((size+CHUNK_SIZE-1) >>> CHUNK_SHIFT)];
 	final FileChannel cnl = new RandomAccessFile(filepath,"rw").getChannel();
 	try {
-	    mbb = cnl.map(FileChannel.MapMode.READ_WRITE, 0, size);
-	    mbb.order(ByteOrder.nativeOrder());
+	    for(int i=0; i < chunks.length; i++) {
+		final long offset = (long)i << CHUNK_SHIFT;
+		chunks[i] = cnl.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(CHUNK_SIZE, size-offset));
+		chunks[i].order(ByteOrder.nativeOrder());
+	    }
 	} finally {
 	    cnl.close();
 	}
+	position(0);
     }
 
-    public void putInt(int value)     throws IOException { mbb.putInt(value); }
-    public void putChar(char value)   throws IOException { mbb.putChar(value); }
-    public void putShort(short value) throws IOException { mbb.putShort(value); }
+    public long position() { return position; }
+    public void position(long pos) { 
+	position = pos;
+	final int chunk = (int)(pos >>> CHUNK_SHIFT);
+	if(chunk < chunks.length) {
+	    mbb = chunks[chunk];
+	    mbb.position((int)(pos & (CHUNK_SIZE-1)));
+	} else { 
+	    // the end of the last chunk
+	    mbb = chunks[chunks.length-1];
+	    mbb.position(mbb.capacity());
+	}
+    }
+    public ByteOrder order() { return ByteOrder.nativeOrder(); }
+
+    public void putByte(byte value)   throws IOException { room(1).put(value); }
+    public void putInt(int value)     throws IOException { room(4).putInt(value); }
+    public void putLong(long value)   throws IOException { room(8).putLong(value); }
+    public void putChar(char value)   throws IOException { room(2).putChar(value); }
+    public void putShort(short value) throws IOException { room(2).putShort(value); }
     public void putString(String src) throws IOException {
-	mbb.asCharBuffer().put(src);
-	mbb.position(mbb.position()+src.length()*2);
+	putChars(CharBuffer.wrap(src));
+    }
+    public void putBytes(ByteBuffer src) throws IOException {
+	final ByteBuffer dup = src.duplicate();
+	while(dup.hasRemaining()) {
+	    final int n = part(dup, 1);
+	    final ByteBuffer part = dup.duplicate();
+	    part.limit(part.position()+n);
+	    room(n).put(part);
+	    dup.position(dup.position()+n);
+	}
+    }
+    public void putInts(IntBuffer src) throws IOException {
+	final IntBuffer dup = src.duplicate();
+	while(dup.hasRemaining()) {
+	    final int n = part(dup, 4);
+	    final IntBuffer part = dup.duplicate();
+	    part.limit(part.position()+n);
+	    room(n*4).asIntBuffer().put(part);
+	    advance(n*4);
+	    dup.position(dup.position()+n);
+	}
+    }
+    public void putLongs(LongBuffer src) throws IOException {
+	final LongBuffer dup = src.duplicate();
+	while(dup.hasRemaining()) {
+	    final int n = part(dup, 8);
+	    final LongBuffer part = dup.duplicate();
+	    part.limit(part.position()+n);
+	    room(n*8).asLongBuffer().put(part);
+	    advance(n*8);
+	    dup.position(dup.position()+n);
+	}
+    }
+    public void putChars(CharBuffer src) throws IOException {
+	final CharBuffer dup = src.duplicate();
+	while(dup.hasRemaining()) {
+	    final int n = part(dup, 2);
+	    final CharBuffer part = dup.duplicate();
+	    part.limit(part.position()+n);
+	    room(n*2).asCharBuffer().put(part);
+	    advance(n*2);
+	    dup.position(dup.position()+n);
+	}
+    }
+
+    /**
+     * 出力済みの領域のCRC32チェックサムを計算する。
+     *
+     * @param offset 領域の開始位置
+     * @param length 領域のバイト長
+     * @return チェックサム
+     */
+    public int checksum(long offset, long length) {
+	final CRC32 crc = new CRC32();
+	for(long end=offset+length; offset < end;) {
+	    final ByteBuffer dup = chunks[(int)(offset >>> CHUNK_SHIFT)].duplicate();
+	    final int beg = (int)(offset & (CHUNK_SIZE-1));
+	    dup.limit((int)Math.min(dup.capacity(), beg+(end-offset))).position(beg);
+	    offset += dup.remaining();
+	    crc.update(dup);
+	}
+	return (int)crc.getValue();
     }
 
     public void close() {
-	mbb.force();
+	for(MappedByteBuffer chunk : chunks)
+	    chunk.force();
+    }
+
+    // returns the chunk buffer to write 'bytes' bytes at the current position, and advances the position
+    private ByteBuffer room(final int bytes) {
+	if(mbb.remaining() == 0)
+	    position(position);
+	position += bytes;
+	return mbb;
+    }
+
+    // moves the position of the current chunk buffer after a write through a view buffer
+    private void advance(final int bytes) {
+	mbb.position(mbb.position()+bytes);
+    }
+
+    // returns the number of elements of 'src' that fit in the rest of the current chunk
+    private int part(final Buffer src, final int elementBytes) {
+	if(mbb.remaining() == 0)
+	    position(position);
+	return Math.min(src.remaining(), mbb.remaining()/elementBytes);
     }
-}
\ No newline at end of file
+}
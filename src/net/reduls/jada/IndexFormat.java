@@ -0,0 +1,61 @@
+package net.reduls.jada;
+
+/**
+ * インデックスファイル(バージョン2)のフォーマット定義。<br />
+ * <br />
+ * ファイルは、固定長のヘッダ、セクションテーブル、各セクションのデータ、の順に並ぶ。<br />
+ * 多バイトデータは全て、ヘッダのバイトオーダマーカが示すバイトオーダで格納される。
+ * <pre>
+ * [ヘッダ: 24byte]
+ *   magic         : 4byte  'J' 'A' 'D' 'A'
+ *   byte order    : int    0x01020304
+ *   version       : int    
+ *   flags         : int    (予約。現状は常に0)
+ *   section count : int
+ *   reserved      : int
+ * [セクションテーブル: 24byte * セクション数]
+ *   id            : int
+ *   crc32         : int    セクションデータのCRC32チェックサム
+ *   offset        : long   ファイル先頭からのセクションデータの開始位置(8byte境界に揃えられる)
+ *   length        : long   セクションデータのバイト長
+ * [セクションデータ]
+ * </pre>
+ * 読み込み側は、未知のIDを持つセクションを無視する。<br />
+ * そのため、後方互換性を保ったままセクションを追加することが可能。<br />
+ * マジックナンバーを持たないファイルは、バージョン1(ヘッダ無しのネイティブエンディアン形式)として扱われる。
+ */
+final class IndexFormat {
+    private IndexFormat() {}
+
+    public static final byte[] MAGIC = {'J','A','D','A'};
+    public static final int BYTE_ORDER_MARK = 0x01020304;
+    public static final int VERSION = 2;
+
+    public static final int HEADER_SIZE = 24;
+    public static final int SECTION_ENTRY_SIZE = 24;
+    public static final int ALIGNMENT = 8;
+
+    // section ids
+    public static final int BV_BLOCKS = 1;  // ID算出用ビット配列: ビットブロック (int[])
+    public static final int BV_RANK   = 2;  // ID算出用ビット配列: ブロック毎のrankインデックス (int[])。読み込みのみサポート
+    public static final int CHARCODE  = 3;  // 文字コード値から遷移コードへの密なマッピングテーブル (int[])。読み込みのみサポート
+    public static final int BASE      = 4;  // BASE配列 (int[])
+    public static final int CHECK     = 5;  // CHECK配列 (int[])
+    public static final int TAIL      = 6;  // TAIL配列 (char[])
+    public static final int CODES     = 7;  // 遷移コードから文字コード値+1への逆変換テーブル (int[])
+    public static final int NODES     = 8;  // BASE値(上位32bit)とCHECK値(下位32bit)を隣接させたノード配列 (long[])。BASE/CHECKの代替
+    public static final int BV_RANK8  = 9;  // ID算出用ビット配列: 8ブロック毎のrankインデックス (int[])。BV_RANKの代替
+    public static final int TAIL_LATIN1 = 10; // ISO-8859-1で符号化されたTAIL配列 (byte[])。TAILの代替
+    public static final int UNITS     = 11; // 32bit単位のノード配列 (int[])。BASE/CHECKの代替
+    public static final int LEAF_TAIL = 12; // IDから、葉ノードの末尾文字列のTAIL配列内での開始位置へのテーブル (int[])。UNITSと共に使用される
+    public static final int AC_FAIL   = 13; // Aho-Corasick: 状態から失敗時の遷移先状態へのテーブル (int[])
+    public static final int AC_OUTPUT = 14; // Aho-Corasick: 状態から受理される最長のキーのIDへのテーブル (int[])
+    public static final int AC_NEXT_OUTPUT = 15; // Aho-Corasick: IDから同じ状態で受理される次に短いキーのIDへのテーブル (int[])
+    public static final int AC_KEY_LENGTH  = 16; // Aho-Corasick: IDからキーの長さへのテーブル (int[])
+    public static final int BV_SELECT = 17; // ID算出用ビット配列: 256個の1bit毎のselectインデックス (int[])。無い場合は読み込み後に作成される
+    public static final int TAIL_UTF8 = 18; // UTF-8(CESU-8)で符号化されたTAIL配列 (byte[])。TAILの代替。葉ノードのBASE値はbyte単位の位置を表す
+    public static final int VALUES    = 19; // IDから、キーに対応付けられた値へのビット詰めされたテーブル (long[])。先頭3要素は値の数、ビット幅、最小値
+    public static final int LEX_LOW   = 20; // 辞書順のID: ノードから、部分木に含まれるキーの最小のIDへのテーブル (int[])。葉ノードの場合はキーのID
+    public static final int LEX_HIGH  = 21; // 辞書順のID: ノードから、部分木に含まれるキーの最大のID+1へのテーブル (int[])
+    public static final int LEX_LEAF  = 22; // 辞書順のID: IDから葉ノードへのテーブル (int[])
+}
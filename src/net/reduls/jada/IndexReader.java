@@ -0,0 +1,133 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.CharBuffer;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * {@link IndexFormat}形式のインデックスファイルを読み込むクラス。<br />
+ * ファイルは一度だけマッピングされ、各セクションはそのビューとして参照される。
+ */
+final class IndexReader {
+    private final FileMappedInputStream in;
+    private final int version;
+    private final Map<Integer,Entry> sections = new HashMap<Integer,Entry>();
+
+    /**
+     * 入力ストリームの先頭にインデックスファイルのヘッダが存在するかどうかを判定する。<br />
+     * ストリーム内の現在位置は変更されない。
+     *
+     * @param in 入力ストリーム
+     * @return ヘッダが存在する場合はtrue
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static boolean hasHeader(FileMappedInputStream in) throws IOException {
+	if(in.size() < IndexFormat.HEADER_SIZE)
+	    return false;
+	final ByteBuffer head = in.slice(0, IndexFormat.MAGIC.length);
+	for(byte b : IndexFormat.MAGIC)
+	    if(head.get() != b)
+		return false;
+	return true;
+    }
+
+    /**
+     * ヘッダおよびセクションテーブルを読み込み、{@link IndexReader}インスタンスを作成する。
+     * 
+     * @param in インデックスファイルの入力ストリーム
+     * @throws IOException 入力エラーが生じた場合、あるいはファイルの形式が不正な場合に送出される
+     */
+    public IndexReader(FileMappedInputStream in) throws IOException {
+	this.in = in;
+	if(hasHeader(in)==false)
+	    throw new IOException("Not a jada index file");
+
+	in.position(IndexFormat.MAGIC.length);
+	in.order(ByteOrder.BIG_ENDIAN);
+	final int bom = in.getInt();
+	if(bom == IndexFormat.BYTE_ORDER_MARK)
+	    in.order(ByteOrder.BIG_ENDIAN);
+	else if(bom == Integer.reverseBytes(IndexFormat.BYTE_ORDER_MARK))
+	    in.order(ByteOrder.LITTLE_ENDIAN);
+	else
+	    throw new IOException("Broken byte order mark: "+Integer.toHexString(bom));
+
+	version = in.getInt();
+	if(version > IndexFormat.VERSION)
+	    throw new IOException("Unsupported index file version: "+version);
+	in.getInt(); // flags
+	final int sectionCount = in.getInt();
+	in.getInt(); // reserved
+
+	for(int i=0; i < sectionCount; i++) {
+	    final Entry e = new Entry(in.getInt(), in.getInt(), in.getLong(), in.getLong());
+	    if(e.offset < 0 || e.length < 0 || e.offset+e.length > in.size())
+		throw new IOException("Section "+e.id+" is out of file bounds");
+	    sections.put(e.id, e);
+	}
+    }
+
+    public int version() { return version; }
+
+    public boolean has(int id) { return sections.containsKey(id); }
+
+    /**
+     * セクションデータのビューを返す。
+     *
+     * @param id セクションID
+     * @return セクションデータのビュー。バイトオーダはファイルのものに設定済み。
+     * @throws IOException 指定されたセクションが存在しない場合、あるいはセクションが2GB以上の場合に送出される
+     */
+    public ByteBuffer section(int id) throws IOException {
+	final Entry e = sections.get(id);
+	if(e == null)
+	    throw new IOException("Missing section: "+id);
+	return in.slice(e.offset, e.length);
+    }
+
+    public IntBuffer intSection(int id) throws IOException {
+	return section(id).asIntBuffer();
+    }
+
+    public LongBuffer longSection(int id) throws IOException {
+	return section(id).asLongBuffer();
+    }
+
+    public CharBuffer charSection(int id) throws IOException {
+	return section(id).asCharBuffer();
+    }
+
+    /**
+     * 全セクションのCRC32チェックサムを検証する。
+     *
+     * @throws IOException チェックサムが一致しないセクションが存在する場合に送出される
+     */
+    public void verify() throws IOException {
+	for(Entry e : sections.values()) {
+	    final CRC32 crc = new CRC32();
+	    crc.update(section(e.id));
+	    if((int)crc.getValue() != e.crc)
+		throw new IOException("Checksum mismatch in section "+e.id);
+	}
+    }
+
+    private static class Entry {
+	public final int id;
+	public final int crc;
+	public final long offset;
+	public final long length;
+
+	public Entry(int id, int crc, long offset, long length) {
+	    this.id = id;
+	    this.crc = crc;
+	    this.offset = offset;
+	    this.length = length;
+	}
+    }
+}
@@ -0,0 +1,123 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * {@link IndexFormat}形式のインデックスファイルを書き出すクラス。<br />
+ * {@link #add}メソッドで各セクションのデータを登録した後に、{@link #write}メソッドを呼び出す。
+ */
+final class IndexWriter {
+    private final List<Section> sections = new ArrayList<Section>();
+
+    /**
+     * byte配列のセクションを登録する。<br />
+     * バッファの現在位置からリミットまでが出力対象となる。
+     *
+     * @param id セクションID
+     * @param data セクションデータ
+     */
+    public void add(int id, ByteBuffer data) {
+	sections.add(new Section(id, data, data.remaining()));
+    }
+
+    /**
+     * int配列のセクションを登録する。<br />
+     * バッファの現在位置からリミットまでが出力対象となる。
+     *
+     * @param id セクションID
+     * @param data セクションデータ
+     */
+    public void add(int id, IntBuffer data) {
+	sections.add(new Section(id, data, (long)data.remaining()*4));
+    }
+
+    /**
+     * long配列のセクションを登録する。<br />
+     * バッファの現在位置からリミットまでが出力対象となる。
+     *
+     * @param id セクションID
+     * @param data セクションデータ
+     */
+    public void add(int id, LongBuffer data) {
+	sections.add(new Section(id, data, (long)data.remaining()*8));
+    }
+
+    /**
+     * char配列のセクションを登録する。<br />
+     * バッファの現在位置からリミットまでが出力対象となる。
+     *
+     * @param id セクションID
+     * @param data セクションデータ
+     */
+    public void add(int id, CharBuffer data) {
+	sections.add(new Section(id, data, (long)data.remaining()*2));
+    }
+
+    /**
+     * 登録されたセクションをファイルに書き出す。
+     *
+     * @param filepath 出力先ファイルのパス
+     * @throws IOException 出力エラーが生じた場合に送出される
+     */
+    public void write(String filepath) throws IOException {
+	long size = align(IndexFormat.HEADER_SIZE + IndexFormat.SECTION_ENTRY_SIZE*sections.size());
+	for(Section s : sections) {
+	    s.offset = size;
+	    size = align(size + s.length);
+	}
+	
+	final FileMappedOutputStream out = new FileMappedOutputStream(filepath, size);
+	try {
+	    for(Section s : sections) {
+		out.position(s.offset);
+		if(s.data instanceof ByteBuffer)      out.putBytes((ByteBuffer)s.data);
+		else if(s.data instanceof IntBuffer)  out.putInts((IntBuffer)s.data);
+		else if(s.data instanceof LongBuffer) out.putLongs((LongBuffer)s.data);
+		else                                  out.putChars((CharBuffer)s.data);
+		s.crc = out.checksum(s.offset, s.length);
+	    }
+	    
+	    out.position(0);
+	    for(byte b : IndexFormat.MAGIC)
+		out.putByte(b);
+	    out.putInt(IndexFormat.BYTE_ORDER_MARK);
+	    out.putInt(IndexFormat.VERSION);
+	    out.putInt(0);
+	    out.putInt(sections.size());
+	    out.putInt(0);
+	    for(Section s : sections) {
+		out.putInt(s.id);
+		out.putInt(s.crc);
+		out.putLong(s.offset);
+		out.putLong(s.length);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static long align(long size) {
+	return (size + IndexFormat.ALIGNMENT-1) / IndexFormat.ALIGNMENT * IndexFormat.ALIGNMENT;
+    }
+
+    private static class Section {
+	public final int id;
+	public final Buffer data;
+	public final long length;
+	public long offset;
+	public int crc;
+
+	public Section(int id, Buffer data, long length) {
+	    this.id = id;
+	    this.data = data;
+	    this.length = length;
+	}
+    }
+}
@@ -0,0 +1,85 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/**
+ * キーの辞書順に基づくIDの割り当て。<br />
+ * <br />
+ * 各ノードについて、そのノード以下の部分木に含まれるキーのIDの範囲{@code [low,high)}を保持する。
+ * IDはキーの辞書順(文字のコード値の昇順)に割り当てられるため、部分木に含まれるキーのIDは常に連続した範囲となる。
+ * 葉ノードの範囲は一つのキーのみを含み、その{@code low}がキーのIDとなる。<br />
+ * また、IDから葉ノードへの逆引きテーブルを保持する。<br />
+ * 未使用のノードの範囲は{@code [0,0)}。
+ */
+final class KeyOrder {
+    private final IntBuffer low;    // ノード => 部分木に含まれるキーの最小のID
+    private final IntBuffer high;   // ノード => 部分木に含まれるキーの最大のID+1
+    private final IntBuffer leaves; // キーのID => 葉ノード
+
+    KeyOrder(IntBuffer low, IntBuffer high, IntBuffer leaves) {
+	this.low = low;
+	this.high = high;
+	this.leaves = leaves;
+    }
+
+    /**
+     * ノードの部分木に含まれるキーの最小のIDを返す。葉ノードの場合は、そのキーのIDとなる。
+     * @param node ノード
+     * @return ID
+     */
+    public int low(int node) { return low.get(node); }
+
+    /**
+     * ノードの部分木に含まれるキーの最大のID+1を返す。
+     * @param node ノード
+     * @return ID+1
+     */
+    public int high(int node) { return high.get(node); }
+
+    /**
+     * IDに対応する葉ノードを返す。
+     * @param id キーのID
+     * @return 葉ノード
+     */
+    public int leaf(int id) { return leaves.get(id); }
+
+    /**
+     * 葉ノードに対応するキーのIDを返す。<br />
+     * {@link Trie}のIDを返す全ての操作と{@link FailureLinks}は、このメソッドでIDを求める。
+     *
+     * @param order 辞書順のIDの割り当て。nullの場合は、ビット配列のrankをIDとする
+     * @param bv ID算出用のビット配列
+     * @param leaf 葉ノード
+     * @return キーのID
+     */
+    public static int id(KeyOrder order, BitVector bv, int leaf) {
+	return order==null ? bv.rank(leaf) : order.low.get(leaf);
+    }
+
+    /**
+     * インデックスファイルからIDの割り当てを読み込む。
+     *
+     * @param in 入力元
+     * @param copy trueならデータをヒープ上にコピーする。falseならマッピングされた領域を直接参照する
+     * @return IDの割り当て。セクションが存在しない場合はnull
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static KeyOrder read(IndexReader in, boolean copy) throws IOException {
+	if(in.has(IndexFormat.LEX_LOW)==false)
+	    return null;
+	return new KeyOrder(Buffers.copyIf(copy, in.intSection(IndexFormat.LEX_LOW)),
+			    Buffers.copyIf(copy, in.intSection(IndexFormat.LEX_HIGH)),
+			    Buffers.copyIf(copy, in.intSection(IndexFormat.LEX_LEAF)));
+    }
+
+    /**
+     * IDの割り当てをインデックスファイルのセクションとして登録する。
+     * @param out 出力先
+     */
+    public void write(IndexWriter out) {
+	out.add(IndexFormat.LEX_LOW,  low);
+	out.add(IndexFormat.LEX_HIGH, high);
+	out.add(IndexFormat.LEX_LEAF, leaves);
+    }
+}
@@ -1,76 +1,236 @@
 package net.reduls.jada;
 
-import java.util.List;
+import java.nio.IntBuffer;
 
 /**
- * DoubleArray-Trie構築時に使用ノードの割り当てを行うクラス。
+ * DoubleArray-Trie構築時に使用ノードの割り当てを行うクラス。<br />
+ * <br />
+ * ノードの使用状況はビットマップで管理され、ベースノードの候補は64個単位でまとめて調べられる。
+ * 64個の候補に対して、各子ノードの遷移コード分ずらした使用状況のビット列の論理和を取ることで、割り当て不可能な候補が一度に求まる。<br />
+ * また、ほぼ使用済みとなった先頭側の領域は、以降の探索対象から外される。<br />
+ * 子の数が多いコードセットは、配列の空きが少ない領域にはほとんど配置できないため、一定数の候補を調べて見つからなかった場合は、
+ * 同程度の子の数を持つコードセットを前回割り当てた位置まで探索を読み飛ばす。
  */
 final class NodeAllocator {
-    private int freeNext[];
-    private int freePrev[];
+    private static final int CLOSE_BITS = 62;   // 64ノード中これ以上が使用済みの領域は、以降の探索対象から外す
+    private static final int WIDE_CLASS = 7;    // 子の数が2^7=128以上のコードセットは、読み飛ばしの対象となる
+    private static final int MAX_WINDOWS = 256; // 読み飛ばしを行うまでに調べる、64候補単位の探索回数
+    
+    private IntBuffer base;
+    private IntBuffer chck;
+    private int codeLimit;
+    private final WorkArea area;
+    private long used[];     // 使用済みのノード
+    private long usedBase[]; // 割り当て済みのベースノード
+    private int wideClass = WIDE_CLASS;   // 読み飛ばしの対象となる最小のサイズクラス
+    private int maxWindows = MAX_WINDOWS; // 読み飛ばしを行うまでに調べる、64候補単位の探索回数
+    private int scanWord = 0; // 探索を開始する位置(usedの要素のインデックス)。これより前の領域はほぼ使用済み
+    private final int[] wideStart = new int[32]; // 子の数が[2^k, 2^(k+1))のコードセットを、前回割り当てたベースノード
+
+    private long allocationCount = 0;
+    private long probeCount = 0;
     
     /**
      * {@link NodeAllocator}インスタンスを生成する。<br />
-     * このアロケータは、空きのノードをリンクリストにより管理する。<br />
-     * そのリンクリスト用の領域は、トライのBASE及びCHECK配列と共有する。
+     * 未使用のノードはCHECK値が負の値となり、割り当て済みのノードはBASE値およびCHECK値が{@link #headIndex}に初期化される。<br />
+     * 配列のサイズが不足した場合、アロケータは{@code area}を用いて配列を拡張する。拡張後の配列は{@link #base}および{@link #check}で取得する。
      *
-     * @param base トライのBASE配列。空きノード管理用リンクリストの後方へのリンク保持用として用いられる。
-     * @param chck トライのCHECK配列。空きノード管理用リンクリストの前方へのリンク保持用として用いられる。
+     * @param base トライのBASE配列
+     * @param chck トライのCHECK配列
      * @param codeLimit トライ構築対象となる入力キーセットに含まれる文字のコード値の最大値
+     * @param area 配列の拡張に用いる作業領域。{@code base}および{@code chck}は、この作業領域から確保されたものである必要がある
      */
-    public NodeAllocator(int base[], int chck[], final int codeLimit) {
-        freeNext = base;
-        freePrev = chck;
+    public NodeAllocator(IntBuffer base, IntBuffer chck, final int codeLimit, WorkArea area) {
+	this.base = base;
+	this.chck = chck;
+	this.codeLimit = codeLimit;
+	this.area = area;
+	used = new long[(base.limit()+63)/64];
+	usedBase = new long[used.length];
 	
-	for(int i=0; i < codeLimit; i++) 
-	    freePrev[i] = freeNext[i] = 1;
-
-	for(int i=codeLimit; i < base.length; i++) {
-	    freePrev[i]=-(i-1);
-	    freeNext[i]=-(i+1);
+	for(int i=0; i < base.limit(); i++) {
+	    base.put(i, 0);
+	    chck.put(i, -1);
+	}
+	for(int i=0; i < codeLimit; i++) {
+	    base.put(i, headIndex());
+	    chck.put(i, headIndex());
+	    setBit(used, i);
 	}
-        
-        freeNext[headIndex()] = -codeLimit;
-	freePrev[codeLimit] = -headIndex();
+	setBit(usedBase, 0);
     }
     
     /**
-     * リンクリストの先端を返す
-     * @return リンクリストの先端のインデックス
+     * 割り当て済みだが、まだ親ノードが設定されていないノードのCHECK値を返す
+     * @return CHECK値
      */
     public static int headIndex() { return 1; }
+
+    /**
+     * BASE配列を返す。配列が拡張された場合は、拡張後の配列が返される。
+     * @return BASE配列
+     */
+    public IntBuffer base() { return base; }
+
+    /**
+     * CHECK配列を返す。配列が拡張された場合は、拡張後の配列が返される。
+     * @return CHECK配列
+     */
+    public IntBuffer check() { return chck; }
+
+    /**
+     * これまでに{@link #allocate}が呼び出された回数を返す。
+     * @return 割り当て回数
+     */
+    public long allocationCount() { return allocationCount; }
+
+    /**
+     * これまでに割り当て可能かどうかを調べたベースノードの候補数を返す。
+     * 候補は64個単位で調べられるため、実際の計算量はこの値の1/64程度となる。
+     * @return 候補数
+     */
+    public long probeCount() { return probeCount; }
     
     /**
      * 遷移に用いられるコードセットを受け取り、対応する有効なベースノードのインデックスを返す。<br />
-     * 各コードセットに対応するノードは、このメソッドから処理が戻る前に、'未使用'から'使用済'にマークが変更される。
+     * 各コードセットに対応するノードは、このメソッドから処理が戻る前に、'未使用'から'使用済'にマークが変更される。<br />
+     * 返されるインデックスは、呼び出し毎に異なることが保証される。
+     * そのため、遷移先ノードの正当性は、親ノードのインデックスの代わりに遷移コードとの比較でも判定可能となる({@link NodeLayout#PACKED}を参照)。
      * 
      * @param children 遷移に用いられるコードセット(= 子ノード(の遷移コード)セット)
+     * @param size コードセットの要素数
      * @return ベースノードのインデックス
      */
-    public int allocate(final List<Integer> children) {
-	int cur = -freeNext[headIndex()];
-	final int first = children.get(0);
-	
-	for(;; cur = -freeNext[-freeNext[-freeNext[cur]]]) {
-	    int x = cur - first;
-	    if(canAllocate(x, children)) {
-		for(Integer code : children)
-		    allocateImpl(x+code);
-		return x;
+    public int allocate(final int[] children, final int size) {
+	allocationCount++;
+	int minCode = children[0];
+	for(int i=1; i < size; i++)
+	    minCode = Math.min(minCode, children[i]);
+
+	final int sizeClass = 31-Integer.numberOfLeadingZeros(size);
+	int windows = 0;
+	for(int x=Math.max(1, scanWord*64-minCode);; x += 64) {
+	    if(++windows == maxWindows && sizeClass >= wideClass && x < wideStart[sizeClass])
+		x = wideStart[sizeClass];
+	    probeCount += 64;
+	    long conflicts = bits(usedBase, x);
+	    for(int i=0; i < size && conflicts != -1L; i++)
+		conflicts |= bits(used, x+children[i]);
+
+	    if(conflicts != -1L) {
+		final int found = x + Long.numberOfTrailingZeros(~conflicts);
+		allocateAt(found, children, size);
+		wideStart[sizeClass] = found;
+		return found;
 	    }
 	}
     }
 
-    private boolean canAllocate(final int x, final List<Integer> children) {
-	for(int i=1; i < children.size(); i++) 
-	    if(freePrev[x+children.get(i)]>=0) 
-		return false;
+    /**
+     * 指定されたノードが未使用の場合に、そのノードを'使用済'にマークする。<br />
+     * マークされたノードのBASE値およびCHECK値は{@link #headIndex}に初期化される。
+     * 配列のサイズが不足している場合は、配列を拡張する。<br />
+     * {@link DynamicTrie}が、既存のベースノードの空き位置に子ノードを追加する際に用いる。
+     *
+     * @param node ノード
+     * @return ノードが未使用だった場合はtrue。既に使用済みの場合はfalse
+     */
+    public boolean occupy(final int node) {
+	while(node >= base.limit())
+	    grow();
+	if((used[node >>> 6] & (1L << (node & 63))) != 0)
+	    return false;
+	base.put(node, headIndex());
+	chck.put(node, headIndex());
+	setBit(used, node);
 	return true;
     }
 
-    private void allocateImpl(final int node) {
-	freePrev[-freeNext[node]] = freePrev[node];
-	freeNext[-freePrev[node]] = freeNext[node];
-	freePrev[node] = freeNext[node] = 1;	
+    /**
+     * 使用済みのノードを解放し、'未使用'に戻す。<br />
+     * ノードのBASE値は0、CHECK値は-1に初期化される。解放されたノードは、以降の割り当てで再利用される。
+     *
+     * @param node ノード
+     */
+    public void release(final int node) {
+	base.put(node, 0);
+	chck.put(node, -1);
+	used[node >>> 6] &= ~(1L << (node & 63));
+	scanWord = Math.min(scanWord, node >>> 6);
+    }
+
+    /**
+     * {@link #allocate}が返したベースノードを解放する。以降の{@link #allocate}は、同じ値を再び返し得る。
+     *
+     * @param baseNode ベースノードのインデックス
+     */
+    public void releaseBase(final int baseNode) {
+	usedBase[baseNode >>> 6] &= ~(1L << (baseNode & 63));
+    }
+
+    /**
+     * 全てのサイズのコードセットを読み飛ばしの対象とする。<br />
+     * 解放されたノードが低位の領域に散在する場合に、子の多いコードセットの割り当てが毎回配列の末尾近くまで探索することを避ける。
+     *
+     * @param maxWindows 読み飛ばしを行うまでに調べる、64候補単位の探索回数
+     */
+    public void skipAllSizeClasses(final int maxWindows) {
+	this.wideClass = 0;
+	this.maxWindows = maxWindows;
+    }
+
+    /**
+     * 遷移コードの上限値を引き上げる。<br />
+     * 以降の割り当てでは、新しい上限値未満の全ての遷移コードが配列内に収まるように、配列が拡張される。
+     *
+     * @param codeLimit 新しい上限値。現在の値以下の場合は何もしない
+     */
+    public void extendCodeLimit(final int codeLimit) {
+	this.codeLimit = Math.max(this.codeLimit, codeLimit);
+    }
+
+    private void allocateAt(final int x, final int[] children, final int size) {
+	while(x+codeLimit > base.limit())
+	    grow();
+	
+	for(int i=0; i < size; i++) {
+	    final int node = x+children[i];
+	    base.put(node, headIndex());
+	    chck.put(node, headIndex());
+	    setBit(used, node);
+	}
+	setBit(usedBase, x);
+	
+	while(scanWord < used.length && Long.bitCount(used[scanWord]) >= CLOSE_BITS)
+	    scanWord++;
+    }
+
+    // returns the 64 bits of 'bitmap' starting at 'pos'. bits out of the bitmap are 0
+    static long bits(final long[] bitmap, final int pos) {
+	final int w = pos >>> 6;
+	final int s = pos & 63;
+	final long lo = w < bitmap.length ? bitmap[w] : 0;
+	if(s == 0)
+	    return lo;
+	final long hi = w+1 < bitmap.length ? bitmap[w+1] : 0;
+	return (lo >>> s) | (hi << (64-s));
+    }
+
+    static void setBit(final long[] bitmap, final int pos) {
+	bitmap[pos >>> 6] |= 1L << (pos & 63);
+    }
+
+    // extends the arrays by half. new nodes are unused
+    private void grow() {
+	final int oldLength = base.limit();
+	final int newLength = (int)Math.min(Integer.MAX_VALUE-8, oldLength + Math.max(oldLength/2L, codeLimit));
+	if(newLength == oldLength)
+	    throw new IllegalStateException("Too many nodes: "+oldLength);
+	base = area.extend(base, newLength);
+	chck = area.extend(chck, newLength);
+	for(int i=oldLength; i < newLength; i++)
+	    chck.put(i, -1);
+	used = java.util.Arrays.copyOf(used, (newLength+63)/64);
+	usedBase = java.util.Arrays.copyOf(usedBase, used.length);
     }
 }
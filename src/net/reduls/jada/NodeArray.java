@@ -0,0 +1,346 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * トライのノード(BASE値およびCHECK値)の配列。<br />
+ * 配置形式({@link NodeLayout})ごとに実装が用意されている。
+ * ヒープ上の配列を参照する実装と、マッピングされたファイルの領域(あるいは構築時の作業領域)をバッファ越しに参照する実装(Mapped～)がある。<br />
+ * BASE値が負のノードは葉ノードで、その値の符号を反転したものがTAIL配列内での末尾文字列の開始位置となる。
+ */
+abstract class NodeArray {
+    /**
+     * ノード数を返す。
+     * @return ノード数
+     */
+    public abstract int size();
+
+    /**
+     * ノードのBASE値を返す。
+     * @param node ノードのインデックス
+     * @return BASE値
+     */
+    public abstract int base(int node);
+
+    /**
+     * ノードから遷移コードによって遷移した先のノードを返す。
+     *
+     * @param node 遷移元ノードのインデックス。葉ノードであってはならない。
+     * @param code 遷移コード
+     * @return 遷移先ノードのインデックス。遷移先が存在しない場合は-1。
+     */
+    public abstract int next(int node, int code);
+
+    /**
+     * ノードの親ノードを返す。
+     * @param node ノードのインデックス。ルートノード以外。
+     * @return 親ノードのインデックス
+     * @throws UnsupportedOperationException 配置形式が親ノードの情報を保持しない場合に送出される
+     */
+    public abstract int parent(int node);
+
+    /**
+     * 配置形式を返す。
+     * @return 配置形式
+     */
+    public abstract NodeLayout layout();
+
+    /**
+     * ノード配列をインデックスファイルのセクションとして登録する。
+     * @param out 出力先
+     */
+    public abstract void write(IndexWriter out);
+
+    /**
+     * BASE配列およびCHECK配列から、指定された配置形式のノード配列を作成する。<br />
+     * 未使用のノードのBASE値は0に、CHECK値は負の値に設定されている必要がある。<br />
+     * {@link NodeLayout#SPLIT}形式の場合は、引数の配列はコピーされずにそのまま参照される。
+     * 配列がヒープ上にある場合はその配列が、そうでない場合はバッファが参照される。
+     *
+     * @param layout 配置形式
+     * @param base BASE配列
+     * @param chck CHECK配列
+     * @param codeLimit 遷移コードの上限値
+     * @param bv 葉ノードのIDを算出するためのビット配列
+     * @return ノード配列
+     * @throws IllegalStateException 指定された配置形式でトライを表現できない場合に送出される
+     */
+    public static NodeArray create(NodeLayout layout, IntBuffer base, IntBuffer chck, int codeLimit, BitVector bv) {
+	switch(layout) {
+	case PACKED:
+	    return Packed.create(base, chck, codeLimit, bv);
+	case INTERLEAVED: {
+	    final long[] units = new long[base.limit()];
+	    for(int i=0; i < units.length; i++)
+		units[i] = Interleaved.unit(base.get(i), chck.get(i));
+	    return new Interleaved(units);
+	}
+	default:
+	    if(base.hasArray() && chck.hasArray() && base.arrayOffset()==0 && chck.arrayOffset()==0)
+		return new Split(base.array(), chck.array(), base.limit());
+	    return new MappedSplit(base, chck);
+	}
+    }
+
+    /**
+     * インデックスファイルからノード配列を読み込む。
+     *
+     * @param in インデックスファイル
+     * @param copy trueの場合はデータをヒープ上の配列にコピーする。falseの場合はマッピングされた領域を直接参照する。
+     * @param codeLimit 遷移コードの上限値
+     * @param bv 葉ノードのIDを算出するためのビット配列
+     * @return ノード配列
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static NodeArray read(IndexReader in, boolean copy, int codeLimit, BitVector bv) throws IOException {
+	if(in.has(IndexFormat.UNITS)) {
+	    final IntBuffer units = in.intSection(IndexFormat.UNITS);
+	    final IntBuffer leafTail = in.intSection(IndexFormat.LEAF_TAIL);
+	    return copy ? new Packed(Buffers.toArray(units), Buffers.toArray(leafTail), codeLimit, bv)
+			: new MappedPacked(units, leafTail, codeLimit, bv);
+	}
+	if(in.has(IndexFormat.NODES)) {
+	    final LongBuffer units = in.longSection(IndexFormat.NODES);
+	    return copy ? new Interleaved(Buffers.toArray(units)) : new MappedInterleaved(units);
+	}
+	final IntBuffer base = in.intSection(IndexFormat.BASE);
+	final IntBuffer chck = in.intSection(IndexFormat.CHECK);
+	if(copy==false)
+	    return new MappedSplit(base, chck);
+	final int[] b = Buffers.toArray(base);
+	return new Split(b, Buffers.toArray(chck), b.length);
+    }
+
+    /**
+     * {@link NodeLayout#SPLIT}形式の実装。<br />
+     * 配列の先頭から{@code size}要素までを使用する。
+     */
+    static final class Split extends NodeArray {
+	private final int[] base;
+	private final int[] chck;
+	private final int size;
+
+	public Split(int[] base, int[] chck, int size) {
+	    this.base = base;
+	    this.chck = chck;
+	    this.size = size;
+	}
+
+	public int size() { return size; }
+	public int base(int node) { return base[node]; }
+	public int parent(int node) { return chck[node]; }
+	public NodeLayout layout() { return NodeLayout.SPLIT; }
+
+	public int next(int node, int code) {
+	    final int next = base[node] + code;
+	    return chck[next] == node ? next : -1;
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.BASE,  IntBuffer.wrap(base, 0, size));
+	    out.add(IndexFormat.CHECK, IntBuffer.wrap(chck, 0, size));
+	}
+    }
+
+    /**
+     * バッファを参照する{@link NodeLayout#SPLIT}形式の実装。
+     */
+    static final class MappedSplit extends NodeArray {
+	private final IntBuffer base;
+	private final IntBuffer chck;
+
+	public MappedSplit(IntBuffer base, IntBuffer chck) {
+	    this.base = base;
+	    this.chck = chck;
+	}
+
+	public int size() { return base.limit(); }
+	public int base(int node) { return base.get(node); }
+	public int parent(int node) { return chck.get(node); }
+	public NodeLayout layout() { return NodeLayout.SPLIT; }
+
+	public int next(int node, int code) {
+	    final int next = base.get(node) + code;
+	    return chck.get(next) == node ? next : -1;
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.BASE,  base);
+	    out.add(IndexFormat.CHECK, chck);
+	}
+    }
+
+    /**
+     * {@link NodeLayout#INTERLEAVED}形式の実装。<br />
+     * 各要素の上位32bitにBASE値を、下位32bitにCHECK値を保持する。
+     */
+    static final class Interleaved extends NodeArray {
+	private final long[] units;
+
+	public Interleaved(long[] units) {
+	    this.units = units;
+	}
+
+	public static long unit(int base, int chck) {
+	    return ((long)base << 32) | (chck & 0xFFFFFFFFL);
+	}
+
+	public int size() { return units.length; }
+	public int base(int node) { return (int)(units[node] >> 32); }
+	public int parent(int node) { return (int)units[node]; }
+	public NodeLayout layout() { return NodeLayout.INTERLEAVED; }
+
+	public int next(int node, int code) {
+	    final int next = (int)(units[node] >> 32) + code;
+	    return (int)units[next] == node ? next : -1;
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.NODES, LongBuffer.wrap(units));
+	}
+    }
+
+    /**
+     * バッファを参照する{@link NodeLayout#INTERLEAVED}形式の実装。
+     */
+    static final class MappedInterleaved extends NodeArray {
+	private final LongBuffer units;
+
+	public MappedInterleaved(LongBuffer units) {
+	    this.units = units;
+	}
+
+	public int size() { return units.limit(); }
+	public int base(int node) { return (int)(units.get(node) >> 32); }
+	public int parent(int node) { return (int)units.get(node); }
+	public NodeLayout layout() { return NodeLayout.INTERLEAVED; }
+
+	public int next(int node, int code) {
+	    final int next = (int)(units.get(node) >> 32) + code;
+	    return (int)units.get(next) == node ? next : -1;
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.NODES, units);
+	}
+    }
+
+    /**
+     * {@link NodeLayout#PACKED}形式の実装。<br />
+     * 各要素は、下位ビットから順に、ラベル(labelBitsビット)、葉ノードフラグ(1ビット)、BASE値(残りのビット)を保持する。<br />
+     * ラベルが0の要素は未使用のノードを表す。遷移コード0は常に遷移失敗となるため、未使用のノードへの遷移が成功することはない。
+     */
+    static final class Packed extends NodeArray {
+	private final int[] units;
+	private final int[] leafTail;
+	private final BitVector bv;
+	private final int labelMask;
+	private final int leafFlag;
+	private final int baseShift;
+
+	public Packed(int[] units, int[] leafTail, int codeLimit, BitVector bv) {
+	    this.units = units;
+	    this.leafTail = leafTail;
+	    this.bv = bv;
+	    
+	    final int labelBits = labelBits(codeLimit);
+	    labelMask = (1<<labelBits)-1;
+	    leafFlag = 1<<labelBits;
+	    baseShift = labelBits+1;
+	}
+
+	public static Packed create(IntBuffer base, IntBuffer chck, int codeLimit, BitVector bv) {
+	    final int baseShift = labelBits(codeLimit)+1;
+	    final int[] units = new int[base.limit()];
+	    final int[] leafTail = new int[bv.rank(base.limit())];
+
+	    for(int i=0; i < units.length; i++) {
+		final int value = base.get(i);
+		final int label = i==0 || chck.get(i) < 0 ? 0 : i - base.get(chck.get(i));
+		if(value < 0) {
+		    units[i] = label | (1<<(baseShift-1));
+		    leafTail[bv.rank(i)] = -value;
+		} else {
+		    if((value >>> (32-baseShift)) != 0)
+			throw new IllegalStateException("Too many nodes for PACKED layout: base value "+value+
+							" does not fit in "+(32-baseShift)+" bits");
+		    units[i] = label | (value << baseShift);
+		}
+	    }
+	    return new Packed(units, leafTail, codeLimit, bv);
+	}
+
+	static int labelBits(int codeLimit) {
+	    return 32-Integer.numberOfLeadingZeros(Math.max(codeLimit-1, 1));
+	}
+
+	public int size() { return units.length; }
+	public NodeLayout layout() { return NodeLayout.PACKED; }
+
+	public int base(int node) { 
+	    final int unit = units[node];
+	    return (unit & leafFlag)==0 ? unit >>> baseShift : -leafTail[bv.rank(node)];
+	}
+
+	public int next(int node, int code) {
+	    final int next = (units[node] >>> baseShift) + code;
+	    return code != 0 && (units[next] & labelMask) == code ? next : -1;
+	}
+
+	public int parent(int node) {
+	    throw new UnsupportedOperationException("PACKED layout does not hold parent nodes");
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.UNITS,     IntBuffer.wrap(units));
+	    out.add(IndexFormat.LEAF_TAIL, IntBuffer.wrap(leafTail));
+	}
+    }
+
+    /**
+     * バッファを参照する{@link NodeLayout#PACKED}形式の実装。
+     */
+    static final class MappedPacked extends NodeArray {
+	private final IntBuffer units;
+	private final IntBuffer leafTail;
+	private final BitVector bv;
+	private final int labelMask;
+	private final int leafFlag;
+	private final int baseShift;
+
+	public MappedPacked(IntBuffer units, IntBuffer leafTail, int codeLimit, BitVector bv) {
+	    this.units = units;
+	    this.leafTail = leafTail;
+	    this.bv = bv;
+	    
+	    final int labelBits = Packed.labelBits(codeLimit);
+	    labelMask = (1<<labelBits)-1;
+	    leafFlag = 1<<labelBits;
+	    baseShift = labelBits+1;
+	}
+
+	public int size() { return units.limit(); }
+	public NodeLayout layout() { return NodeLayout.PACKED; }
+
+	public int base(int node) { 
+	    final int unit = units.get(node);
+	    return (unit & leafFlag)==0 ? unit >>> baseShift : -leafTail.get(bv.rank(node));
+	}
+
+	public int next(int node, int code) {
+	    final int next = (units.get(node) >>> baseShift) + code;
+	    return code != 0 && (units.get(next) & labelMask) == code ? next : -1;
+	}
+
+	public int parent(int node) {
+	    throw new UnsupportedOperationException("PACKED layout does not hold parent nodes");
+	}
+
+	public void write(IndexWriter out) {
+	    out.add(IndexFormat.UNITS,     units);
+	    out.add(IndexFormat.LEAF_TAIL, leafTail);
+	}
+    }
+}
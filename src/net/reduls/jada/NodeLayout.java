@@ -0,0 +1,30 @@
+package net.reduls.jada;
+
+/**
+ * トライのノード(BASE値およびCHECK値)の配置形式。
+ */
+public enum NodeLayout {
+    /**
+     * BASE配列とCHECK配列を個別に保持する形式。
+     */
+    SPLIT,
+
+    /**
+     * 各ノードのBASE値とCHECK値を隣接させて一つの配列に保持する形式。<br />
+     * 遷移時に参照されるBASE値とCHECK値が同一キャッシュライン上に配置されるため、
+     * キャッシュに収まらない大きなトライの検索時のキャッシュミスが減少する。
+     */
+    INTERLEAVED,
+
+    /**
+     * 各ノードを32bitの一単位で表現する形式。<br />
+     * 各単位は、下位ビットから順に、ノードへの遷移コード(ラベル)、葉ノードフラグ、BASE値を保持する。<br />
+     * 遷移先の正当性は、CHECK値(親ノードのインデックス)の代わりにラベルとの比較で判定する。
+     * 各ノードのBASE値が一意になるように構築されているため、この判定は{@link #SPLIT}形式でのCHECK値の比較と等価となる。<br />
+     * 葉ノードのTAIL配列内での開始位置は、キーのIDをインデックスとする別の配列に保持される。<br />
+     * ノード当たりのサイズは、{@link #SPLIT}形式の半分となる。<br />
+     * ただし、ラベルのビット幅はアルファベットサイズにより決まり、その残りのビット数で表現可能な範囲を超えるBASE値を持つトライは、この形式では構築できない。
+     * また、親ノードを辿る操作は行えない。
+     */
+    PACKED
+}
@@ -1,32 +1,60 @@
 package net.reduls.jada;
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * DoubleArray-TrieのTAIL配列の圧縮を行うクラス。
+ * DoubleArray-TrieのTAIL配列の圧縮を行うクラス。<br />
+ * <br />
+ * 各葉ノードの末尾文字列を、元のTAIL配列内での位置(開始位置と長さ)のみで表し、文字列を末尾側から比較した逆順にソートする。
+ * ソート後の列では、ある末尾文字列を接尾辞として含む文字列は全て、その直前に連続して並ぶ。
+ * そのため、直前の文字列の接尾辞となっている文字列は、新たに追加せずに直前の文字列の末尾を共有させることで、
+ * 他の文字列の接尾辞となる全ての末尾文字列が共有される
+ * (各末尾文字列は終端文字'\0'で終わるので、これ以外の形で領域を共有することはできない)。<br />
+ * ソートはマージソートで行われ、並列度が2以上の場合は、分割した範囲を並列にソートする。
  */
 final class ShrinkTail {
-    private final String tail;
-    private int base[];
-    private List<StringIndexPair> pairs = new ArrayList<StringIndexPair>();
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int PARALLEL_THRESHOLD = 8192; // これより小さい範囲は、一つのスレッドでソートする
+
+    private final char[] tail;
+    private final IntBuffer base;
+    private final int parallelism;
+    private final int[] leaves; // 葉ノードのインデックス
+    private final int[] begs;   // 各葉ノードの末尾文字列の元のTAIL配列内での開始位置
+    private final int[] lens;   // 各葉ノードの末尾文字列の長さ(終端文字を除く)
 
     /**
      * TAIL圧縮に必要な情報を受け取り、{@link ShrinkTail}インスタンスを初期化する。
      *
      * @param base トライのBASE配列。{@link #shrink}メソッド呼び出しにより破壊的に修正される。
      * @param tail 圧縮元となるTAIL配列
+     * @param parallelism ソートに用いるスレッド数
      */
-    public ShrinkTail(int base[], final String tail) {
-	this.tail = tail;
+    public ShrinkTail(IntBuffer base, final String tail, final int parallelism) {
+	this.tail = tail.toCharArray();
 	this.base = base;
-	
-	for(int i=0; i < base.length; i++) 
-	    if(base[i] < 0) {
-		final int beg = -base[i];
-		final int end = tail.indexOf('\0',beg);
-		pairs.add(new StringIndexPair(tail.substring(beg,end), i));
+	this.parallelism = parallelism;
+
+	int leafCount = 0;
+	for(int i=0; i < base.limit(); i++)
+	    if(base.get(i) < 0)
+		leafCount++;
+
+	leaves = new int[leafCount];
+	begs = new int[leafCount];
+	lens = new int[leafCount];
+	for(int i=0, k=0; i < base.limit(); i++)
+	    if(base.get(i) < 0) {
+		final int beg = -base.get(i);
+		int end = beg;
+		while(this.tail[end] != '\0')
+		    end++;
+		leaves[k] = i;
+		begs[k] = beg;
+		lens[k] = end-beg;
+		k++;
 	    }
     }
 
@@ -37,56 +65,127 @@ final class ShrinkTail {
      * @return 圧縮後のTAIL配列
      */
     public String shrink() {
-	Collections.sort(pairs);
+	final int[] order = new int[leaves.length];
+	for(int i=0; i < order.length; i++)
+	    order[i] = i;
+	sort(order);
 
-	StringBuilder newTail = new StringBuilder();
+	final StringBuilder newTail = new StringBuilder(tail.length);
 	newTail.append("\0\0");
-	for(int i=0; i < pairs.size(); i++) {
-	    final StringIndexPair t = pairs.get(i);
+	for(int i=0; i < order.length; i++) {
+	    final int t = order[i];
 	    int pos = newTail.length();
-	    if(i>0 && pairs.get(i-1).including(t))
-		pos -= t.s.length()+1; // +1 is necepairsary for last '\0' character
+	    if(i>0 && including(order[i-1], t))
+		pos -= lens[t]+1; // +1 is necessary for last '\0' character
 	    else
-		newTail.append(t.s+'\0');
-	    base[t.i] = -pos;
+		newTail.append(tail, begs[t], lens[t]).append('\0');
+	    base.put(leaves[t], -pos);
 	}
 	return newTail.toString();
     }
 
-    /**
-     * キーの接尾文字列とそのTAIL配列内での開始インデックスとの対応を保持するクラス。
-     */
-    private static class StringIndexPair implements Comparable<StringIndexPair> {
-	public final String s;
-	public final int i;
-	
-	public StringIndexPair(String s, int i) {
-	    this.s = s;
-	    this.i = i;
+    private void sort(final int[] order) {
+	final int[] work = new int[order.length];
+	if(parallelism < 2 || order.length < PARALLEL_THRESHOLD) {
+	    mergeSort(order, work, 0, order.length);
+	    return;
+	}
+
+	final ForkJoinPool pool = new ForkJoinPool(parallelism);
+	try {
+	    pool.invoke(new SortTask(order, work, 0, order.length));
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    // sorts order[beg..end) using work[beg..end) as a buffer
+    private void mergeSort(final int[] order, final int[] work, final int beg, final int end) {
+	if(end-beg <= INSERTION_SORT_THRESHOLD) {
+	    for(int i=beg+1; i < end; i++) {
+		final int t = order[i];
+		int j = i;
+		for(; j > beg && compare(order[j-1], t) > 0; j--)
+		    order[j] = order[j-1];
+		order[j] = t;
+	    }
+	    return;
 	}
 
-	public boolean including(StringIndexPair t) {
-	    int i=s.length()-1;
-	    int j=t.s.length()-1;
+	final int mid = (beg+end) >>> 1;
+	mergeSort(order, work, beg, mid);
+	mergeSort(order, work, mid, end);
+	merge(order, work, beg, mid, end);
+    }
+
+    private void merge(final int[] order, final int[] work, final int beg, final int mid, final int end) {
+	if(compare(order[mid-1], order[mid]) <= 0)
+	    return; // already in order
+
+	System.arraycopy(order, beg, work, beg, end-beg);
+	int i=beg, j=mid, k=beg;
+	while(i < mid && j < end)
+	    order[k++] = compare(work[i], work[j]) <= 0 ? work[i++] : work[j++];
+	while(i < mid)
+	    order[k++] = work[i++];
+	while(j < end)
+	    order[k++] = work[j++];
+    }
+
+    // compares the tails 'a' and 'b' from their last characters.
+    // larger characters come first, and a tail comes after the longer tails ending with it
+    private int compare(final int a, final int b) {
+	int i = begs[a]+lens[a]-1;
+	int j = begs[b]+lens[b]-1;
+	final int aBeg = begs[a];
+	final int bBeg = begs[b];
 
-	    for(;; i--, j--) {
-		if(j < 0) return true;
-		if(i < 0) return false;
-		if(s.charAt(i) != t.s.charAt(j)) return false;
-	    }	    
+	for(;; i--, j--) {
+	    if(i < aBeg && j < bBeg) return  0;
+	    if(i < aBeg)             return  1;
+	    if(j < bBeg)             return -1;
+	    if(tail[i] != tail[j])   return tail[i] > tail[j] ? -1 : 1;
 	}
+    }
+
+    // returns true if the tail 't' is a suffix of the tail 's'
+    private boolean including(final int s, final int t) {
+	if(lens[t] > lens[s])
+	    return false;
+	final int sEnd = begs[s]+lens[s];
+	final int tEnd = begs[t]+lens[t];
+	for(int k=1; k <= lens[t]; k++)
+	    if(tail[sEnd-k] != tail[tEnd-k])
+		return false;
+	return true;
+    }
+
+    /**
+     * マージソートの範囲を二分し、それぞれを並列にソートした後にマージするタスク。
+     */
+    private final class SortTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final int[] order;
+	private final int[] work;
+	private final int beg;
+	private final int end;
 
-	public int compareTo(StringIndexPair t) {
-	    int i=s.length()-1;
-	    int j=t.s.length()-1;
+	public SortTask(int[] order, int[] work, int beg, int end) {
+	    this.order = order;
+	    this.work = work;
+	    this.beg = beg;
+	    this.end = end;
+	}
 
-	    for(;; i--, j--) {
-		if(i < 0 && j < 0) return  0;
-		if(i < 0)          return  1;
-		if(j < 0)          return -1;
-		if(s.charAt(i) > t.s.charAt(j)) return -1;
-		if(s.charAt(i) < t.s.charAt(j)) return  1;
+	protected void compute() {
+	    if(end-beg < PARALLEL_THRESHOLD) {
+		mergeSort(order, work, beg, end);
+		return;
 	    }
+	    final int mid = (beg+end) >>> 1;
+	    invokeAll(new SortTask(order, work, beg, mid), new SortTask(order, work, mid, end));
+	    merge(order, work, beg, mid, end);
 	}
     }
 }
@@ -0,0 +1,356 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * トライのTAIL配列。<br />
+ * 各キーの末尾文字列を'\0'区切りで連結したもの。<br />
+ * 全ての文字がISO-8859-1の範囲に収まる場合は、1文字1byteで保持される。
+ * それ以外の場合は、UTF-8とUTF-16のうち、サイズが小さくなる方で保持される。<br />
+ * 位置は符号化単位(byteあるいはchar)で表されるため、UTF-8の場合は文字毎に位置の増分が異なる。
+ * 末尾文字列の走査には{@link #next}を用いる。<br />
+ * 符号化方式ごとに、ヒープ上の配列を参照する実装と、マッピングされたファイルの領域をバッファ越しに参照する実装(Mapped～)がある。
+ */
+abstract class TailArray {
+    /**
+     * TAIL配列のサイズを返す。
+     * @return サイズ(符号化単位数)
+     */
+    public abstract int length();
+
+    /**
+     * 指定位置の文字を返す。
+     * @param pos 位置。文字の先頭である必要がある
+     * @return 文字のコード値
+     */
+    public abstract int charAt(int pos);
+
+    /**
+     * 指定位置の次の文字の位置を返す。
+     * @param pos 位置。文字の先頭である必要がある
+     * @return 次の文字の位置
+     */
+    public int next(int pos) { return pos+1; }
+
+    /**
+     * 位置毎に文字の長さが異なる符号化方式かどうかを返す。<br />
+     * trueの場合は、TAIL配列内の位置を文字単位の状態として扱う処理({@link FailureLinks})には使用できない。
+     * @return 可変長の符号化方式ならtrue
+     */
+    public boolean variableWidth() { return false; }
+
+    /**
+     * 指定位置から始まる末尾文字列が、キーストリームの残りの部分と一致するかどうかを判定する。<br />
+     * キーストリームは、一致した文字数分読み進められる。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param in キーストリーム
+     * @return 一致する場合はtrue
+     */
+    public boolean equalsRest(int pos, Trie.CodeStream in) {
+	for(;; pos=next(pos), in.read())
+	    if(in.peek() != charAt(pos))
+		break;
+	return in.peek()==-1 && charAt(pos)=='\0';
+    }
+
+    /**
+     * 指定位置から始まる末尾文字列が、キーストリームの残りの部分の接頭辞となっているかどうかを判定する。<br />
+     * キーストリームは、一致した文字数分読み進められる。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param in キーストリーム
+     * @return 接頭辞となっている場合はtrue
+     */
+    public boolean isPrefixOf(int pos, Trie.CodeStream in) {
+	for(;; pos=next(pos), in.read())
+	    if(in.peek() != charAt(pos))
+		break;
+	return charAt(pos)=='\0';
+    }
+
+    /**
+     * 指定位置から始まる末尾文字列が、{@code text[beg,end)}の接頭辞となっている場合に、その文字数を返す。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param text テキスト
+     * @param beg テキストの開始位置
+     * @param end テキストの終了位置
+     * @return 末尾文字列の文字数。接頭辞となっていない場合は-1
+     */
+    public int prefixLength(int pos, CharSequence text, final int beg, final int end) {
+	for(int i=beg;; pos=next(pos), i++) {
+	    final int ch = charAt(pos);
+	    if(ch == '\0')
+		return i-beg;
+	    if(i == end || text.charAt(i) != ch)
+		return -1;
+	}
+    }
+
+    /**
+     * 指定位置から始まる末尾文字列が、{@code text[beg,end)}の接頭辞となっている場合に、その文字数を返す。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param text テキスト
+     * @param beg テキストの開始位置
+     * @param end テキストの終了位置
+     * @return 末尾文字列の文字数。接頭辞となっていない場合は-1
+     */
+    public int prefixLength(int pos, char[] text, final int beg, final int end) {
+	for(int i=beg;; pos=next(pos), i++) {
+	    final int ch = charAt(pos);
+	    if(ch == '\0')
+		return i-beg;
+	    if(i == end || text[i] != ch)
+		return -1;
+	}
+    }
+
+    /**
+     * {@code s[beg,s.length())}が、指定位置から始まる末尾文字列の接頭辞となっている場合に、末尾文字列中のその直後の位置を返す。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param s 文字列
+     * @param beg 文字列の開始位置
+     * @return 接頭辞の直後の位置。接頭辞となっていない場合は-1
+     */
+    public int skipPrefix(int pos, CharSequence s, final int beg) {
+	for(int i=beg; i < s.length(); pos=next(pos), i++)
+	    if(charAt(pos) != s.charAt(i))
+		return -1;
+	return pos;
+    }
+
+    /**
+     * 指定位置から始まる末尾文字列と{@code s[beg,s.length())}を、文字のコード値の辞書順で比較する。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param s 文字列
+     * @param beg 文字列の開始位置
+     * @return 末尾文字列の方が小さい場合は負の値、等しい場合は0、大きい場合は正の値
+     */
+    public int compare(int pos, CharSequence s, final int beg) {
+	for(int i=beg;; pos=next(pos), i++) {
+	    final int ch = charAt(pos);
+	    if(ch == '\0')
+		return i==s.length() ? 0 : -1;
+	    if(i == s.length())
+		return 1;
+	    if(ch != s.charAt(i))
+		return ch < s.charAt(i) ? -1 : 1;
+	}
+    }
+
+    /**
+     * 指定位置から始まる末尾文字列を、終端文字の手前まで追加する。
+     *
+     * @param pos 末尾文字列の開始位置
+     * @param sb 追加先
+     */
+    public void appendTo(int pos, StringBuilder sb) {
+	for(int ch=charAt(pos); ch != '\0'; pos=next(pos), ch=charAt(pos))
+	    sb.append((char)ch);
+    }
+
+    /**
+     * TAIL配列をインデックスファイルのセクションとして登録する。
+     * @param out 出力先
+     */
+    public abstract void write(IndexWriter out);
+
+    /**
+     * 文字列からTAIL配列を作成する。<br />
+     * 文字列の内容に応じて、最もサイズが小さくなる符号化方式が選択される。<br />
+     * UTF-8が選択された場合は、BASE配列に保持されている葉ノードの末尾文字列の開始位置(文字単位)が、byte単位の位置に書き換えられる。
+     *
+     * @param tail TAIL配列の内容
+     * @param base トライのBASE配列
+     * @param variableWidth falseの場合は、UTF-8(可変長)を選択しない
+     * @return TAIL配列
+     */
+    public static TailArray create(String tail, IntBuffer base, boolean variableWidth) {
+	boolean latin1 = true;
+	long utf8Length = 0;
+	for(int i=0; i < tail.length(); i++) {
+	    final char ch = tail.charAt(i);
+	    latin1 &= ch <= 0xFF;
+	    utf8Length += Utf8.byteLength(ch);
+	}
+	
+	if(latin1) {
+	    final byte[] bytes = new byte[tail.length()];
+	    for(int i=0; i < bytes.length; i++)
+		bytes[i] = (byte)tail.charAt(i);
+	    return new Latin1(bytes);
+	}
+	if(variableWidth==false || utf8Length >= (long)tail.length()*2)
+	    return new Chars(tail.toCharArray());
+	return Utf8.encode(tail, (int)utf8Length, base);
+    }
+
+    /**
+     * インデックスファイルからTAIL配列を読み込む。
+     *
+     * @param in インデックスファイル
+     * @param copy trueの場合はデータをヒープ上の配列にコピーする。falseの場合はマッピングされた領域を直接参照する。
+     * @return TAIL配列
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static TailArray read(IndexReader in, boolean copy) throws IOException {
+	if(in.has(IndexFormat.TAIL_LATIN1)) {
+	    final ByteBuffer buf = in.section(IndexFormat.TAIL_LATIN1);
+	    return copy ? new Latin1(Buffers.toArray(buf)) : new MappedLatin1(buf);
+	}
+	if(in.has(IndexFormat.TAIL_UTF8)) {
+	    final ByteBuffer buf = in.section(IndexFormat.TAIL_UTF8);
+	    return copy ? new Utf8(Buffers.toArray(buf)) : new MappedUtf8(buf);
+	}
+	final CharBuffer buf = in.charSection(IndexFormat.TAIL);
+	return copy ? new Chars(Buffers.toArray(buf)) : new MappedChars(buf);
+    }
+
+    /**
+     * UTF-16で符号化されたTAIL配列。
+     */
+    static final class Chars extends TailArray {
+	private final char[] ary;
+
+	public Chars(char[] ary) { this.ary = ary; }
+
+	public int length() { return ary.length; }
+	public int charAt(int pos) { return ary[pos]; }
+	public void write(IndexWriter out) { out.add(IndexFormat.TAIL, CharBuffer.wrap(ary)); }
+    }
+
+    /**
+     * バッファを参照する、UTF-16で符号化されたTAIL配列。
+     */
+    static final class MappedChars extends TailArray {
+	private final CharBuffer buf;
+
+	public MappedChars(CharBuffer buf) { this.buf = buf; }
+
+	public int length() { return buf.limit(); }
+	public int charAt(int pos) { return buf.get(pos); }
+	public void write(IndexWriter out) { out.add(IndexFormat.TAIL, buf); }
+    }
+
+    /**
+     * ISO-8859-1で符号化されたTAIL配列。
+     */
+    static final class Latin1 extends TailArray {
+	private final byte[] ary;
+
+	public Latin1(byte[] ary) { this.ary = ary; }
+
+	public int length() { return ary.length; }
+	public int charAt(int pos) { return ary[pos]&0xFF; }
+	public void write(IndexWriter out) { out.add(IndexFormat.TAIL_LATIN1, ByteBuffer.wrap(ary)); }
+    }
+
+    /**
+     * バッファを参照する、ISO-8859-1で符号化されたTAIL配列。
+     */
+    static final class MappedLatin1 extends TailArray {
+	private final ByteBuffer buf;
+
+	public MappedLatin1(ByteBuffer buf) { this.buf = buf; }
+
+	public int length() { return buf.limit(); }
+	public int charAt(int pos) { return buf.get(pos)&0xFF; }
+	public void write(IndexWriter out) { out.add(IndexFormat.TAIL_LATIN1, buf); }
+    }
+
+    /**
+     * UTF-8で符号化されたTAIL配列。<br />
+     * 各文字(UTF-16の符号化単位)は1～3byteで符号化される。サロゲートペアは、それぞれの符号化単位を個別に3byteで符号化する(CESU-8)。
+     */
+    static final class Utf8 extends TailArray {
+	private final byte[] ary;
+
+	public Utf8(byte[] ary) { this.ary = ary; }
+
+	public int length() { return ary.length; }
+	public boolean variableWidth() { return true; }
+	public void write(IndexWriter out) { out.add(IndexFormat.TAIL_UTF8, ByteBuffer.wrap(ary)); }
+
+	public int charAt(int pos) {
+	    final int b0 = ary[pos]&0xFF;
+	    if(b0 < 0x80)
+		return b0;
+	    if(b0 < 0xE0)
+		return ((b0&0x1F)<<6) | (ary[pos+1]&0x3F);
+	    return ((b0&0x0F)<<12) | ((ary[pos+1]&0x3F)<<6) | (ary[pos+2]&0x3F);
+	}
+
+	public int next(int pos) {
+	    return pos + width(ary[pos]&0xFF);
+	}
+
+	// the number of bytes of the character whose first byte is 'b0'
+	static int width(int b0) {
+	    return b0 < 0x80 ? 1 : b0 < 0xE0 ? 2 : 3;
+	}
+
+	public static int byteLength(char ch) {
+	    return ch < 0x80 ? 1 : ch < 0x800 ? 2 : 3;
+	}
+
+	// encodes 'tail' and replaces the char positions of the leaves in 'base' with byte positions
+	public static Utf8 encode(String tail, int byteLength, IntBuffer base) {
+	    final byte[] bytes = new byte[byteLength];
+	    final int[] position = new int[tail.length()+1];
+	    int k = 0;
+	    for(int i=0; i < tail.length(); i++) {
+		final char ch = tail.charAt(i);
+		position[i] = k;
+		if(ch < 0x80) {
+		    bytes[k++] = (byte)ch;
+		} else if(ch < 0x800) {
+		    bytes[k++] = (byte)(0xC0 | (ch>>6));
+		    bytes[k++] = (byte)(0x80 | (ch&0x3F));
+		} else {
+		    bytes[k++] = (byte)(0xE0 | (ch>>12));
+		    bytes[k++] = (byte)(0x80 | ((ch>>6)&0x3F));
+		    bytes[k++] = (byte)(0x80 | (ch&0x3F));
+		}
+	    }
+	    position[tail.length()] = k;
+
+	    for(int i=0; i < base.limit(); i++)
+		if(base.get(i) < 0)
+		    base.put(i, -position[-base.get(i)]);
+	    return new Utf8(bytes);
+	}
+    }
+
+    /**
+     * バッファを参照する、UTF-8で符号化されたTAIL配列。
+     */
+    static final class MappedUtf8 extends TailArray {
+	private final ByteBuffer buf;
+
+	public MappedUtf8(ByteBuffer buf) { this.buf = buf; }
+
+	public int length() { return buf.limit(); }
+	public boolean variableWidth() { return true; }
+	public void write(IndexWriter out) { out.add(IndexFormat.TAIL_UTF8, buf); }
+
+	public int charAt(int pos) {
+	    final int b0 = buf.get(pos)&0xFF;
+	    if(b0 < 0x80)
+		return b0;
+	    if(b0 < 0xE0)
+		return ((b0&0x1F)<<6) | (buf.get(pos+1)&0x3F);
+	    return ((b0&0x0F)<<12) | ((buf.get(pos+1)&0x3F)<<6) | (buf.get(pos+2)&0x3F);
+	}
+
+	public int next(int pos) {
+	    return pos + Utf8.width(buf.get(pos)&0xFF);
+	}
+    }
+}
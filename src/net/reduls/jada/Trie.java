@@ -1,95 +1,221 @@
 package net.reduls.jada;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * DoubleArray Trieクラス。
  */
 public final class Trie {
-    private final int base[];     // BASE配列
-    private final int chck[];     // CHECK配列
-    private final String tail;    // TAIL配列
-    private final int charcode[]; // 文字のコード値から、実際に遷移に用いる値へのマッピングテーブル
-    private final BitVector bv;   // ノードに対応するID算出用のビット配列
-
-    Trie(int base[], int chck[], String tail, int charcode[], BitVector bv) {
-	this.base = base;
-	this.chck = chck;
+    private static final int SEARCH_LANES = 8;         // searchAllで同時に辿るキーの数
+    private static final int PARALLEL_SEARCH_UNIT = 4096; // 並列版のsearchAllで一つのタスクが処理するキーの数の目安
+
+    private final NodeArray nodes; // BASE配列およびCHECK配列
+    private final TailArray tail;  // TAIL配列
+    private final CodeMap codes;   // 文字のコード値から、実際に遷移に用いる値へのマッピングテーブル
+    private final BitVector bv;    // ノードに対応するID算出用のビット配列
+    private final FailureLinks links; // Aho-Corasick走査用の失敗リンク。構築時に指定されなかった場合はnull
+    private final ValueArray values;  // IDからキーに対応付けられた値へのテーブル。構築時に指定されなかった場合はnull
+    private final KeyOrder order;     // 辞書順のIDの割り当て。構築時に指定されなかった場合はnull(ビット配列のrankがIDとなる)
+
+    Trie(NodeArray nodes, TailArray tail, CodeMap codes, BitVector bv, FailureLinks links, ValueArray values, KeyOrder order) {
+	this.nodes = nodes;
 	this.tail = tail;
-	this.charcode = charcode;
+	this.codes = codes;
 	this.bv = bv;
+	this.links = links;
+	this.values = values;
+	this.order = order;
     }
 
     /**
-     * {@link Trie}インスタンスをファイルに保存する。
+     * {@link Trie}インスタンスをファイルに保存する。<br />
+     * ファイルは、ヘッダおよびセクションテーブルを持つバージョン2形式で出力される。
      *
      * @param filepath 保存するファイルのパス
      * @throws IOException 出力エラーが生じた場合に送出される
      */
     public void save(final String filepath) throws IOException {
-	FileMappedOutputStream out = 
-	    new FileMappedOutputStream(filepath, 
-				       bv.dataSize() +
-				       2 * 4 + 
-				       (base.length+chck.length+charcode.length)*4 +
-				       tail.length()*2);
-	try {
-	    bv.write(out);
-	    
-	    out.putInt(base.length);
-	    out.putInt(tail.length());
-	    
-	    for(int i=0; i < 0x10000;     i++) out.putInt(charcode[i]);
-	    for(int i=0; i < base.length; i++) out.putInt(base[i]);
-	    for(int i=0; i < chck.length; i++) out.putInt(chck[i]);
-	    out.putString(tail);
-	} finally {
-	    out.close();
-	}
+	IndexWriter out = new IndexWriter();
+	out.add(IndexFormat.CODES, codes.decodeTable());
+	bv.write(out);
+	tail.write(out);
+	nodes.write(out);
+	if(links != null)
+	    links.write(out);
+	if(values != null)
+	    values.write(out);
+	if(order != null)
+	    order.write(out);
+	out.write(filepath);
     }
 
     /**
-     * {@link Trie}インスタンスをファイルから読み込む。
+     * {@link Trie}インスタンスをファイルから読み込む。<br />
+     * トライのデータは全てヒープ上にコピーされ、読み込みに用いたファイルのマッピングは返る前に解除される。<br />
+     * バージョン2形式のファイルの場合は、読み込み時に各セクションのチェックサムが検証される。<br />
+     * バージョン1形式(ヘッダ無し)のファイルも読み込み可能。
      * 
      * @param filepath {@link Trie}インスタンスのデータを保持するファイルのパス
      * @return {@link Trie}インスタンス
-     * @throws IOException 入力エラーが生じた場合に送出される
+     * @throws IOException 入力エラーが生じた場合、あるいはファイルが壊れている場合に送出される
      */
     public static Trie load(final String filepath) throws IOException {
-	FileMappedInputStream in = 
+	return load(filepath, false);
+    }
+
+    /**
+     * {@link Trie}インスタンスのデータを保持するファイルをメモリにマッピングする。<br />
+     * BASE/CHECK/TAIL配列、ID算出用のビット配列およびキーに対応付けられた値のテーブルはヒープにはコピーされず、検索時にはマッピングされた領域が直接参照される。<br />
+     * そのため、読み込みはファイルサイズに関わらずほぼ定数時間で終了し、同一ファイルをマッピングする複数のプロセス間でページキャッシュが共有される。<br />
+     * マッピングされたファイルは、返された{@link Trie}インスタンスがGCにより回収されるまで変更/削除してはならない。
+     * マッピングを明示的に解除する場合は{@link TrieHandle}を用いる。<br />
+     * チェックサムの検証は行われない。
+     *
+     * @param filepath {@link Trie}インスタンスのデータを保持するファイルのパス
+     * @return {@link Trie}インスタンス
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static Trie map(final String filepath) throws IOException {
+	return load(filepath, true);
+    }
+
+    private static Trie load(final String filepath, final boolean mapped) throws IOException {
+	return load(filepath, mapped, null);
+    }
+
+    /**
+     * {@link Trie}インスタンスをファイルから読み込む、あるいはマッピングする。<br />
+     * ヒープ上に読み込む場合、および読み込みに失敗した場合は、読み込みに用いたマッピングは返る前に解除される。
+     *
+     * @param filepath {@link Trie}インスタンスのデータを保持するファイルのパス
+     * @param mapped trueならマッピングされた領域を直接参照する。falseならヒープ上に読み込む
+     * @param mappings nullでない場合、かつ{@code mapped}がtrueの場合は、読み込みに成功した時点でインスタンスが参照するマッピングが追加される({@link TrieHandle}による解除用)
+     * @return {@link Trie}インスタンス
+     * @throws IOException 入力エラーが生じた場合、あるいはファイルが壊れている場合に送出される
+     */
+    static Trie load(final String filepath, final boolean mapped, final List<ByteBuffer> mappings) throws IOException {
+	final FileMappedInputStream in = 
 	    new FileMappedInputStream(filepath);
+	Trie trie = null;
 	try {
-	    final BitVector bv = new BitVector(in);
-	    
-	    final int nodeSize = in.getInt();
-	    final int tailSize = in.getInt();
-	    
-	    final int charcode[] = in.getIntArray(0x10000);
-	    final int base[] = in.getIntArray(nodeSize);
-	    final int chck[] = in.getIntArray(nodeSize);
-	    final String tail = in.getString(tailSize);
-	    
-	    return new Trie(base, chck, tail, charcode, bv);
+	    trie = read(in, mapped);
 	} finally {
+	    // after a failure nothing refers to the mappings, and a heap trie has copied all the data
+	    if(trie == null || mapped==false)
+		for(ByteBuffer mapping : in.mappings())
+		    FileMappedInputStream.unmap(mapping);
 	    in.close();
 	}
+	if(mapped && mappings != null)
+	    mappings.addAll(in.mappings());
+	return trie;
+    }
+
+    private static Trie read(final FileMappedInputStream in, final boolean mapped) throws IOException {
+	if(IndexReader.hasHeader(in)==false)
+	    return loadVersion1(in, mapped);
+	
+	final IndexReader r = new IndexReader(in);
+	if(mapped==false)
+	    r.verify();
+	
+	final CodeMap codes = r.has(IndexFormat.CODES) ? CodeMap.fromDecodeTable(r.intSection(IndexFormat.CODES)) 
+						       : CodeMap.fromTable(r.intSection(IndexFormat.CHARCODE));
+	final BitVector bv = BitVector.read(r, !mapped);
+	final NodeArray nodes = NodeArray.read(r, !mapped, codes.limit(), bv);
+	final TailArray tail = TailArray.read(r, !mapped);
+	return new Trie(nodes, tail, codes, bv, FailureLinks.read(r, !mapped, nodes, tail, codes), 
+			ValueArray.read(r, !mapped), KeyOrder.read(r, !mapped));
+    }
+
+    private static Trie loadVersion1(final FileMappedInputStream in, final boolean mapped) throws IOException {
+	final BitVector bv = BitVector.read(in, mapped);
+	
+	final int nodeSize = in.getInt();
+	final int tailSize = in.getInt();
+	
+	final CodeMap codes = CodeMap.fromTable(in.mapIntBuffer(0x10000));
+	if(mapped)
+	    return new Trie(new NodeArray.MappedSplit(in.mapIntBuffer(nodeSize), in.mapIntBuffer(nodeSize)), 
+			    new TailArray.MappedChars(in.mapCharBuffer(tailSize)), codes, bv, null, null, null);
+	else
+	    return new Trie(new NodeArray.Split(in.getIntArray(nodeSize), in.getIntArray(nodeSize), nodeSize),
+			    new TailArray.Chars(in.getCharArray(tailSize)), codes, bv, null, null, null);
     }
- 
+
+    /**
+     * ノードの配置形式を取得する。
+     * @return ノードの配置形式
+     */
+    public NodeLayout nodeLayout() { return nodes.layout(); }
+
     /**
      * トライに格納されているキーの数を取得する。
      * @return キー数
      */
-    public int keyCount() { return bv.rank(base.length); }
+    public int keyCount() { return bv.rank(nodes.size()); }
     /**
      * トライを表現するために使用されているノードの数(BASE配列のサイズ)を取得する。
      * @return ノード数
      */
-    public int nodeCount() { return base.length; }
+    public int nodeCount() { return nodes.size(); }
     /**
      * TAIL配列のサイズを取得する。
      * @return TAIL配列のサイズ
      */
     public int tailLength() { return tail.length(); }
+    /**
+     * Aho-Corasick走査用の失敗リンクを保持しているかどうかを判定する。
+     * @return 保持している場合はtrue
+     * @see TrieBuilder#setFailureLinks
+     */
+    public boolean hasFailureLinks() { return links != null; }
+
+    /**
+     * 各キーに値が対応付けられているかどうかを返す。
+     * @return 値が対応付けられている場合はtrue
+     * @see TrieBuilder#setValues
+     */
+    public boolean hasValues() { return values != null; }
+
+    /**
+     * キーのIDが辞書順に割り当てられているかどうかを返す。
+     * @return 辞書順に割り当てられている場合はtrue
+     * @see TrieBuilder#setLexicographicIds
+     */
+    public boolean hasLexicographicIds() { return order != null; }
+
+    /**
+     * IDに対応するキーに対応付けられた値を返す。<br />
+     * 共通接頭辞検索などのIDを返す検索APIの結果から、値を取り出すのに用いる。
+     *
+     * @param id キーのID。0以上キー数未満
+     * @return 値
+     * @throws IllegalStateException 値が対応付けられていないトライの場合に送出される
+     */
+    public long value(final int id) {
+	if(values == null)
+	    throw new IllegalStateException("The trie has no values");
+	return values.get(id);
+    }
+
+    /**
+     * キーを検索し、キーに対応付けられた値を返す。
+     *
+     * @param key 検索対象のキー文字列
+     * @param defaultValue キーが存在しない場合に返す値
+     * @return キーに対応付けられた値。キーが存在しない場合は{@code defaultValue}
+     * @throws IllegalStateException 値が対応付けられていないトライの場合に送出される
+     */
+    public long searchValue(final CharSequence key, final long defaultValue) {
+	final int id = search(key);
+	return id==-1 ? defaultValue : value(id);
+    }
     
     /**
      * キーを検索する。
@@ -101,12 +227,13 @@ public final class Trie {
 	int node = 0;
 	int last = 0; // set arbitrary initial value but -1
 	for(;;) {
-	    if(base[node] < 0)
-		return last==-1 || tailEqual(-base[node], key) ? bv.rank(node) : -1;
+	    final int base = nodes.base(node);
+	    if(base < 0)
+		return last==-1 || tail.equalsRest(-base, key) ? id(node) : -1;
 	    
-	    final int next = base[node] + charcode[(last=key.read())+1];
-	    if(chck[next] == node) node = next;
-	    else                   return -1; 
+	    node = nodes.next(node, codes.code((last=key.read())+1));
+	    if(node == -1)
+		return -1; 
 	}
     }
 
@@ -121,6 +248,166 @@ public final class Trie {
         return search(new CharSequenceCodeStream(key));
     }
 
+    /**
+     * byte列のキーを検索する。<br />
+     * 各byteは、0～255のコード値を持つ一文字として扱われる。
+     * {@link TrieBuilder#fromByteKeys}で構築したトライ(あるいはISO-8859-1の範囲の文字のみからなるキーで構築したトライ)に対して用いる。<br />
+     * {@code search(new Trie.ByteArrayCodeStream(key, beg, end))}に等しい。
+     *
+     * @param key 検索対象のキーを含むbyte配列
+     * @param beg キーの開始位置
+     * @param end キーの終了位置
+     * @return キーのID。キーが存在しない場合は-1が返される。
+     */
+    public int search(final byte[] key, final int beg, final int end) {
+        return search(new ByteArrayCodeStream(key, beg, end));
+    }
+
+    /**
+     * バッファの現在位置からリミットまでのbyte列をキーとして検索する。<br />
+     * バッファの現在位置は変更されない。
+     * {@code search(new Trie.ByteBufferCodeStream(key))}に等しい。
+     *
+     * @param key 検索対象のキーを保持するバッファ
+     * @return キーのID。キーが存在しない場合は-1が返される。
+     * @see #search(byte[],int,int)
+     */
+    public int search(final ByteBuffer key) {
+        return search(new ByteBufferCodeStream(key));
+    }
+
+    /**
+     * 複数のキーをまとめて検索する。<br />
+     * 結果は{@code ids[i] = search(keys[i])}と同じになる。<br />
+     * 複数(8個)のキーのノード遷移を交互に一つずつ進めることで、BASE/CHECK配列へのアクセスのメモリレイテンシを互いに隠蔽する。
+     * また、キー毎のオブジェクト生成も行わない。
+     *
+     * @param keys 検索対象のキーの配列
+     * @param ids 各キーのIDを格納する配列。キーが存在しない場合は-1が格納される。{@code keys}以上の長さが必要。
+     */
+    public void searchAll(final CharSequence[] keys, final int[] ids) {
+        searchAll(keys, ids, 0, keys.length);
+    }
+
+    /**
+     * 複数のキーを、Fork/Joinプールを用いて並列に検索する。<br />
+     * キーの配列は一定数(4096個)程度ずつに分割され、各部分が{@link #searchAll(CharSequence[],int[])}と同様の方法で検索される。
+     * このメソッドは全てのキーの検索が終わるまで戻らない。
+     *
+     * @param keys 検索対象のキーの配列
+     * @param ids 各キーのIDを格納する配列。キーが存在しない場合は-1が格納される。{@code keys}以上の長さが必要。
+     * @param pool 検索に用いるFork/Joinプール
+     */
+    public void searchAll(final CharSequence[] keys, final int[] ids, final ForkJoinPool pool) {
+        if(keys.length <= PARALLEL_SEARCH_UNIT)
+            searchAll(keys, ids, 0, keys.length);
+	else
+	    pool.invoke(new SearchTask(keys, ids, 0, keys.length));
+    }
+
+    // searches keys[beg,end) by advancing SEARCH_LANES lookups in turn.
+    // a lane whose lookup has finished takes the next key
+    private void searchAll(final CharSequence[] keys, final int[] ids, final int beg, final int end) {
+	final int[] laneKey  = new int[SEARCH_LANES]; // index of the key, or -1 if the lane is idle
+	final int[] laneNode = new int[SEARCH_LANES];
+	final int[] lanePos  = new int[SEARCH_LANES]; // number of characters read. key length+1 after the terminal transition
+	int next = beg;
+	int active = 0;
+	for(int i=0; i < SEARCH_LANES; i++) {
+	    laneKey[i] = next < end ? next++ : -1;
+	    if(laneKey[i] != -1)
+		active++;
+	}
+
+	while(active > 0)
+	    for(int i=0; i < SEARCH_LANES; i++) {
+		final int k = laneKey[i];
+		if(k == -1)
+		    continue;
+		
+		final CharSequence key = keys[k];
+		final int node = laneNode[i];
+		final int pos = lanePos[i];
+		final int base = nodes.base(node);
+		int id = -2; // -2: not finished yet
+		if(base < 0) {
+		    id = pos > key.length() || tail.prefixLength(-base, key, pos, key.length()) == key.length()-pos ? id(node) : -1;
+		} else {
+		    final int child = nodes.next(node, pos < key.length() ? codes.code(key.charAt(pos)+1) : codes.code(0));
+		    if(child == -1)
+			id = -1;
+		    laneNode[i] = child;
+		    lanePos[i] = pos+1;
+		}
+
+		if(id != -2) {
+		    ids[k] = id;
+		    laneNode[i] = 0;
+		    lanePos[i] = 0;
+		    if(next < end) {
+			laneKey[i] = next++;
+		    } else {
+			laneKey[i] = -1;
+			active--;
+		    }
+		}
+	    }
+    }
+
+    /**
+     * IDに対応するキーを復元する。<br />
+     * IDに対応する葉ノードをビット配列のselect操作で求め、CHECK配列を辿って根までの遷移文字を集めた後、TAIL配列内の末尾文字列を連結する。<br />
+     * CHECK配列を保持しない{@link NodeLayout#PACKED}形式のトライでは使用できない。
+     *
+     * @param id キーのID
+     * @return キー文字列。IDが範囲外の場合はnull。
+     * @throws UnsupportedOperationException ノードの配置形式が{@link NodeLayout#PACKED}の場合に送出される
+     */
+    public String key(final int id) {
+        if(id < 0 || id >= keyCount())
+            return null;
+
+	final int terminalCode = codes.code(0);
+	final int leaf = order==null ? bv.select(id) : order.leaf(id);
+	char[] path = new char[16];
+	int len = 0;
+	for(int node=leaf; node != 0;) {
+	    final int parent = nodes.parent(node);
+	    final int code = node - nodes.base(parent);
+	    if(code != terminalCode) {
+		if(len == path.length)
+		    path = java.util.Arrays.copyOf(path, len*2);
+		path[len++] = (char)(codes.index(code)-1);
+	    }
+	    node = parent;
+	}
+
+	final StringBuilder sb = new StringBuilder(len+8);
+	while(len > 0)
+	    sb.append(path[--len]);
+	tail.appendTo(-nodes.base(leaf), sb);
+	return sb.toString();
+    }
+
+    /**
+     * IDに対応するキーをbyte列として復元する。<br />
+     * {@link TrieBuilder#fromByteKeys}で構築したトライに対して用いる。キーの各文字は下位8bitのみが取り出される。
+     *
+     * @param id キーのID
+     * @return キーのbyte列。IDが範囲外の場合はnull。
+     * @throws UnsupportedOperationException ノードの配置形式が{@link NodeLayout#PACKED}の場合に送出される
+     * @see #key
+     */
+    public byte[] keyBytes(final int id) {
+	final String key = key(id);
+	if(key == null)
+            return null;
+        final byte[] bytes = new byte[key.length()];
+        for(int i=0; i < bytes.length; i++)
+            bytes[i] = (byte)key.charAt(i);
+        return bytes;
+    }
+
     /**
      * 入力キーに対して共通接頭辞検索を行う。<br />
      * 入力キーの接頭部分にマッチするキーがトライ内にある場合は、それが見つかった時点で、処理を呼び出し元に返す。<br />
@@ -137,43 +424,429 @@ public final class Trie {
         int node = root.node;
         int last = 0; // set arbitrary initial value but -1
         for(;;) {
-            if(base[node] < 0) {
-                if(last==-1 || tailIncluding(-base[node], key))
-                    root.id = bv.rank(node);
+	    final int base = nodes.base(node);
+	    if(base < 0) {
+		if(last==-1 || tail.isPrefixOf(-base, key))
+		    root.id = id(node);
                 return false;
             }
 
             if(node != root.node) {                
-                final int terminal = base[node] + charcode[0];
-                if(chck[terminal] == node) {
+		final int terminal = nodes.next(node, codes.code(0));
+		if(terminal != -1) {
                     root.node = node;
-                    root.id = bv.rank(terminal);
+                    root.id = id(terminal);
                     return key.peek()==-1 ? false : true;
                 }
             }
 	    
-	    final int next = base[node] + charcode[(last=key.read())+1];
-	    if(chck[next] == node) node = next;
-	    else                   return false;
+	    node = nodes.next(node, codes.code((last=key.read())+1));
+	    if(node == -1)
+		return false;
         }
     }
 
-    private boolean tailEqual(final int tailHead, CodeStream in) {
-	int i=0;
-	for(;; i++, in.read())
-	    if(in.peek() != tail.charAt(tailHead+i))
-		break;
-	return in.peek() ==-1 && tail.charAt(tailHead+i)=='\0';
+    /**
+     * 文字列の指定範囲に対して共通接頭辞検索を行う。<br />
+     * {@code text}の{@code start}から始まり{@code end}以前で終わる部分文字列のうち、トライ内にキーとして存在するもの全てが、長さの昇順でコールバックに通知される。<br />
+     * 空文字列のキーは報告されない。<br />
+     * {@link #commonPrefixSearch(CodeStream,Node)}とは異なり、一度の呼び出しで全てのマッチングが報告され、検索のためのオブジェクトの生成も行われない。
+     *
+     * @param text 検索対象の文字列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @param fn マッチしたキーの長さおよびIDを受け取るコールバック
+     */
+    public void commonPrefixSearch(final CharSequence text, final int start, final int end, final PrefixCallback fn) {
+        final int terminalCode = codes.code(0);
+	int node = 0;
+	int pos = start;
+	for(;;) {
+	    final int base = nodes.base(node);
+	    if(base < 0) {
+		final int len = tail.prefixLength(-base, text, pos, end);
+		if(len != -1 && (node != 0 || len != 0)) // a root leaf holding the empty key is not reported either
+		    fn.found(pos+len-start, id(node));
+		return;
+	    }
+
+	    if(node != 0) {
+		final int terminal = nodes.next(node, terminalCode);
+		if(terminal != -1)
+		    fn.found(pos-start, id(terminal));
+	    }
+	    
+	    if(pos == end)
+		return;
+	    node = nodes.next(node, codes.code(text.charAt(pos++)+1));
+	    if(node == -1)
+		return;
+	}
+    }
+
+    /**
+     * 文字配列の指定範囲に対して共通接頭辞検索を行う。<br />
+     * {@link #commonPrefixSearch(CharSequence,int,int,PrefixCallback)}の{@code char[]}版。
+     *
+     * @param text 検索対象の文字配列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @param fn マッチしたキーの長さおよびIDを受け取るコールバック
+     */
+    public void commonPrefixSearch(final char[] text, final int start, final int end, final PrefixCallback fn) {
+	final int terminalCode = codes.code(0);
+	int node = 0;
+	int pos = start;
+	for(;;) {
+	    final int base = nodes.base(node);
+	    if(base < 0) {
+		final int len = tail.prefixLength(-base, text, pos, end);
+		if(len != -1 && (node != 0 || len != 0)) // a root leaf holding the empty key is not reported either
+		    fn.found(pos+len-start, id(node));
+		return;
+	    }
+
+	    if(node != 0) {
+		final int terminal = nodes.next(node, terminalCode);
+		if(terminal != -1)
+		    fn.found(pos-start, id(terminal));
+	    }
+	    
+	    if(pos == end)
+		return;
+	    node = nodes.next(node, codes.code(text[pos++]+1));
+	    if(node == -1)
+		return;
+	}
+    }
+
+    /**
+     * 文字列の指定範囲に対して共通接頭辞検索を行い、結果を呼び出し元が用意したバッファに格納する。<br />
+     * バッファの内容は検索前にクリアされる。バッファの容量を超えたマッチングは破棄される。
+     *
+     * @param text 検索対象の文字列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @param result 結果を格納するバッファ
+     * @return バッファに格納されたマッチングの数
+     */
+    public int commonPrefixSearch(final CharSequence text, final int start, final int end, final PrefixMatches result) {
+	result.clear();
+	commonPrefixSearch(text, start, end, (PrefixCallback)result);
+	result.resolveValues(values);
+	return result.size();
+    }
+
+    /**
+     * 文字配列の指定範囲に対して共通接頭辞検索を行い、結果を呼び出し元が用意したバッファに格納する。<br />
+     * {@link #commonPrefixSearch(CharSequence,int,int,PrefixMatches)}の{@code char[]}版。
+     *
+     * @param text 検索対象の文字配列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @param result 結果を格納するバッファ
+     * @return バッファに格納されたマッチングの数
+     */
+    public int commonPrefixSearch(final char[] text, final int start, final int end, final PrefixMatches result) {
+	result.clear();
+	commonPrefixSearch(text, start, end, (PrefixCallback)result);
+	result.resolveValues(values);
+	return result.size();
+    }
+
+    /**
+     * 文字列の指定範囲に対して最長一致検索を行う。<br />
+     * {@code text}の{@code start}から始まり{@code end}以前で終わる部分文字列のうち、トライ内にキーとして存在する最長のものを探す。<br />
+     * 空文字列のキーはマッチしない。<br />
+     * 結果は、キーの長さとIDを一つのlong値にまとめて返される。それぞれの値は{@link #matchLength}および{@link #matchId}で取り出す。
+     *
+     * @param text 検索対象の文字列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @return マッチしたキーの長さとID。マッチするキーが存在しない場合は-1。
+     */
+    public long longestPrefix(final CharSequence text, final int start, final int end) {
+	final int terminalCode = codes.code(0);
+	long last = -1;
+	int node = 0;
+	int pos = start;
+	for(;;) {
+	    final int base = nodes.base(node);
+	    if(base < 0) {
+		final int len = tail.prefixLength(-base, text, pos, end);
+		return len == -1 || (node == 0 && len == 0) ? last : match(pos+len-start, id(node)); // a root leaf holding the empty key is not a match either
+	    }
+
+	    if(node != 0) {
+		final int terminal = nodes.next(node, terminalCode);
+		if(terminal != -1)
+		    last = match(pos-start, id(terminal));
+	    }
+	    
+	    if(pos == end)
+		return last;
+	    node = nodes.next(node, codes.code(text.charAt(pos++)+1));
+	    if(node == -1)
+		return last;
+	}
+    }
+
+    /**
+     * {@link #longestPrefix}の結果から、マッチしたキーの長さを取り出す。
+     * @param match {@link #longestPrefix}の結果。-1以外。
+     * @return キーの長さ
+     */
+    public static int matchLength(long match) { return (int)(match >>> 32); }
+
+    /**
+     * {@link #longestPrefix}の結果から、マッチしたキーのIDを取り出す。
+     * @param match {@link #longestPrefix}の結果。-1以外。
+     * @return キーのID
+     */
+    public static int matchId(long match) { return (int)match; }
+
+    /**
+     * 辞書順でキーより小さいキーの数を返す。<br />
+     * キーがトライに存在する場合は、そのキーのIDに等しい。
+     * キー{@code a}、{@code b}に対して、{@code [rank(a),rank(b))}が、{@code a}以上{@code b}未満のキーのIDの範囲となる。<br />
+     * キーが存在する場合は、キーの長さに比例する時間で終了する。
+     * 途中のノードに遷移できる子が無い場合は、そのノードの子の走査(最悪で文字の種類数に比例する)が加わる。
+     *
+     * @param key キー文字列。トライに存在しなくても良い
+     * @return キーより小さいキーの数
+     * @throws IllegalStateException キーのIDが辞書順に割り当てられていないトライの場合に送出される
+     * @see TrieBuilder#setLexicographicIds
+     */
+    public int rank(final CharSequence key) {
+	requireOrder();
+	int node = 0;
+	for(int pos=0;; pos++) {
+	    final int base = nodes.base(node);
+	    if(base < 0)
+		return order.low(node) + (tail.compare(-base, key, pos) < 0 ? 1 : 0);
+	    if(pos == key.length())
+		return order.low(node); // every key in the subtree starts with 'key'
+
+	    final int ch = key.charAt(pos);
+	    final int child = nodes.next(node, codes.code(ch+1));
+	    if(child == -1)
+		return lowerBound(node, ch+1);
+	    node = child;
+	}
+    }
+
+    /**
+     * 接頭辞で始まるキーのIDの範囲を返す。<br />
+     * IDは辞書順に割り当てられているため、接頭辞で始まるキーのIDは常に連続した範囲となる。
+     * 範囲の開始位置と終了位置(終了位置のIDは含まない)を一つのlong値にまとめて返す。それぞれの値は{@link #rangeBegin}および{@link #rangeEnd}で取り出す。<br />
+     * 接頭辞で始まるキーが無い場合は、開始位置と終了位置が共に{@link #rank rank(prefix)}となる空の範囲を返す。<br />
+     * 接頭辞で始まるキーが存在する場合は、キーを列挙せずに、接頭辞の長さに比例する時間で終了する。
+     *
+     * @param prefix 接頭辞
+     * @return IDの範囲
+     * @throws IllegalStateException キーのIDが辞書順に割り当てられていないトライの場合に送出される
+     * @see TrieBuilder#setLexicographicIds
+     */
+    public long prefixIdRange(final CharSequence prefix) {
+	requireOrder();
+	int node = 0;
+	for(int pos=0;; pos++) {
+	    final int base = nodes.base(node);
+	    if(base < 0) {
+		final int id = order.low(node);
+		if(tail.skipPrefix(-base, prefix, pos) != -1)
+		    return range(id, id+1);
+		final int r = id + (tail.compare(-base, prefix, pos) < 0 ? 1 : 0);
+		return range(r, r);
+	    }
+	    if(pos == prefix.length())
+		return range(order.low(node), order.high(node));
+
+	    final int ch = prefix.charAt(pos);
+	    final int child = nodes.next(node, codes.code(ch+1));
+	    if(child == -1) {
+		final int r = lowerBound(node, ch+1);
+		return range(r, r);
+	    }
+	    node = child;
+	}
+    }
+
+    /**
+     * 接頭辞で始まるキーの数を返す。<br />
+     * {@code rangeEnd(prefixIdRange(prefix)) - rangeBegin(prefixIdRange(prefix))}に等しい。
+     *
+     * @param prefix 接頭辞
+     * @return キーの数
+     * @throws IllegalStateException キーのIDが辞書順に割り当てられていないトライの場合に送出される
+     * @see #prefixIdRange
+     */
+    public int prefixCount(final CharSequence prefix) {
+	final long range = prefixIdRange(prefix);
+	return rangeEnd(range) - rangeBegin(range);
+    }
+
+    /**
+     * {@link #prefixIdRange}の結果から、範囲の開始位置を取り出す。
+     * @param range {@link #prefixIdRange}の結果
+     * @return 範囲に含まれる最小のID
+     */
+    public static int rangeBegin(long range) { return (int)(range >>> 32); }
+
+    /**
+     * {@link #prefixIdRange}の結果から、範囲の終了位置を取り出す。
+     * @param range {@link #prefixIdRange}の結果
+     * @return 範囲に含まれる最大のID+1
+     */
+    public static int rangeEnd(long range) { return (int)range; }
+
+    private static long range(int begin, int end) { return ((long)begin << 32) | end; }
+
+    // returns the smallest ID in the subtrees of the children of 'node' whose character index is larger than 'index'
+    private int lowerBound(final int node, final int index) {
+	final int[] ordered = codes.orderedCodes();
+	int lo=0, hi=ordered.length;
+	while(lo < hi) {
+	    final int mid = (lo+hi) >>> 1;
+	    if(codes.index(ordered[mid]) <= index)
+		lo = mid+1;
+	    else
+		hi = mid;
+	}
+	for(int i=lo; i < ordered.length; i++) {
+	    final int child = nodes.next(node, ordered[i]);
+	    if(child != -1)
+		return order.low(child);
+	}
+	return order.high(node);
+    }
+
+    private void requireOrder() {
+	if(order == null)
+	    throw new IllegalStateException("The trie does not have lexicographic IDs");
+    }
+
+    // the ID of the key at the leaf node. the rule is shared with FailureLinks through KeyOrder.id
+    private int id(final int leaf) {
+	return KeyOrder.id(order, bv, leaf);
+    }
+
+    /**
+     * 文字列中に出現する全てのキーを、一回の線形走査で報告する(Aho-Corasick法)。<br />
+     * キーの出現は、終了位置の昇順に報告される。終了位置が同じ出現は、長いキーから順に報告される。<br />
+     * 空文字列のキーは報告されない。
+     *
+     * @param text 走査対象の文字列
+     * @param fn 出現位置およびキーのIDを受け取るコールバック
+     * @throws IllegalStateException トライが失敗リンクを保持していない場合に送出される
+     */
+    public void scan(final CharSequence text, final ScanCallback fn) {
+	failureLinks().scan(text, fn);
+    }
+
+    /**
+     * 文字ストリーム中に出現する全てのキーを、一回の線形走査で報告する(Aho-Corasick法)。<br />
+     * 走査中に保持されるのは一定サイズの読み込みバッファのみのため、メモリに載らない長さのテキストも扱える。<br />
+     * ストリームは終端まで読み込まれるが、クローズはされない。
+     *
+     * @param in 走査対象の文字ストリーム
+     * @param fn 出現位置およびキーのIDを受け取るコールバック
+     * @throws IOException 入力エラーが生じた場合に送出される
+     * @throws IllegalStateException トライが失敗リンクを保持していない場合に送出される
+     * @see #scan(CharSequence, ScanCallback)
+     */
+    public void scan(final Reader in, final ScanCallback fn) throws IOException {
+	failureLinks().scan(in, fn);
+    }
+
+    /**
+     * 予測検索を行う。<br />
+     * {@code predictiveSearch(prefix, Integer.MAX_VALUE, new Trie.PredictiveCursor())}に等しい。
+     *
+     * @param prefix 接頭辞
+     * @return 検索結果を列挙するカーソル
+     */
+    public PredictiveCursor predictiveSearch(final CharSequence prefix) {
+	return predictiveSearch(prefix, Integer.MAX_VALUE, new PredictiveCursor());
+    }
+
+    /**
+     * 予測検索を行う。<br />
+     * {@code prefix}で始まるキーを、辞書順(文字のコード値順)に最大{@code limit}個列挙するよう{@code cursor}を初期化する。<br />
+     * キーは{@link PredictiveCursor#next}の呼び出し毎に一つずつ辿られるため、上位N件だけを取り出す場合に部分木全体を展開する必要はない。<br />
+     * 一つのカーソルを複数回の検索で使い回すことで、検索毎のオブジェクト生成を避けることができる。
+     *
+     * @param prefix 接頭辞
+     * @param limit 列挙するキーの最大数
+     * @param cursor 初期化するカーソル。以前の検索の状態は破棄される。
+     * @return {@code cursor}
+     */
+    public PredictiveCursor predictiveSearch(final CharSequence prefix, final int limit, final PredictiveCursor cursor) {
+	cursor.reset(this, limit);
+	cursor.key.append(prefix);
+
+	int node = 0;
+	for(int pos=0;; pos++) {
+	    final int base = nodes.base(node);
+	    if(base < 0) {
+		// the rest of the prefix must be a prefix of the tail
+		final int rest = tail.skipPrefix(-base, prefix, pos);
+		if(rest == -1)
+		    return cursor;
+		cursor.leaf = node;
+		cursor.leafTail = rest;
+		return cursor;
+	    }
+
+	    if(pos == prefix.length()) {
+		cursor.push(node, prefix.length());
+		return cursor;
+	    }
+	    node = nodes.next(node, codes.code(prefix.charAt(pos)+1));
+	    if(node == -1)
+		return cursor;
+	}
+    }
+
+    private FailureLinks failureLinks() {
+	if(links == null)
+	    throw new IllegalStateException("This trie has no failure links. Build it with TrieBuilder.setFailureLinks(true).");
+	return links;
+    }
+
+    /**
+     * 並列版の{@link #searchAll}で、キーの配列の範囲を分割して検索するタスク。
+     */
+    private final class SearchTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final CharSequence[] keys;
+	private final int[] ids;
+	private final int beg;
+	private final int end;
+
+	public SearchTask(CharSequence[] keys, int[] ids, int beg, int end) {
+	    this.keys = keys;
+	    this.ids = ids;
+	    this.beg = beg;
+	    this.end = end;
+	}
+
+	protected void compute() {
+	    if(end-beg <= PARALLEL_SEARCH_UNIT) {
+		searchAll(keys, ids, beg, end);
+		return;
+	    }
+	    final int mid = (beg+end) >>> 1;
+	    invokeAll(new SearchTask(keys, ids, beg, mid), new SearchTask(keys, ids, mid, end));
+	}
     }
 
-    private boolean tailIncluding(final int tailHead, CodeStream in) {
-        int i = 0;
-	for(;; i++, in.read())
-	    if(in.peek() != tail.charAt(tailHead+i))
-		break;
-	return tail.charAt(tailHead+i)=='\0';
+    private static long match(int length, int id) {
+	return ((long)length << 32) | (id & 0xFFFFFFFFL);
     }
 
+
     /**
      * Trieのノード。
      */
@@ -206,6 +879,225 @@ public final class Trie {
         public Node clone() { return new Node(this); }
     }
 
+    /**
+     * 共通接頭辞検索の結果を受け取るコールバックのインターフェース。
+     */
+    public interface PrefixCallback {
+        /**
+         * マッチしたキーを受け取る。
+         * @param length マッチしたキーの長さ
+         * @param id マッチしたキーのID
+         */
+        public void found(int length, int id);
+    }
+
+    /**
+     * {@link Trie#scan}の結果を受け取るコールバックのインターフェース。
+     */
+    public interface ScanCallback {
+        /**
+         * 出現したキーを受け取る。
+         * @param start 出現の開始位置
+         * @param end 出現の終了位置(この位置の文字は含まない)
+         * @param id 出現したキーのID
+         */
+        public void found(long start, long end, int id);
+    }
+
+    /**
+     * 共通接頭辞検索の結果を格納する固定長のバッファ。<br />
+     * 一度作成したインスタンスを複数回の検索で使い回すことで、検索毎のオブジェクト生成を避けることができる。<br />
+     * 値が対応付けられたトライで検索した場合は、各マッチングのキーに対応付けられた値も格納される。
+     */
+    public static final class PrefixMatches implements PrefixCallback {
+        private final int[] lengths;
+        private final int[] ids;
+        private final long[] values;
+        private boolean hasValues = false; // valuesが現在の結果に対応しているかどうか
+        private int size = 0;
+
+        /**
+         * 指定された容量のバッファを作成する。
+         * @param capacity 格納可能なマッチングの最大数
+         */
+        public PrefixMatches(int capacity) {
+            lengths = new int[capacity];
+            ids = new int[capacity];
+            values = new long[capacity];
+        }
+
+        void resolveValues(ValueArray table) {
+            hasValues = table != null;
+            if(table != null)
+                for(int i=0; i < size; i++)
+                    values[i] = table.get(ids[i]);
+        }
+
+        public void found(int length, int id) {
+            hasValues = false; // values of the previous search are stale until resolved
+            if(size < ids.length) {
+                lengths[size] = length;
+                ids[size] = id;
+                size++;
+            }
+        }
+
+        /**
+         * バッファの内容をクリアする。
+         */
+        public void clear() {
+            size = 0;
+            hasValues = false;
+        }
+
+        /**
+         * 格納されているマッチングの数を返す。
+         * @return マッチングの数
+         */
+        public int size() { return size; }
+
+        /**
+         * i番目のマッチングのキーの長さを返す。
+         * @param i インデックス。0以上{@link #size}未満。
+         * @return キーの長さ
+         */
+        public int length(int i) { return lengths[i]; }
+
+        /**
+         * i番目のマッチングのキーのIDを返す。
+         * @param i インデックス。0以上{@link #size}未満。
+         * @return キーのID
+         */
+        public int id(int i) { return ids[i]; }
+
+        /**
+         * i番目のマッチングのキーに対応付けられた値を返す。<br />
+         * 値が対応付けられたトライで{@link Trie#commonPrefixSearch(CharSequence,int,int,PrefixMatches)}などにより検索した結果に対してのみ有効。
+         * @param i インデックス。0以上{@link #size}未満。
+         * @return 値
+         * @throws IllegalStateException 値が対応付けられていないトライで検索した結果の場合、あるいはコールバックとして直接用いた場合に送出される
+         */
+        public long value(int i) {
+            if(hasValues == false)
+                throw new IllegalStateException("The matches have no values");
+            return values[i];
+        }
+    }
+
+    /**
+     * 予測検索の結果を一つずつ列挙するカーソル。<br />
+     * {@link Trie#predictiveSearch(CharSequence,int,PredictiveCursor)}で初期化した後、{@link #next}がfalseを返すまで繰り返し呼び出す。<br />
+     * 深さ優先探索の状態を保持するスタックは、検索をまたいで再利用される。
+     */
+    public static final class PredictiveCursor {
+        private Trie trie;
+        private int limit;
+        private int count;
+        private int[] stackNode = new int[16];
+        private int[] stackCode = new int[16]; // 次に調べる遷移コードの、Trie.codes.orderedCodes()内での位置
+        private int[] stackKeyLength = new int[16];
+        private int depth;
+        private int leaf = -1; // 未報告の葉ノード。無い場合は-1
+        private int leafTail;  // 葉ノードの末尾文字列のうち、未だキーに追加していない部分のTAIL配列内での開始位置
+        private int id = -1;
+        private final StringBuilder key = new StringBuilder();
+
+        /**
+         * 空のカーソルを作成する。
+         */
+        public PredictiveCursor() {}
+
+        /**
+         * 次のキーに進む。
+         * @return 次のキーが存在する場合はtrue。全てのキーを列挙し終えたか、上限数に達した場合はfalse。
+         */
+        public boolean next() {
+            if(count >= limit)
+                return false;
+
+            if(leaf != -1) {
+                emitLeaf(leaf, leafTail);
+                leaf = -1;
+                return true;
+            }
+
+            final int[] ordered = trie.codes.orderedCodes();
+            final int terminalCode = trie.codes.code(0);
+            while(depth > 0) {
+                final int top = depth-1;
+                final int node = stackNode[top];
+                int child = -1;
+                int i = stackCode[top];
+                for(; i < ordered.length; i++)
+                    if((child = trie.nodes.next(node, ordered[i])) != -1)
+                        break;
+                if(child == -1) {
+                    depth--;
+                    continue;
+                }
+                stackCode[top] = i+1;
+                key.setLength(stackKeyLength[top]);
+
+                final int code = ordered[i];
+                if(code == terminalCode) {
+                    id = trie.id(child);
+                    count++;
+                    return true;
+                }
+
+                key.append((char)(trie.codes.index(code)-1));
+                final int base = trie.nodes.base(child);
+                if(base < 0) {
+                    emitLeaf(child, -base);
+                    return true;
+                }
+                push(child, key.length());
+            }
+            return false;
+        }
+
+        /**
+         * 現在のキーのIDを返す。
+         * @return キーのID
+         */
+        public int id() { return id; }
+
+        /**
+         * 現在のキーを返す。<br />
+         * 返されるインスタンスはカーソル内部のバッファであり、その内容は次の{@link #next}呼び出しで書き換えられる。
+         * @return キー
+         */
+        public CharSequence key() { return key; }
+
+        private void reset(Trie trie, int limit) {
+            this.trie = trie;
+            this.limit = limit;
+            count = 0;
+            depth = 0;
+            leaf = -1;
+            id = -1;
+            key.setLength(0);
+        }
+
+        private void push(int node, int keyLength) {
+            if(depth == stackNode.length) {
+                stackNode = java.util.Arrays.copyOf(stackNode, depth*2);
+                stackCode = java.util.Arrays.copyOf(stackCode, depth*2);
+                stackKeyLength = java.util.Arrays.copyOf(stackKeyLength, depth*2);
+            }
+            stackNode[depth] = node;
+            stackCode[depth] = 0;
+            stackKeyLength[depth] = keyLength;
+            depth++;
+        }
+
+        private void emitLeaf(int node, int tailHead) {
+            trie.tail.appendTo(tailHead, key);
+            id = trie.id(node);
+            count++;
+        }
+    }
+
     /**
      * トライの検索キーとして使われるストリームクラスのインターフェース。
      */
@@ -253,4 +1145,75 @@ public final class Trie {
          */
         public int offset() { return pos; }
     }
+
+    /**
+     * {@link CodeStream}のbyte配列に対する実装。<br />
+     * 各byteは、0～255のコード値を持つ一文字として読み出される。
+     */
+    public static class ByteArrayCodeStream implements CodeStream {
+        private final byte[] source;
+        private final int end;
+        private int pos;
+        
+        /**
+         * byte配列の{@code [beg,end)}の範囲をもとにストリームを作成する。
+         * @param source ストリームのソースとなるbyte配列
+         * @param beg 開始位置
+         * @param end 終了位置
+         */
+        public ByteArrayCodeStream(byte[] source, int beg, int end) {
+            this.source = source;
+            this.pos = beg;
+            this.end = end;
+        }
+        
+        public int read() {
+            return pos < end ? source[pos++]&0xFF : -1;
+        }
+        
+        public int peek() {
+            return pos < end ? source[pos]&0xFF : -1;
+        }
+
+        /**
+         * byte配列内での現在位置を返す
+         * @return byte配列内での現在位置
+         */
+        public int offset() { return pos; }
+    }
+
+    /**
+     * {@link CodeStream}の{@link ByteBuffer}に対する実装。<br />
+     * バッファの現在位置からリミットまでの各byteが、0～255のコード値を持つ一文字として読み出される。
+     * バッファは絶対位置指定で参照されるため、バッファ自体の現在位置は変更されない。
+     */
+    public static class ByteBufferCodeStream implements CodeStream {
+        private final ByteBuffer source;
+        private final int end;
+        private int pos;
+        
+        /**
+         * バッファをもとにストリームを作成する。
+         * @param source ストリームのソースとなるバッファ
+         */
+        public ByteBufferCodeStream(ByteBuffer source) {
+            this.source = source;
+            this.pos = source.position();
+            this.end = source.limit();
+        }
+        
+        public int read() {
+            return pos < end ? source.get(pos++)&0xFF : -1;
+        }
+        
+        public int peek() {
+            return pos < end ? source.get(pos)&0xFF : -1;
+        }
+
+        /**
+         * バッファ内での現在位置を返す
+         * @return バッファ内での現在位置
+         */
+        public int offset() { return pos; }
+    }
 }
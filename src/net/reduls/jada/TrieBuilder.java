@@ -3,6 +3,18 @@ package net.reduls.jada;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import java.util.PriorityQueue;
 
@@ -11,19 +23,35 @@ import java.util.PriorityQueue;
  */
 public final class TrieBuilder {
     private boolean hasBuilt = false;
+    private long allocationCount = 0;
+    private long probeCount = 0;
 
-    private String[] keys;
+    private String[] keys;      // 入力キーセット。ソース(source)から逐次読み込む場合はnull
+    private KeySource source;
+    private int keyCount;
+    private final List<Children> childrenStack = new ArrayList<Children>();
     private NodeAllocator alloca;
-    private int[] base;
-    private int[] chck;
+    private WorkArea area = WorkArea.HEAP;
+    private IntBuffer base;
+    private IntBuffer chck;
     
     private StringBuilder tailSB = new StringBuilder();
-    private String tail;
+    private TailArray tailArray;
+    private boolean tailShrunk = false;
+    private boolean distinctBases = true; // falseなら、並列構築時の再配置で各ノードのBASE値が一意にされていない
 
-    private int charcode[] = new int[0x10001];
-    private CharFreq charFreqs[] = new CharFreq[0x10001];
+    private int charcode[];
+    private CodeMap codes;
 
     private int codeLimit = -1;
+    private NodeLayout layout = NodeLayout.SPLIT;
+    private boolean failureLinks = false;
+    private int parallelism = 1;
+    private long[] values;          // 入力キーの順に並んだ値。指定されなかった場合はnull
+    private boolean bitPackedValues = true;
+    private ValueArray valueArray;  // IDの順に並べ直した値のテーブル
+    private boolean lexicographicIds = false;
+    private KeyOrder keyOrder;
 
     /**
      * トライの構築対象となるキーセットを受け取り、{@link TrieBuilder}インスタンスを作成する。<br />
@@ -37,13 +65,188 @@ public final class TrieBuilder {
         int i=0;
         for(String key : keys) 
 	    this.keys[i++] = key;
+	keyCount = this.keys.length;
+	charcode = new int[0x10001];
+    }
 
-	final int nodeLimit = (int)((double)countNode()*1.5)+0x10000;
-	base = new int[nodeLimit];
-	chck = new int[nodeLimit];
-	alloca = new NodeAllocator(base, chck, codeLimit);
-	
-	tailSB.append("\0\0");
+    /**
+     * byte列のキーセットから{@link TrieBuilder}インスタンスを作成する。<br />
+     * 各byteは、0～255のコード値を持つ一文字として扱われる(ISO-8859-1として復号したキーセットから構築するのに等しい)。
+     * そのため、遷移に用いられるコードは高々256種類となり、TAIL配列は1byte/文字で保持される。<br />
+     * 構築されたトライは、{@link Trie#search(byte[],int,int)}や{@link Trie#search(java.nio.ByteBuffer)}を用いて、
+     * 入出力バッファ内のUTF-8などのbyte列を復号せずにそのまま検索できる。<br />
+     * 入力キーセットは、符号無しbyteの辞書順にソート済みで、各要素はユニークである必要がある。
+     *
+     * @param keys トライ構築対象となるbyte列のキーセット
+     * @return {@link TrieBuilder}インスタンス
+     */
+    public static TrieBuilder fromByteKeys(final Collection<byte[]> keys) {
+	final List<String> latin1 = new ArrayList<String>(keys.size());
+	for(byte[] key : keys)
+	    latin1.add(new String(key, StandardCharsets.ISO_8859_1));
+	return new TrieBuilder(latin1);
+    }
+
+    private TrieBuilder(final KeySource source) {
+	this.source = source;
+	charcode = new int[0x10001];
+    }
+
+    /**
+     * ソート済みのキー列を逐次読み込んでトライを構築する{@link TrieBuilder}インスタンスを作成する。<br />
+     * キー列は{@link #build}の呼び出し時に二回走査される。一回目で文字の出現頻度とノード数を数え、二回目でノードを配置する。
+     * 各走査では、直前のキーと現在のキーの共通接頭辞上のノードのみがメモリ上に保持され、キーの集合全体は保持されない。<br />
+     * そのため、{@code keys}は、同じ内容を繰り返し列挙可能である必要がある。<br />
+     * {@link #setParallelism}の指定は無視される。<br />
+     * ノードは、そのノード以下の部分木が確定した時点で下から順に配置されるため、配置は{@link #TrieBuilder(Collection)}で構築した場合とは異なる。
+     *
+     * @param keys トライ構築対象となるキー列。ソート済みで各要素はユニークである必要がある。
+     * @return {@link TrieBuilder}インスタンス
+     */
+    public static TrieBuilder fromSortedKeys(final Iterable<? extends CharSequence> keys) {
+	return new TrieBuilder(new KeySource() {
+		public void feed(KeySink sink) {
+		    for(CharSequence key : keys)
+			sink.add(key);
+		}
+	    });
+    }
+
+    /**
+     * ソート済みのキーを一行に一つずつ含むファイルを逐次読み込んでトライを構築する{@link TrieBuilder}インスタンスを作成する。<br />
+     * ファイルは{@link #build}の呼び出し時に二回読み込まれる。
+     * ファイルの読み込みに失敗した場合は、{@link #build}から{@link UncheckedIOException}が送出される。
+     *
+     * @param filepath キーセットを保持するファイルのパス
+     * @param charset ファイルの文字コード
+     * @return {@link TrieBuilder}インスタンス
+     * @see #fromSortedKeys
+     */
+    public static TrieBuilder fromSortedFile(final String filepath, final String charset) {
+	return new TrieBuilder(new KeySource() {
+		public void feed(KeySink sink) {
+		    try {
+			final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filepath), charset));
+			try {
+			    for(String line=br.readLine(); line!=null; line=br.readLine())
+				sink.add(line);
+			} finally {
+			    br.close();
+			}
+		    } catch (IOException e) {
+			throw new UncheckedIOException(e);
+		    }
+		}
+	    });
+    }
+
+    // 並列構築時に、キーセットの一部分(部分トライ群)を構築するためのインスタンスを作成する
+    private TrieBuilder(String[] keys, int[] charcode, int codeLimit, int nodeLimit, WorkArea area) {
+	this.keys = keys;
+	this.keyCount = keys.length;
+	this.charcode = charcode;
+	this.codeLimit = codeLimit;
+	this.area = area;
+	initArrays(nodeLimit);
+    }
+
+    /**
+     * 構築するトライのノードの配置形式を設定する。<br />
+     * デフォルトは{@link NodeLayout#SPLIT}。
+     *
+     * @param layout ノードの配置形式
+     */
+    public void setNodeLayout(NodeLayout layout) {
+	this.layout = layout;
+    }
+
+    /**
+     * Aho-Corasick走査({@link Trie#scan})用の失敗リンクを計算するかどうかを設定する。<br />
+     * 失敗リンクはトライと共に保存され、状態(ノード数+TAIL配列のサイズ)毎に3つ、キー毎に2つのint値を消費する。<br />
+     * 失敗リンクを計算する場合は、TAIL配列の圧縮は行えない。また、TAIL配列は可変長の符号化方式(UTF-8)では保持されない。
+     * デフォルトはfalse。
+     *
+     * @param failureLinks trueなら失敗リンクを計算する
+     */
+    public void setFailureLinks(boolean failureLinks) {
+	this.failureLinks = failureLinks;
+    }
+
+    /**
+     * 構築に用いるスレッド数を設定する。<br />
+     * 2以上の場合は、キーセットを先頭文字によって複数のグループに分割し、各グループの部分トライをそれぞれ独立した配列上に並列に構築した後、
+     * それらを一つのダブル配列へと再配置する。<br />
+     * 再配置では、各部分トライを、先に配置した部分トライ群の空きノードに収まる最小の位置へずらして詰める。<br />
+     * 並列構築したトライは、逐次構築したものと同じキーセットを保持するが、ノードの配置が異なるため、キーに割り当てられるIDは一致せず、配列のサイズも異なる。
+     * 部分トライ毎の配置の隙間は埋め切れないため、配列は逐次構築した場合よりも大きくなり得る(特にアルファベットサイズが大きい場合)。<br />
+     * また、構築時のメモリ消費量は、部分トライ群の分だけ多くなる。<br />
+     * {@link #fromSortedKeys}および{@link #fromSortedFile}で作成したインスタンスでは、この指定は無視される(常に逐次構築となる)。<br />
+     * デフォルトは1(逐次構築)。
+     *
+     * @param parallelism スレッド数
+     */
+    public void setParallelism(int parallelism) {
+	this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * 構築時のBASE配列およびCHECK配列を、ヒープ上ではなく、指定されたディレクトリ内の一時ファイルにマッピングされた領域に確保する。<br />
+     * 配列はヒープの外に置かれ、物理メモリに収まらない部分はOSによってファイルに書き出されるため、ヒープサイズを調整せずに大きなキーセットを扱える。
+     * 配列の大きさはそれぞれ2GB(ノード数{@code 2^29})未満に制限される。<br />
+     * ノードの配置形式が{@link NodeLayout#SPLIT}の場合は、構築されたトライはこの領域を(コピーせずに)そのまま参照し、{@link Trie#save}はそこから直接ファイルに書き出す。<br />
+     * nullを指定した場合(デフォルト)は、ヒープ上に確保する。
+     *
+     * @param dirpath 一時ファイルを作成するディレクトリのパス。またはnull
+     */
+    public void setWorkDirectory(String dirpath) {
+	area = dirpath==null ? WorkArea.HEAP : WorkArea.mapped(new File(dirpath));
+    }
+
+    /**
+     * 各キーに対応付ける値を設定する。<br />
+     * {@code setValues(values, true)}に等しい。
+     *
+     * @param values 値の配列。i番目の要素が、入力キーセット内のi番目のキーに対応する
+     * @throws IllegalArgumentException 値の数がキーの数と一致しない場合に送出される
+     */
+    public void setValues(long[] values) {
+	setValues(values, true);
+    }
+
+    /**
+     * 各キーに対応付ける値を設定する。<br />
+     * 値は、構築されたトライ内でキーのIDの順に並べ直され、トライと共に保存される。
+     * 値の範囲(最大値と最小値の差)を表すのに必要なビット幅で、全ての値が同じ幅で詰めて保持される。
+     * 読み込み時には、他の配列と同様に、ヒープへのコピーあるいはファイルのマッピングが行われる。<br />
+     * 値は{@link Trie#value}、{@link Trie#searchValue}、{@link Trie.PrefixMatches#value}で取り出す。<br />
+     * {@link #fromSortedKeys}や{@link #fromSortedFile}で作成したインスタンスでは、値をIDの順に並べ直すために、{@link #build}の呼び出し時にキー列がもう一度走査される。<br />
+     * nullを指定した場合(デフォルト)は、値を保持しない。
+     *
+     * @param values 値の配列。i番目の要素が、入力キーセット内のi番目のキーに対応する。またはnull
+     * @param bitPacked trueなら必要最小限のビット幅で詰める。falseならビット幅を8/16/32/64bitのいずれかに切り上げる(サイズは大きくなるが、値がワードの境界をまたがなくなる)
+     * @throws IllegalArgumentException 値の数がキーの数と一致しない場合に送出される
+     */
+    public void setValues(long[] values, boolean bitPacked) {
+	if(values != null && keys != null && values.length != keys.length)
+	    throw new IllegalArgumentException("The number of values ("+values.length+") does not match the number of keys ("+keys.length+")");
+	this.values = values;
+	this.bitPackedValues = bitPacked;
+	this.valueArray = null;
+    }
+
+    /**
+     * キーのIDを、キーの辞書順(文字のコード値の昇順。すなわち入力キーセットの順)に割り当てるかどうかを設定する。<br />
+     * trueの場合は、各ノードの部分木に含まれるキーのIDの範囲がトライと共に保存され、
+     * {@link Trie#prefixCount}、{@link Trie#prefixIdRange}、{@link Trie#rank}を、キーを列挙せずに接頭辞の長さに比例する時間で求められるようになる。
+     * ノード毎に2つ、キー毎に1つのint値を追加で消費する。<br />
+     * falseの場合(デフォルト)は、IDはダブル配列内での葉ノードの位置の順に割り当てられ、キーの順序とは無関係となる。<br />
+     * {@link #fromSortedKeys}や{@link #fromSortedFile}で作成したインスタンスでは、{@link #build}の呼び出し時にキー列がもう一度走査される。
+     *
+     * @param lexicographicIds trueならIDを辞書順に割り当てる
+     */
+    public void setLexicographicIds(boolean lexicographicIds) {
+	this.lexicographicIds = lexicographicIds;
+	this.valueArray = null;
     }
 
     /**
@@ -59,88 +262,219 @@ public final class TrieBuilder {
     /**
      * トライを構築する。
      *
-     * @param shrinkTail trueならTAIL配列の圧縮を行う。圧縮した場合、TAIL配列のサイズは縮小されるが、その分構築に時間が掛かり、また構築時のメモリ消費量も多くなる。
+     * @param shrinkTail trueならTAIL配列の圧縮(他のキーの末尾文字列の接尾辞となる末尾文字列の共有)を行う。圧縮した場合、TAIL配列のサイズは縮小されるが、その分構築に時間が掛かる。{@link #setParallelism}で指定したスレッド数が圧縮時のソートにも用いられる。
      * @return 構築済みの{@link Trie}インスタンス
+     * @throws IllegalStateException 失敗リンクの計算とTAIL配列の圧縮が同時に指定された場合、
+     *                               あるいは失敗リンクを計算せずに構築した後に、失敗リンクを計算するよう変更して再度呼び出され、TAIL配列がUTF-8で保持されていた場合、
+     *                               あるいは{@link #setValues}で指定した値の数がキーの数と一致しない場合、
+     *                               あるいは{@link NodeLayout#PACKED}以外の形式で並列構築した後に、形式を{@link NodeLayout#PACKED}に変更して再度呼び出された場合に送出される
      */
     public Trie build(boolean shrinkTail) {
+	if((shrinkTail || tailShrunk) && failureLinks)
+	    throw new IllegalStateException("Failure links can not be computed over a shrunk TAIL array.");
+	if(tailArray != null && tailArray.variableWidth() && failureLinks)
+	    throw new IllegalStateException("Failure links can not be computed over a variable-width TAIL array.");
+	if(hasBuilt && layout == NodeLayout.PACKED && distinctBases == false)
+	    throw new IllegalStateException("PACKED layout can not be used for nodes merged without distinct BASE values.");
 	if(hasBuilt==false) {
-            if(keys.length != 0)
-                buildImpl(0, keys.length, 0, 0);
+	    if(source != null) {
+		buildStreaming();
+	    } else if(parallelism > 1 && keys.length > 1) {
+		buildParallel();
+	    } else {
+		initArrays(nodeLimit(countNode()));
+		if(keys.length != 0)
+		    buildImpl(0, keys.length, 0, 0);
+		allocationCount = alloca.allocationCount();
+		probeCount = alloca.probeCount();
+	    }
 	    
 	    int nodeSize=0;
-	    for(int i=0; i < base.length; i++)
-		if(base[i] > nodeSize)
-		    nodeSize = base[i];
+	    for(int i=0; i < base.limit(); i++)
+		if(base.get(i) > nodeSize)
+		    nodeSize = base.get(i);
 	    nodeSize += codeLimit; 
 	    
-	    int tmpBase[] = new int[nodeSize];
-	    int tmpChck[] = new int[nodeSize];
-	    System.arraycopy(base, 0, tmpBase, 0, nodeSize);
-	    System.arraycopy(chck, 0, tmpChck, 0, nodeSize);
-	    base = tmpBase;
-	    chck = tmpChck;
-
-	    for(int i=0; i < base.length; i++) 
-		if(base[i] < 0) 
-		    if(chck[i] < 0 || i == NodeAllocator.headIndex()) 
-			base[i] = 0;
-
-	    tail = tailSB.toString();
+	    // the arrays are not copied: the trie refers to their first 'nodeSize' elements
+	    base = Buffers.head(base, nodeSize);
+	    chck = Buffers.head(chck, nodeSize);
+	    alloca = null;
+
+	    // clear unused nodes: BASE=0, CHECK=-1
+	    for(int i=1; i < base.limit(); i++) 
+		if(chck.get(i) < 0 || chck.get(i) == NodeAllocator.headIndex()) {
+		    base.put(i, 0);
+		    chck.put(i, -1);
+		}
+	    chck.put(0, -1);
+	    if(keyCount == 0)
+		base.put(0, 0);
+
+	    String tail = tailSB.toString();
 	    tailSB.setLength(0);
-	    if(shrinkTail) 
-		tail = new ShrinkTail(base, tail).shrink();
+	    if(shrinkTail) {
+		tail = new ShrinkTail(base, tail, parallelism).shrink();
+		tailShrunk = true;
+	    }
+	    tailArray = TailArray.create(tail, base, failureLinks==false);
 	    
 	    hasBuilt = true;
 	}
 
-	BitVector bv = new BitVector(base.length);
-	for(int i=0; i < base.length; i++) 
-	    if(base[i] < 0)
+	final BitVector.Heap bv = new BitVector.Heap(base.limit());
+	for(int i=0; i < base.limit(); i++) 
+	    if(base.get(i) < 0)
 		bv.set(i, true);
 	bv.buildRankIndex();
 	
-	return new Trie(base, chck, tail, charcode, bv);
+	final NodeArray nodes = NodeArray.create(layout, base, chck, codes.limit(), bv);
+	if(lexicographicIds && keyOrder == null)
+	    keyOrder = keyOrder(nodes);
+	final KeyOrder order = lexicographicIds ? keyOrder : null;
+	final FailureLinks links = failureLinks ? FailureLinks.build(nodes, chck, tailArray, codes, bv, order) : null;
+	if(values != null && valueArray == null)
+	    valueArray = ValueArray.pack(valuesById(new Trie(nodes, tailArray, codes, bv, links, null, order)), bitPackedValues);
+	return new Trie(nodes, tailArray, codes, bv, links, values==null ? null : valueArray, order);
+    }
+
+    // rearranges the values from the input key order into the ID order, by searching each key on the built trie
+    private long[] valuesById(final Trie trie) {
+	if(values.length != keyCount)
+	    throw new IllegalStateException("The number of values ("+values.length+") does not match the number of keys ("+keyCount+")");
+	if(trie.hasLexicographicIds())
+	    return values; // the IDs are the input order
+
+	final long[] byId = new long[keyCount];
+	feedKeys(new KeySink() {
+		private int i = 0;
+		public void add(CharSequence key) {
+		    byId[trie.search(key)] = values[i++];
+		}
+	    });
+	return byId;
+    }
+
+    // walks the path of each key in the input (= lexicographic) order, and records the ID range of every node on the path
+    private KeyOrder keyOrder(final NodeArray nodes) {
+	final int[] low = new int[nodes.size()];
+	final int[] high = new int[nodes.size()]; // 0 if the node has not been visited yet
+	final int[] leaves = new int[keyCount];
+	final int terminalCode = codes.code(0);
+	feedKeys(new KeySink() {
+		private int id = 0;
+		public void add(CharSequence key) {
+		    int node = 0;
+		    for(int pos=0;; pos++) {
+			if(high[node] == 0)
+			    low[node] = id;
+			high[node] = id+1;
+			if(nodes.base(node) < 0)
+			    break;
+			node = nodes.next(node, pos < key.length() ? codes.code(key.charAt(pos)+1) : terminalCode);
+		    }
+		    leaves[id++] = node;
+		}
+	    });
+	return new KeyOrder(IntBuffer.wrap(low), IntBuffer.wrap(high), IntBuffer.wrap(leaves));
+    }
+
+    // passes the input keys to 'sink' in the input order
+    private void feedKeys(final KeySink sink) {
+	if(keys != null) {
+	    for(String key : keys)
+		sink.add(key);
+	    return;
+	}
+
+	source.feed(new KeySink() {
+		private int count = 0;
+		public void add(CharSequence key) {
+		    if(count++ == keyCount)
+			throw new IllegalStateException("The key source returned different keys on a later pass");
+		    sink.add(key);
+		}
+	    });
     }
     
     private void buildImpl(int beg, final int end, final int rootNode, final int depth) {
 	if(end-beg == 1) {
-	    if(rest(keys[beg], depth).isEmpty()==false) {
-		base[rootNode] = -tailSB.length();		
-		tailSB.append(rest(keys[beg], depth)+'\0');
-	    } else {
-		base[rootNode] = -(tailSB.length()-1);
-	    }
+	    base.put(rootNode, appendTail(keys[beg], depth));
 	    return;
 	}
 
-	List<Integer> children = new ArrayList<Integer>();
-	List<Integer> ranges   = new ArrayList<Integer>();
+	final Children children = children(depth);
 	do {
 	    final int ch = readCode(keys[beg], depth);
-	    children.add(charcode[ch]);
-	    ranges.add(beg);
+	    children.add(charcode[ch], beg);
 	    beg = endOfSameNode(beg, end, depth);
 	} while (beg != end);
-	ranges.add(end);
+	children.ranges[children.size] = end;
 
-	final int baseNode = alloca.allocate(children);
-	for(int i=0; i < children.size(); i++) 
-	    buildImpl(ranges.get(i), ranges.get(i+1), 
-                      setNode(rootNode, baseNode, children.get(i)), depth+1);
+	final int baseNode = allocate(children.codes, children.size);
+	for(int i=0; i < children.size; i++) 
+	    buildImpl(children.ranges[i], children.ranges[i+1], 
+		      setNode(rootNode, baseNode, children.codes[i]), depth+1);
+    }
+
+    // allocates the BASE/CHECK arrays on the work area, and the allocator over them
+    private void initArrays(final int nodeLimit) {
+	base = area.allocate(nodeLimit);
+	chck = area.allocate(nodeLimit);
+	alloca = new NodeAllocator(base, chck, codeLimit, area);
+	tailSB.append("\0\0");
+    }
+
+    private static int nodeLimit(final long nodeCount) {
+	return (int)Math.min(Integer.MAX_VALUE-8, (long)(nodeCount*1.5)+0x10000);
+    }
+
+    private int allocate(final int[] codes, final int size) {
+	final int baseNode = alloca.allocate(codes, size);
+	base = alloca.base(); // the allocator may have extended the arrays
+	chck = alloca.check();
+	return baseNode;
+    }
+
+    // returns the (cleared) child buffer for the node at 'depth'. buffers are reused across nodes of the same depth
+    private Children children(final int depth) {
+	while(childrenStack.size() <= depth)
+	    childrenStack.add(new Children());
+	final Children children = childrenStack.get(depth);
+	children.size = 0;
+	return children;
+    }
+
+    // appends the rest of 'key' after 'depth' to the tail and returns the BASE value of the leaf
+    private int appendTail(final CharSequence key, final int depth) {
+	if(depth >= key.length())
+	    return -(tailSB.length()-1);
+	
+	final int head = tailSB.length();
+	tailSB.append(key, depth, key.length()).append('\0');
+	return -head;
     }
 
     private int setNode(int node, int baseNode, int code) {
 	int next   = baseNode + code;
-	base[node] = baseNode;
-	chck[next] = node;
+	base.put(node, baseNode);
+	chck.put(next, node);
 	return next;
     }
 
     private int countNode()  {
+	final int freqs[] = new int[0x10001];
+	final int count = keys.length==0 ? 0 : countNodeImpl(0, keys.length, 0, freqs);
+	assignCodes(freqs);
+	return count;
+    }
+
+    // assigns transition codes in descending order of character frequency
+    private void assignCodes(final int freqs[]) {
+	final CharFreq charFreqs[] = new CharFreq[0x10001];
 	for(int i=0; i < 0x10001; i++)
 	    charFreqs[i] = new CharFreq(i);
-
-	final int count = keys.length==0 ? 0 : countNodeImpl(0, keys.length, 0);
+	for(int i=0; i < 0x10001; i++)
+	    charFreqs[i].count = freqs[i];
 
         java.util.Arrays.sort(charFreqs);
 	for(int i=0; i < 0x10001; i++)
@@ -151,16 +485,16 @@ public final class TrieBuilder {
 	    } else {
 		charcode[charFreqs[i].code] = i+1;
 	    }
-	return count;
+	codes = CodeMap.fromTable(java.nio.IntBuffer.wrap(charcode));
     }
     
-    private int countNodeImpl(int beg, final int end, final int depth)  {
+    private int countNodeImpl(int beg, final int end, final int depth, final int freqs[])  {
 	if(end-beg == 1) 
 	    return readCode(keys[beg], depth)==0 ? 0 : 1; 
 	
 	List<Integer> ranges = new ArrayList<Integer>();
 	do {
-	    charFreqs[readCode(keys[beg], depth)].count++;
+	    freqs[readCode(keys[beg], depth)]++;
 	    ranges.add(beg);
 	    beg = endOfSameNode(beg, end, depth);
 	} while (beg != end);
@@ -168,10 +502,203 @@ public final class TrieBuilder {
 	
 	int count = ranges.size()-1;
 	for(int i=0; i < ranges.size()-1; i++)
-	    count += countNodeImpl(ranges.get(i), ranges.get(i+1), depth+1);
+	    count += countNodeImpl(ranges.get(i), ranges.get(i+1), depth+1, freqs);
 	return count;
     }
 
+    private void buildParallel() {
+	// split the children of the root node into groups of consecutive characters
+	final int rootFreqs[] = new int[0x10001];
+	final List<Integer> ranges = new ArrayList<Integer>();
+	for(int beg=0; beg != keys.length; beg=endOfSameNode(beg, keys.length, 0)) {
+	    rootFreqs[readCode(keys[beg], 0)]++;
+	    ranges.add(beg);
+	}
+	ranges.add(keys.length);
+	
+	final int rootChildCount = ranges.size()-1;
+	final int groupKeys = Math.max(1, keys.length/(parallelism*4));
+	final List<Integer> groups = new ArrayList<Integer>(); // indices of 'ranges'
+	for(int i=0; i < rootChildCount;) {
+	    groups.add(i);
+	    final int beg = ranges.get(i);
+	    do { i++; } while(i < rootChildCount && ranges.get(i)-beg < groupKeys);
+	}
+	groups.add(rootChildCount);
+	final int groupCount = groups.size()-1;
+	
+	final ForkJoinPool pool = new ForkJoinPool(parallelism);
+	try {
+	    // count nodes and character frequencies
+	    final int[][] groupFreqs = new int[groupCount][];
+	    final List<Callable<Integer>> counters = new ArrayList<Callable<Integer>>();
+	    for(int g=0; g < groupCount; g++) {
+		final int group = g;
+		counters.add(new Callable<Integer>() {
+			public Integer call() {
+			    final int freqs[] = groupFreqs[group] = new int[0x10001];
+			    int count = 0;
+			    for(int i=groups.get(group); i < groups.get(group+1); i++)
+				count += 1 + countNodeImpl(ranges.get(i), ranges.get(i+1), 1, freqs);
+			    return count;
+			}
+		    });
+	    }
+	    final List<Integer> groupNodeCounts = invokeAll(pool, counters);
+	    for(int g=0; g < groupCount; g++)
+		for(int i=0; i < 0x10001; i++)
+		    rootFreqs[i] += groupFreqs[g][i];
+	    assignCodes(rootFreqs);
+	    
+	    // build the sub-tries of each group on their own arrays
+	    final List<Callable<TrieBuilder>> builders = new ArrayList<Callable<TrieBuilder>>();
+	    for(int g=0; g < groupCount; g++) {
+		final int group = g;
+		builders.add(new Callable<TrieBuilder>() {
+			public TrieBuilder call() {
+			    final int nodeLimit = (int)((double)groupNodeCounts.get(group)*1.5)+codeLimit*2+0x1000;
+			    final TrieBuilder part = new TrieBuilder(keys, charcode, codeLimit, nodeLimit, area);
+			    part.buildGroup(ranges.subList(groups.get(group), groups.get(group+1)+1));
+			    return part;
+			}
+		    });
+	    }
+	    mergeGroups(ranges, invokeAll(pool, builders));
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    // builds the sub-tries of the root children in 'ranges' under the local root node 0
+    private void buildGroup(final List<Integer> ranges) {
+	final int children[] = new int[ranges.size()-1];
+	for(int i=0; i < children.length; i++)
+	    children[i] = charcode[readCode(keys[ranges.get(i)], 0)];
+	
+	final int baseNode = allocate(children, children.length);
+	for(int i=0; i < children.length; i++)
+	    buildImpl(ranges.get(i), ranges.get(i+1), 
+		      setNode(0, baseNode, children[i]), 1);
+    }
+
+    // relocates the nodes of each group into one double array.
+    // the children of the local root node 0 become the children of the global root node, and the other nodes are shifted by an offset.
+    // the offset of each part is the smallest one at which its nodes fit into the nodes left unused by the preceding parts.
+    // for the PACKED layout, the offset also keeps all BASE values distinct (see NodeAllocator.allocate)
+    private void mergeGroups(final List<Integer> ranges, final List<TrieBuilder> parts) {
+	final int rootChildren[] = new int[ranges.size()-1];
+	for(int i=0; i < rootChildren.length; i++)
+	    rootChildren[i] = charcode[readCode(keys[ranges.get(i)], 0)];
+	final int rootBase = 
+	    new NodeAllocator(IntBuffer.allocate(codeLimit*2), IntBuffer.allocate(codeLimit*2), codeLimit, WorkArea.HEAP).allocate(rootChildren, rootChildren.length);
+	for(TrieBuilder part : parts) {
+	    allocationCount += part.alloca.allocationCount();
+	    probeCount += part.alloca.probeCount();
+	}
+	
+	distinctBases = layout == NodeLayout.PACKED;
+	final Placement placement = new Placement(distinctBases);
+	placement.occupy(new int[]{0}, 0);
+	for(int i=0; i < rootChildren.length; i++)
+	    placement.occupy(new int[]{rootBase+rootChildren[i]}, 0);
+	placement.occupyBases(new int[]{rootBase}, 0);
+
+	final int[] shifts = new int[parts.size()];
+	int nodeSize = rootBase + codeLimit;
+	for(int k=0; k < parts.size(); k++) {
+	    final TrieBuilder part = parts.get(k);
+	    int nodeCount = 0;
+	    int baseCount = 0;
+	    for(int i=codeLimit; i < part.base.limit(); i++)
+		if(part.isNode(i)) {
+		    if(part.chck.get(i) != 0) nodeCount++;
+		    if(part.base.get(i) > 0)  baseCount++;
+		}
+
+	    // the nodes except the children of the local root, and the BASE values of all nodes, in ascending order
+	    final int[] nodes = new int[nodeCount];
+	    final int[] bases = new int[baseCount];
+	    nodeCount = baseCount = 0;
+	    for(int i=codeLimit; i < part.base.limit(); i++)
+		if(part.isNode(i)) {
+		    if(part.chck.get(i) != 0) nodes[nodeCount++] = i;
+		    if(part.base.get(i) > 0)  bases[baseCount++] = part.base.get(i);
+		}
+	    java.util.Arrays.sort(bases);
+
+	    shifts[k] = placement.find(nodes, bases);
+	    placement.occupy(nodes, shifts[k]);
+	    placement.occupyBases(bases, shifts[k]);
+	    if(nodeCount != 0)
+		nodeSize = Math.max(nodeSize, shifts[k] + nodes[nodeCount-1] + 1);
+	    if(baseCount != 0)
+		nodeSize = Math.max(nodeSize, shifts[k] + bases[baseCount-1] + codeLimit);
+	}
+	
+	base = area.allocate(nodeSize);
+	chck = area.allocate(nodeSize);
+	for(int i=0; i < nodeSize; i++)
+	    chck.put(i, -1);
+	base.put(0, rootBase);
+	tailSB.append("\0\0");
+
+	for(int k=0; k < parts.size(); k++) {
+	    final TrieBuilder part = parts.get(k);
+	    final int shift = shifts[k];
+	    final int rootChildBase = part.base.get(0);
+	    final int tailOffset = tailSB.length();
+	    for(int i=codeLimit; i < part.base.limit(); i++)
+		if(part.isNode(i)) {
+		    final int parent = part.chck.get(i);
+		    final int node = parent==0 ? rootBase + (i-rootChildBase) : shift + i;
+		    base.put(node, part.base.get(i) > 0 ? shift + part.base.get(i) : part.base.get(i) - tailOffset);
+		    chck.put(node, parent==0 ? 0 : 
+				   part.chck.get(parent)==0 ? rootBase + (parent-rootChildBase) : shift + parent);
+		}
+	    tailSB.append(part.tailSB);
+	}
+    }
+
+    private void buildStreaming() {
+	final PathBuilder counter = new PathBuilder(null);
+	source.feed(counter);
+	counter.finish();
+	keyCount = counter.keyCount;
+	assignCodes(counter.freqs);
+
+	initArrays(nodeLimit(counter.nodeCount));
+
+	final PathBuilder builder = new PathBuilder(charcode);
+	source.feed(builder);
+	builder.finish();
+	if(builder.keyCount != keyCount)
+	    throw new IllegalStateException("The key source returned different keys on the second pass");
+	allocationCount = alloca.allocationCount();
+	probeCount = alloca.probeCount();
+    }
+
+    private boolean isNode(final int i) {
+	return chck.get(i) >= 0 && chck.get(i) != NodeAllocator.headIndex();
+    }
+
+    private static <T> List<T> invokeAll(final ForkJoinPool pool, final List<Callable<T>> tasks) {
+	final List<T> results = new ArrayList<T>();
+	try {
+	    for(Future<T> f : pool.invokeAll(tasks))
+		results.add(f.get());
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Trie construction was interrupted", e);
+	} catch (ExecutionException e) {
+	    if(e.getCause() instanceof RuntimeException)
+		throw (RuntimeException)e.getCause();
+	    if(e.getCause() instanceof Error)
+		throw (Error)e.getCause();
+	    throw new IllegalStateException(e.getCause());
+	}
+	return results;
+    }
+
     private int endOfSameNode(final int beg, final int end, final int depth) {
 	final int ch = readCode(keys[beg], depth);
 	int cur = beg+1;
@@ -180,14 +707,253 @@ public final class TrieBuilder {
 	return cur;
     }
 
-    public int readCode(String s, int depth) {
+    public int readCode(CharSequence s, int depth) {
         return depth < s.length() ? s.charAt(depth)+1 : 0; 
     }
+
+    /**
+     * キーの{@code depth}文字目のコード値(文字のコード値+1)を返す。{@link #readCode(CharSequence,int)}に等しい。
+     *
+     * @param s キー
+     * @param depth 位置
+     * @return コード値。{@code depth}がキーの長さ以上の場合は0
+     * @deprecated {@link #readCode(CharSequence,int)}を使用すること。コンパイル済みの呼び出し元との互換性のために残されている。
+     */
+    @Deprecated
+    public int readCode(String s, int depth) {
+        return readCode((CharSequence)s, depth);
+    }
     
+    /**
+     * キーの{@code depth}文字目以降の部分文字列を返す。
+     *
+     * @param s キー
+     * @param depth 開始位置
+     * @return 部分文字列。{@code depth}がキーの長さ以上の場合は空文字列
+     * @deprecated トライの構築には用いられていない。{@link String#substring(int)}を直接使用すること。
+     */
+    @Deprecated
     public String rest(String s, int depth) {
         return depth < s.length() ? s.substring(depth) : "";
     }
 
+    /**
+     * 構築時に行われたノード割り当ての回数を返す。<br />
+     * {@link #build}の呼び出し後に有効となる。
+     * @return 割り当て回数(= 子を持つノードの数)
+     */
+    public long allocationCount() { return allocationCount; }
+
+    /**
+     * 構築時のノード割り当てで、割り当て可能かどうかを調べたベースノードの候補の総数を返す。<br />
+     * {@link #allocationCount}に対する比が、割り当て一回あたりの探索コストの目安となる。
+     * {@link #build}の呼び出し後に有効となる。
+     * @return 候補数
+     */
+    public long probeCount() { return probeCount; }
+
+    /**
+     * ソート済みのキーを一つずつ受け取り、トライを下から順に構築するクラス。<br />
+     * 直前のキーの経路上の内部ノードをスタック(path)として保持する。
+     * 新しいキーが直前のキーと分岐した時点で、分岐点より深いノードの子の集合が確定するので、そのノードの子を配置する。
+     * 子を配置したノード自身の位置は、親ノードの子が配置されるまで決まらないため、そのノードの子のCHECK値は親ノードの配置時に設定する。<br />
+     * 遷移コードのテーブルが与えられない場合は、配置は行わずに、遷移コードの出現頻度とノード数のみを数える。
+     */
+    private final class PathBuilder implements KeySink {
+        private final int[] codeTable; // nullの場合は数えるだけ
+        private final int[] freqs;
+        private final List<OpenNode> path = new ArrayList<OpenNode>();
+        private int depth = -1;        // 直前のキーの経路上の最も深い内部ノードの深さ。キーが一つ以下の場合は-1
+        private String prev = null;
+        public int keyCount = 0;
+        public long nodeCount = 0;
+
+        public PathBuilder(int[] codeTable) {
+            this.codeTable = codeTable;
+            this.freqs = codeTable==null ? new int[0x10001] : null;
+	}
+
+	public void add(final CharSequence key) {
+	    keyCount++;
+	    if(prev == null) {
+		prev = key.toString();
+		return;
+	    }
+
+	    int lcp = 0;
+	    while(readCode(prev, lcp) == readCode(key, lcp) && readCode(key, lcp) != 0)
+		lcp++;
+	    if(readCode(prev, lcp) >= readCode(key, lcp))
+		throw new IllegalArgumentException("Keys are not sorted or not unique: \""+prev+"\", \""+key+"\"");
+	    
+	    for(int d=depth+1; d <= lcp; d++)
+		level(d).size = 0;
+	    addLeaf(Math.max(depth, lcp));
+	    for(int d=depth; d > lcp; d--)
+		close(d);
+	    depth = lcp;
+	    prev = key.toString();
+	}
+
+	public void finish() {
+	    if(prev == null)
+		return;
+	    if(depth == -1) {
+		// only one key: the root node is a leaf
+		nodeCount++;
+		if(codeTable != null)
+		    base.put(0, appendTail(prev, 0));
+		return;
+	    }
+	    
+	    addLeaf(depth);
+	    for(int d=depth; d >= 0; d--)
+		close(d);
+	}
+
+	private OpenNode level(final int d) {
+	    while(path.size() <= d)
+		path.add(new OpenNode());
+	    return path.get(d);
+	}
+
+	// adds the leaf of the previous key as a child of the internal node at depth 'd'
+	private void addLeaf(final int d) {
+	    final int code = readCode(prev, d);
+	    if(codeTable == null)
+		level(d).add(code, 0, null);
+	    else
+		level(d).add(codeTable[code], appendTail(prev, d+1), null);
+	}
+
+	// places the children of the internal node at depth 'd', and passes the node to its parent
+	private void close(final int d) {
+	    final OpenNode node = path.get(d);
+	    nodeCount += node.size;
+	    if(codeTable == null) {
+		for(int i=0; i < node.size; i++)
+		    freqs[node.codes[i]]++;
+		if(d > 0)
+		    level(d-1).add(readCode(prev, d-1), 0, null);
+		return;
+	    }
+	    
+	    final int baseNode = allocate(node.codes, node.size);
+	    for(int i=0; i < node.size; i++) {
+		final int child = baseNode + node.codes[i];
+		base.put(child, node.values[i]);
+		if(node.grandchildren[i] != null)
+		    for(int code : node.grandchildren[i])
+			chck.put(node.values[i] + code, child);
+	    }
+	    
+	    if(d > 0) {
+		level(d-1).add(codeTable[readCode(prev, d-1)], baseNode, java.util.Arrays.copyOf(node.codes, node.size));
+	    } else {
+		base.put(0, baseNode);
+		for(int i=0; i < node.size; i++)
+		    chck.put(baseNode + node.codes[i], 0);
+	    }
+	}
+    }
+
+    private interface KeySink {
+	public void add(CharSequence key);
+    }
+
+    private interface KeySource {
+	public void feed(KeySink sink);
+    }
+
+    /**
+     * 構築中のノードの子の遷移コードと、各子に対応するキーの範囲を保持するバッファ。
+     */
+    private static final class Children {
+	public int[] codes = new int[8];
+	public int[] ranges = new int[9]; // ranges[i]からranges[i+1]までのキーが、i番目の子に対応する
+	public int size = 0;
+
+	public void add(int code, int beg) {
+	    if(size == codes.length) {
+		codes = java.util.Arrays.copyOf(codes, size*2);
+		ranges = java.util.Arrays.copyOf(ranges, size*2+1);
+	    }
+	    codes[size] = code;
+	    ranges[size] = beg;
+	    size++;
+	}
+    }
+
+    /**
+     * 並列構築した部分トライを一つのダブル配列へ再配置する際の、使用済みノード(および使用済みBASE値)のビットマップ。<br />
+     * 部分トライをずらす量の候補は、{@link NodeAllocator}と同様に64個単位でまとめて調べられる。
+     */
+    private static final class Placement {
+	private long[] used = new long[1024];
+	private long[] usedBase; // BASE値を一意にしない場合はnull
+	private int scanWord = 0; // 探索を開始する位置(usedの要素のインデックス)。これより前の領域は全て使用済み
+
+	public Placement(boolean distinctBases) {
+	    usedBase = distinctBases ? new long[used.length] : null;
+	}
+
+	// returns the smallest shift at which neither the nodes nor the BASE values (both in ascending order) hit used ones
+	public int find(final int[] nodes, final int[] bases) {
+	    final int first = nodes.length==0 ? 0 : nodes[0];
+	    for(int x=Math.max(0, scanWord*64-first);; x += 64) {
+		long conflicts = 0;
+		for(int i=0; i < nodes.length && conflicts != -1L; i++)
+		    conflicts |= NodeAllocator.bits(used, x+nodes[i]);
+		for(int i=0; usedBase != null && i < bases.length && conflicts != -1L; i++)
+		    conflicts |= NodeAllocator.bits(usedBase, x+bases[i]);
+		if(conflicts != -1L)
+		    return x + Long.numberOfTrailingZeros(~conflicts);
+	    }
+	}
+
+	public void occupy(final int[] nodes, final int shift) {
+	    used = mark(used, nodes, shift);
+	    while(scanWord < used.length && used[scanWord] == -1L)
+		scanWord++;
+	}
+
+	public void occupyBases(final int[] bases, final int shift) {
+	    if(usedBase != null)
+		usedBase = mark(usedBase, bases, shift);
+	}
+
+	private static long[] mark(long[] bitmap, final int[] positions, final int shift) {
+	    for(int pos : positions) {
+		if(((pos+shift) >>> 6) >= bitmap.length)
+		    bitmap = java.util.Arrays.copyOf(bitmap, Math.max(bitmap.length*2, ((pos+shift) >>> 6)+1));
+		NodeAllocator.setBit(bitmap, pos+shift);
+	    }
+	    return bitmap;
+	}
+    }
+
+    /**
+     * 逐次構築中の内部ノードの、配置済みの子を保持するバッファ。
+     */
+    private static final class OpenNode {
+	public int[] codes = new int[8];
+	public int[] values = new int[8];          // 子のBASE値
+	public int[][] grandchildren = new int[8][]; // 子が内部ノードの場合は、その子(孫)の遷移コード。葉の場合はnull
+	public int size = 0;
+
+	public void add(int code, int value, int[] grandchildCodes) {
+	    if(size == codes.length) {
+		codes = java.util.Arrays.copyOf(codes, size*2);
+		values = java.util.Arrays.copyOf(values, size*2);
+		grandchildren = java.util.Arrays.copyOf(grandchildren, size*2);
+	    }
+	    codes[size] = code;
+	    values[size] = value;
+	    grandchildren[size] = grandchildCodes;
+	    size++;
+	}
+    }
+
     /**
      * 入力キーセット内の各文字のコード値と出現頻度を保持するクラス。
      */
@@ -0,0 +1,249 @@
+package net.reduls.jada;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 検索中のスレッドを止めずにインデックスファイルを差し替えるための、{@link Trie}インスタンスのハンドル。<br />
+ * <br />
+ * 検索側は{@link #acquire}で現在のトライの{@link Lease}を取得し、検索後に{@link Lease#close}で返却する。
+ * {@link #reload}は新しいインデックスファイルを読み込んで(あるいはマッピングして)から、現在のトライを不可分に差し替える。
+ * 読み込み中も検索は停止せず、差し替え前に取得されたLeaseは、返却されるまで古いトライを参照し続ける。<br />
+ * 各世代のトライは参照カウントで管理される。
+ * 差し替えによりハンドルから外れ、かつ全てのLeaseが返却された時点で、その世代のファイルのマッピングは(GCを待たずに)解除される。
+ * 以降は古いインデックスファイルを削除/上書きしても問題無い。<br />
+ * <br />
+ * 使用例:
+ * <pre>
+ *   TrieHandle handle = TrieHandle.map("dic.idx");
+ *
+ *   // 検索スレッド
+ *   TrieHandle.Lease lease = handle.acquire();
+ *   try {
+ *       int id = lease.trie().search(key);
+ *   } finally {
+ *       lease.close();
+ *   }
+ *
+ *   // 更新スレッド
+ *   handle.reload("dic-new.idx");
+ * </pre>
+ * Leaseの返却後に、そのLeaseから取得した{@link Trie}インスタンス(およびカーソル等)を使用してはならない。
+ * マッピングが解除された領域へのアクセスは、JVMのクラッシュを引き起こし得る。
+ */
+public final class TrieHandle implements Closeable {
+    private final boolean mapped;
+    private final AtomicReference<Generation> current; // 現在のトライ。クローズ後はnull
+    private final Object swapLock = new Object();      // 差し替えとクローズの排他用
+
+    private TrieHandle(boolean mapped, Generation first) {
+	this.mapped = mapped;
+	this.current = new AtomicReference<Generation>(first);
+    }
+
+    /**
+     * インデックスファイルをヒープ上に読み込み、そのハンドルを作成する。<br />
+     * 以降の{@link #reload}も、同様にヒープ上に読み込む。
+     *
+     * @param filepath インデックスファイルのパス
+     * @return ハンドル
+     * @throws IOException 入力エラーが生じた場合、あるいはファイルが壊れている場合に送出される
+     */
+    public static TrieHandle load(String filepath) throws IOException {
+	return open(filepath, false);
+    }
+
+    /**
+     * インデックスファイルをメモリにマッピングし、そのハンドルを作成する。<br />
+     * 以降の{@link #reload}も、同様にマッピングする。
+     *
+     * @param filepath インデックスファイルのパス
+     * @return ハンドル
+     * @throws IOException 入力エラーが生じた場合に送出される
+     * @see Trie#map
+     */
+    public static TrieHandle map(String filepath) throws IOException {
+	return open(filepath, true);
+    }
+
+    private static TrieHandle open(String filepath, boolean mapped) throws IOException {
+	final List<ByteBuffer> mappings = new ArrayList<ByteBuffer>();
+	return new TrieHandle(mapped, new Generation(Trie.load(filepath, mapped, mappings), 0, mappings));
+    }
+
+    /**
+     * 現在のトライのLeaseを取得する。<br />
+     * 返されたLeaseは、使用後に必ず{@link Lease#close}で返却しなければならない。
+     *
+     * @return Lease
+     * @throws IllegalStateException ハンドルがクローズされている場合に送出される
+     */
+    public Lease acquire() {
+	for(;;) {
+	    final Generation gen = current.get();
+	    if(gen == null)
+		throw new IllegalStateException("The handle is closed");
+	    if(gen.retain())
+		return new Lease(gen);
+	    // the generation has been retired just now. retries with the new one
+	}
+    }
+
+    /**
+     * 新しいインデックスファイルを読み込み、現在のトライと差し替える。<br />
+     * 読み込みは呼び出しスレッドで行われ、その間も{@link #acquire}は古いトライを返す。
+     * 差し替え前のトライは、取得済みのLeaseが全て返却された時点で解放される。<br />
+     * 読み込みに失敗した場合は、現在のトライがそのまま使用され続ける。
+     *
+     * @param filepath 新しいインデックスファイルのパス
+     * @return 差し替え後の世代番号
+     * @throws IOException 入力エラーが生じた場合、あるいはファイルが壊れている場合に送出される
+     * @throws IllegalStateException ハンドルがクローズされている場合に送出される
+     */
+    public long reload(String filepath) throws IOException {
+	final List<ByteBuffer> mappings = new ArrayList<ByteBuffer>();
+	final Trie trie = Trie.load(filepath, mapped, mappings);
+
+	final Generation old;
+	final Generation gen;
+	synchronized(swapLock) {
+	    old = current.get();
+	    gen = new Generation(trie, old==null ? 0 : old.number+1, mappings);
+	    if(old == null) {
+		gen.release(); // closed while loading
+		throw new IllegalStateException("The handle is closed");
+	    }
+	    current.set(gen);
+	}
+	old.release();
+	return gen.number;
+    }
+
+    /**
+     * {@link #reload}をバックグラウンドで実行する。
+     *
+     * @param filepath 新しいインデックスファイルのパス
+     * @param executor 読み込みを実行するExecutorService
+     * @return 差し替え後の世代番号を返すFuture。読み込みに失敗した場合は、その例外がExecutionExceptionとして通知される
+     */
+    public Future<Long> reloadAsync(final String filepath, ExecutorService executor) {
+	return executor.submit(new Callable<Long>() {
+		public Long call() throws IOException {
+		    return reload(filepath);
+		}
+	    });
+    }
+
+    /**
+     * 現在のトライの世代番号を返す。<br />
+     * 作成時のトライの世代番号は0で、{@link #reload}毎に1ずつ増加する。
+     *
+     * @return 世代番号
+     * @throws IllegalStateException ハンドルがクローズされている場合に送出される
+     */
+    public long generation() {
+	final Generation gen = current.get();
+	if(gen == null)
+	    throw new IllegalStateException("The handle is closed");
+	return gen.number;
+    }
+
+    /**
+     * ハンドルをクローズする。<br />
+     * 現在のトライは、取得済みのLeaseが全て返却された時点で解放される。以降の{@link #acquire}および{@link #reload}は失敗する。
+     * 既にクローズされている場合は何もしない。
+     */
+    public void close() {
+	final Generation old;
+	synchronized(swapLock) {
+	    old = current.getAndSet(null);
+	}
+	if(old != null)
+	    old.release();
+    }
+
+    /**
+     * {@link TrieHandle#acquire}で取得した、ある世代のトライへの参照。<br />
+     * 取得したスレッド内で使用し、使用後は{@link #close}で返却する。
+     */
+    public static final class Lease implements Closeable {
+	private final Generation gen;
+	private boolean closed = false;
+
+	private Lease(Generation gen) {
+	    this.gen = gen;
+	}
+
+	/**
+	 * トライを返す。<br />
+	 * 返されたインスタンスは、このLeaseの返却後に使用してはならない。
+	 *
+	 * @return トライ
+	 * @throws IllegalStateException Leaseが返却済みの場合に送出される
+	 */
+	public Trie trie() {
+	    if(closed)
+		throw new IllegalStateException("The lease is closed");
+	    return gen.trie;
+	}
+
+	/**
+	 * トライの世代番号を返す。
+	 * @return 世代番号
+	 */
+	public long generation() { return gen.number; }
+
+	/**
+	 * Leaseを返却する。既に返却済みの場合は何もしない。
+	 */
+	public void close() {
+	    if(closed)
+		return;
+	    closed = true;
+	    gen.release();
+	}
+    }
+
+    /**
+     * 一つのインデックスファイルから読み込まれたトライと、その参照カウント。<br />
+     * 参照カウントは、ハンドルからの参照(差し替えまたはクローズまで)と、未返却のLeaseの数の和。
+     * 一度0になった世代は、再び参照されることはない。
+     */
+    private static final class Generation {
+	public final Trie trie;
+	public final long number;
+	private final List<ByteBuffer> mappings;
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	public Generation(Trie trie, long number, List<ByteBuffer> mappings) {
+	    this.trie = trie;
+	    this.number = number;
+	    this.mappings = mappings;
+	}
+
+	// increments the count unless it has already dropped to 0
+	public boolean retain() {
+	    for(;;) {
+		final int n = refs.get();
+		if(n == 0)
+		    return false;
+		if(refs.compareAndSet(n, n+1))
+		    return true;
+	    }
+	}
+
+	public void release() {
+	    if(refs.decrementAndGet() == 0)
+		for(ByteBuffer mapping : mappings)
+		    FileMappedInputStream.unmap(mapping);
+	}
+    }
+}
@@ -0,0 +1,213 @@
+package net.reduls.jada;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * 構築済みの複数の{@link Trie}インスタンスのキーセットを併合するクラス。<br />
+ * <br />
+ * 各トライのキーを{@link Trie#predictiveSearch}で辞書順に列挙し、それらをk-wayマージしたキー列を、
+ * {@link TrieBuilder#fromSortedKeys}で作成した{@link TrieBuilder}に逐次渡す。
+ * そのため、元のキーセットのファイルを読み直したりソートし直したりする必要はなく、併合後のキーセット全体がメモリ上に保持されることもない。<br />
+ * 複数のトライに含まれるキー(重複キー)は一つにまとめられる。その際にどのトライの値を採用するかは{@link #setDuplicatePolicy}で指定する。<br />
+ * 全てのトライが値({@link TrieBuilder#setValues})を保持している場合は、併合後のトライにも値が引き継がれる。<br />
+ * <br />
+ * 使用例(ベースの辞書に、日毎の差分辞書を順に併合する):
+ * <pre>
+ *   List&lt;Trie&gt; sources = Arrays.asList(Trie.map("base.idx"), Trie.map("delta-1.idx"), Trie.map("delta-2.idx"));
+ *   new TrieMerger(sources).merge().save("merged.idx");
+ * </pre>
+ * 併合せずに差分辞書を優先して検索する場合は{@link TrieOverlay}を用いる。
+ */
+public final class TrieMerger {
+    /**
+     * 重複キーの扱い。
+     */
+    public static enum DuplicatePolicy {
+	/**
+	 * 最初(リスト内で先頭側)のトライの値を採用する。
+	 */
+	FIRST,
+
+	/**
+	 * 最後(リスト内で末尾側)のトライの値を採用する。差分辞書による上書きに相当する。
+	 */
+	LAST,
+
+	/**
+	 * 重複キーを許さない。重複キーが見つかった場合は{@link IllegalStateException}が送出される。
+	 */
+	ERROR
+    }
+
+    private final List<Trie> sources;
+    private final boolean hasValues;
+    private DuplicatePolicy policy = DuplicatePolicy.LAST;
+
+    /**
+     * 併合対象のトライのリストを受け取り、{@link TrieMerger}インスタンスを作成する。
+     *
+     * @param sources 併合対象のトライのリスト。重複キーの扱いでは、リスト内の順序が優先度として用いられる
+     * @throws IllegalArgumentException 値を保持するトライと保持しないトライが混在している場合に送出される
+     */
+    public TrieMerger(List<Trie> sources) {
+	this.sources = new ArrayList<Trie>(sources);
+	int withValues = 0;
+	for(Trie trie : sources)
+	    if(trie.hasValues())
+		withValues++;
+	if(withValues != 0 && withValues != sources.size())
+	    throw new IllegalArgumentException("Some of the tries have no values: "+withValues+" of "+sources.size()+" have values");
+	hasValues = withValues != 0;
+    }
+
+    /**
+     * 重複キーの扱いを設定する。<br />
+     * デフォルトは{@link DuplicatePolicy#LAST}。
+     *
+     * @param policy 重複キーの扱い
+     */
+    public void setDuplicatePolicy(DuplicatePolicy policy) {
+	this.policy = policy;
+    }
+
+    /**
+     * 併合後のキー列を返す。<br />
+     * キー列は辞書順(文字のコード値の昇順)かつユニークであり、列挙する毎に各トライのキーが先頭から辿り直される。
+     *
+     * @return 併合後のキー列
+     * @throws IllegalStateException 重複キーの扱いが{@link DuplicatePolicy#ERROR}で、重複キーが見つかった場合に列挙中に送出される
+     */
+    public Iterable<String> keys() {
+	return new Iterable<String>() {
+	    public Iterator<String> iterator() {
+		final Merge merge = new Merge();
+		return new Iterator<String>() {
+		    private boolean ready = false;
+		    private boolean more;
+
+		    public boolean hasNext() {
+			if(ready == false) {
+			    more = merge.next();
+			    ready = true;
+			}
+			return more;
+		    }
+
+		    public String next() {
+			if(hasNext() == false)
+			    throw new NoSuchElementException();
+			ready = false;
+			return merge.key;
+		    }
+		};
+	    }
+	};
+    }
+
+    /**
+     * 併合後のキー列からトライを構築する{@link TrieBuilder}インスタンスを作成する。<br />
+     * 全てのトライが値を保持している場合は、併合後のキー列の順に並べた値が{@link TrieBuilder#setValues}で設定される(値を集めるために、キー列が一度走査される)。<br />
+     * ノードの配置形式などの構築時の設定は、返されたインスタンスに対して行う。
+     *
+     * @return {@link TrieBuilder}インスタンス
+     * @throws IllegalStateException 重複キーの扱いが{@link DuplicatePolicy#ERROR}で、値の収集中に重複キーが見つかった場合に送出される
+     * @see TrieBuilder#fromSortedKeys
+     */
+    public TrieBuilder builder() {
+	final TrieBuilder builder = TrieBuilder.fromSortedKeys(keys());
+	if(hasValues) {
+	    long[] values = new long[1024];
+	    int count = 0;
+	    for(Merge merge = new Merge(); merge.next();) {
+		if(count == values.length)
+		    values = Arrays.copyOf(values, count*2);
+		values[count++] = merge.value;
+	    }
+	    builder.setValues(Arrays.copyOf(values, count));
+	}
+	return builder;
+    }
+
+    /**
+     * トライを併合する。<br />
+     * {@code builder().build()}に等しい。
+     *
+     * @return 併合後のトライ
+     * @throws IllegalStateException 重複キーの扱いが{@link DuplicatePolicy#ERROR}で、重複キーが見つかった場合に送出される
+     */
+    public Trie merge() {
+	return builder().build();
+    }
+
+    /**
+     * 各トライのキーを辞書順にk-wayマージするカーソル。
+     */
+    private final class Merge {
+	private final PriorityQueue<Head> queue;
+	private final List<Head> popped = new ArrayList<Head>();
+	public String key;   // 現在のキー
+	public long value;   // 現在のキーに対応する値。値を保持しない場合は0
+
+	public Merge() {
+	    queue = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+		    public int compare(Head a, Head b) {
+			final int cmp = a.key.compareTo(b.key);
+			return cmp != 0 ? cmp : a.source - b.source; // equal keys are popped in the order of the sources
+		    }
+		});
+	    for(int i=0; i < sources.size(); i++) {
+		final Head head = new Head(i, sources.get(i).predictiveSearch(""));
+		if(head.advance())
+		    queue.add(head);
+	    }
+	}
+
+	public boolean next() {
+	    if(queue.isEmpty())
+		return false;
+
+	    popped.clear();
+	    popped.add(queue.poll());
+	    key = popped.get(0).key;
+	    while(queue.isEmpty()==false && queue.peek().key.equals(key))
+		popped.add(queue.poll());
+	    if(popped.size() > 1 && policy==DuplicatePolicy.ERROR)
+		throw new IllegalStateException("Duplicate key: "+key);
+
+	    final Head winner = popped.get(policy==DuplicatePolicy.LAST ? popped.size()-1 : 0);
+	    value = hasValues ? sources.get(winner.source).value(winner.cursor.id()) : 0;
+
+	    for(Head head : popped)
+		if(head.advance())
+		    queue.add(head);
+	    return true;
+	}
+    }
+
+    /**
+     * 一つのトライのキーの列挙状態。
+     */
+    private static final class Head {
+	public final int source;
+	public final Trie.PredictiveCursor cursor;
+	public String key;
+
+	public Head(int source, Trie.PredictiveCursor cursor) {
+	    this.source = source;
+	    this.cursor = cursor;
+	}
+
+	public boolean advance() {
+	    if(cursor.next() == false)
+		return false;
+	    key = cursor.key().toString();
+	    return true;
+	}
+    }
+}
@@ -0,0 +1,186 @@
+package net.reduls.jada;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 複数の{@link Trie}インスタンスを重ねて、一つのトライとして検索するクラス。<br />
+ * <br />
+ * 大きなベースの辞書に、小さな差分辞書を重ねて用いることを想定している。
+ * 検索は後ろ(リスト内で末尾側)のトライから順に行われ、最初に見つかったキーが結果となる。
+ * そのため、複数のトライに含まれるキーは、最も後ろのトライのものだけが見え、前のトライのものは隠される。<br />
+ * <br />
+ * キーのIDは、各トライ内でのIDに、そのトライより前にある全てのトライのキー数の和を加えたものとなる。
+ * したがって、先頭のトライ(ベースの辞書)のキーのIDは、そのトライ単体でのIDと一致する。
+ * 隠されたキーのIDは、検索結果としては返されないが、欠番として残る。<br />
+ * 差分辞書が大きくなった場合は、{@link TrieMerger}で一つのトライに併合する。<br />
+ * 各トライと同様に、インスタンスはスレッドセーフ。
+ */
+public final class TrieOverlay {
+    private final Trie[] layers;
+    private final int[] offsets; // レイヤー => そのレイヤーのIDの開始位置
+
+    /**
+     * 重ねるトライのリストを受け取り、{@link TrieOverlay}インスタンスを作成する。
+     *
+     * @param layers トライのリスト。後ろのトライほど優先される
+     */
+    public TrieOverlay(List<Trie> layers) {
+	this.layers = layers.toArray(new Trie[layers.size()]);
+	offsets = new int[this.layers.length+1];
+	for(int i=0; i < this.layers.length; i++)
+	    offsets[i+1] = offsets[i] + this.layers[i].keyCount();
+    }
+
+    /**
+     * IDの上限値(全てのトライのキー数の和)を返す。全てのキーのIDはこの値未満となる。
+     * @return IDの上限値
+     */
+    public int idLimit() { return offsets[layers.length]; }
+
+    /**
+     * 重ねられているトライの数を返す。
+     * @return トライの数
+     */
+    public int layerCount() { return layers.length; }
+
+    /**
+     * IDが属するトライのリスト内での位置を返す。
+     *
+     * @param id キーのID
+     * @return トライの位置
+     * @throws IndexOutOfBoundsException IDが範囲外の場合に送出される
+     */
+    public int layer(final int id) {
+	if(id < 0 || id >= idLimit())
+	    throw new IndexOutOfBoundsException("id: "+id);
+	int lo = 0;
+	int hi = layers.length;
+	while(hi-lo > 1) {
+	    final int mid = (lo+hi) >>> 1;
+	    if(offsets[mid] <= id)
+		lo = mid;
+	    else
+		hi = mid;
+	}
+	return lo;
+    }
+
+    /**
+     * キーを検索する。
+     *
+     * @param key 検索対象のキー文字列
+     * @return キーのID。キーが存在しない場合は-1が返される。
+     */
+    public int search(final CharSequence key) {
+	for(int i=layers.length-1; i >= 0; i--) {
+	    final int id = layers[i].search(key);
+	    if(id != -1)
+		return offsets[i]+id;
+	}
+	return -1;
+    }
+
+    /**
+     * キーを検索し、キーに対応付けられた値を返す。<br />
+     * キーを含むトライが値を保持していない場合は、{@code defaultValue}を返す。
+     *
+     * @param key 検索対象のキー文字列
+     * @param defaultValue キーが存在しない場合に返す値
+     * @return キーに対応付けられた値。キーが存在しない場合は{@code defaultValue}
+     */
+    public long searchValue(final CharSequence key, final long defaultValue) {
+	for(int i=layers.length-1; i >= 0; i--) {
+	    final int id = layers[i].search(key);
+	    if(id != -1)
+		return layers[i].hasValues() ? layers[i].value(id) : defaultValue;
+	}
+	return defaultValue;
+    }
+
+    /**
+     * IDに対応するキーを復元する。
+     *
+     * @param id キーのID
+     * @return キー文字列
+     * @throws IndexOutOfBoundsException IDが範囲外の場合に送出される
+     */
+    public String key(final int id) {
+	final int i = layer(id);
+	return layers[i].key(id-offsets[i]);
+    }
+
+    /**
+     * IDに対応する値を返す。
+     *
+     * @param id キーのID
+     * @return 値
+     * @throws IndexOutOfBoundsException IDが範囲外の場合に送出される
+     * @throws IllegalStateException IDが属するトライが値を保持していない場合に送出される
+     */
+    public long value(final int id) {
+	final int i = layer(id);
+	return layers[i].value(id-offsets[i]);
+    }
+
+    /**
+     * 文字列の指定範囲に対して共通接頭辞検索を行う。<br />
+     * {@link Trie#commonPrefixSearch(CharSequence,int,int,Trie.PrefixCallback)}と同様に、マッチしたキーが長さの昇順でコールバックに通知される。
+     * 同じ長さのキーが複数のトライでマッチした場合は、最も後ろのトライのものだけが通知される。
+     *
+     * @param text 検索対象の文字列
+     * @param start 検索範囲の開始位置
+     * @param end 検索範囲の終了位置(この位置の文字は含まない)
+     * @param fn マッチしたキーの長さおよびIDを受け取るコールバック
+     */
+    public void commonPrefixSearch(final CharSequence text, final int start, final int end, final Trie.PrefixCallback fn) {
+	if(layers.length == 1) {
+	    layers[0].commonPrefixSearch(text, start, end, fn);
+	    return;
+	}
+
+	final Matches[] matches = new Matches[layers.length];
+	for(int i=0; i < layers.length; i++) {
+	    matches[i] = new Matches();
+	    layers[i].commonPrefixSearch(text, start, end, matches[i]);
+	}
+
+	// merges the matches of the layers by length. each list is already sorted by length
+	final int[] heads = new int[layers.length];
+	for(;;) {
+	    int length = Integer.MAX_VALUE;
+	    int winner = -1;
+	    for(int i=0; i < layers.length; i++)
+		if(heads[i] < matches[i].size && matches[i].lengths[heads[i]] <= length) {
+		    length = matches[i].lengths[heads[i]];
+		    winner = i; // the later layer wins a tie
+		}
+	    if(winner == -1)
+		return;
+
+	    fn.found(length, offsets[winner]+matches[winner].ids[heads[winner]]);
+	    for(int i=0; i < layers.length; i++)
+		if(heads[i] < matches[i].size && matches[i].lengths[heads[i]] == length)
+		    heads[i]++;
+	}
+    }
+
+    /**
+     * 一つのトライでの共通接頭辞検索の結果を、件数の上限無く保持するバッファ。
+     */
+    private static final class Matches implements Trie.PrefixCallback {
+	public int[] lengths = new int[8];
+	public int[] ids = new int[8];
+	public int size = 0;
+
+	public void found(int length, int id) {
+	    if(size == ids.length) {
+		lengths = Arrays.copyOf(lengths, size*2);
+		ids = Arrays.copyOf(ids, size*2);
+	    }
+	    lengths[size] = length;
+	    ids[size] = id;
+	    size++;
+	}
+    }
+}
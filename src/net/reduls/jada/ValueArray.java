@@ -0,0 +1,132 @@
+package net.reduls.jada;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * キーのIDから、キーに対応付けられたlong値へのテーブル。<br />
+ * <br />
+ * 各値は最小値との差として、全ての値に共通のビット幅で、64bitのワード列に隙間無く詰めて保持される。
+ * ID {@code i}の値は、ワード列の先頭から{@code i*ビット幅}ビット目以降に格納される(ワードの境界をまたぐこともある)。
+ * 全ての値が等しい場合のビット幅は0となり、ワード列は空となる。<br />
+ * インデックスファイル内では、以下の形式の一つのセクションとして保持される。
+ * <pre>
+ *   count : long   値の数(= キー数)
+ *   bits  : long   一つの値のビット幅(0～64)
+ *   min   : long   値の最小値
+ *   words : long[] 値を詰めたワード列
+ * </pre>
+ */
+final class ValueArray {
+    private static final int HEADER_SIZE = 3;
+
+    private final int count;
+    private final int bits;
+    private final long min;
+    private final long mask;
+    private final LongBuffer words;
+
+    private ValueArray(int count, int bits, long min, LongBuffer words) {
+	this.count = count;
+	this.bits = bits;
+	this.min = min;
+	this.mask = bits==64 ? -1L : (1L << bits)-1;
+	this.words = words;
+    }
+
+    /**
+     * IDの順に並んだ値の配列から、テーブルを作成する。
+     *
+     * @param values IDの順に並んだ値の配列
+     * @param bitPacked trueなら値の範囲を表すのに必要な最小のビット幅で詰める。falseなら、ビット幅を8/16/32/64のいずれかに切り上げる
+     * @return テーブル
+     */
+    public static ValueArray pack(final long[] values, final boolean bitPacked) {
+	long min = Long.MAX_VALUE;
+	long max = Long.MIN_VALUE;
+	for(long v : values) {
+	    min = Math.min(min, v);
+	    max = Math.max(max, v);
+	}
+	if(values.length == 0)
+	    min = max = 0;
+
+	int bits = 64-Long.numberOfLeadingZeros(max-min); // the range is unsigned
+	if(bitPacked==false && bits != 0)
+	    bits = bits <= 8 ? 8 : bits <= 16 ? 16 : bits <= 32 ? 32 : 64;
+
+	final long[] words = new long[(int)(((long)values.length*bits + 63) >>> 6)];
+	for(int i=0; bits != 0 && i < values.length; i++) {
+	    final long v = values[i]-min;
+	    final long pos = (long)i*bits;
+	    final int w = (int)(pos >>> 6);
+	    final int off = (int)(pos & 63);
+	    words[w] |= v << off;
+	    if(off+bits > 64)
+		words[w+1] |= v >>> (64-off);
+	}
+	return new ValueArray(values.length, bits, min, LongBuffer.wrap(words));
+    }
+
+    /**
+     * インデックスファイルからテーブルを読み込む。
+     *
+     * @param in 入力元
+     * @param copy trueならデータをヒープ上にコピーする。falseならマッピングされた領域を直接参照する
+     * @return テーブル。セクションが存在しない場合はnull
+     * @throws IOException 入力エラーが生じた場合に送出される
+     */
+    public static ValueArray read(IndexReader in, boolean copy) throws IOException {
+	if(in.has(IndexFormat.VALUES)==false)
+	    return null;
+	final LongBuffer section = in.longSection(IndexFormat.VALUES);
+	final int count = (int)section.get(0);
+	final int bits = (int)section.get(1);
+	if(bits < 0 || bits > 64 || section.limit()-HEADER_SIZE < ((long)count*bits + 63) >>> 6)
+	    throw new IOException("Corrupted value section");
+	section.position(HEADER_SIZE);
+	return new ValueArray(count, bits, section.get(2), Buffers.copyIf(copy, section.slice()));
+    }
+
+    /**
+     * テーブルをインデックスファイルのセクションとして登録する。
+     * @param out 出力先
+     */
+    public void write(IndexWriter out) {
+	final LongBuffer section = LongBuffer.allocate(HEADER_SIZE + words.limit());
+	section.put(count).put(bits).put(min);
+	section.put(words.duplicate());
+	section.flip();
+	out.add(IndexFormat.VALUES, section);
+    }
+
+    /**
+     * IDに対応する値を返す。
+     *
+     * @param id キーのID。0以上{@link #size}未満
+     * @return 値
+     */
+    public long get(final int id) {
+	if(bits == 0)
+	    return min;
+	final long pos = (long)id*bits;
+	final int w = (int)(pos >>> 6);
+	final int off = (int)(pos & 63);
+	long v = words.get(w) >>> off;
+	if(off+bits > 64)
+	    v |= words.get(w+1) << (64-off);
+	return min + (v & mask);
+    }
+
+    /**
+     * 値の数を返す。
+     * @return 値の数
+     */
+    public int size() { return count; }
+
+    /**
+     * 一つの値のビット幅を返す。
+     * @return ビット幅
+     */
+    public int bits() { return bits; }
+}
@@ -0,0 +1,89 @@
+package net.reduls.jada;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * トライ構築時に用いる作業用int配列(BASE配列およびCHECK配列)の確保を行うクラス。<br />
+ * 配列は{@link IntBuffer}として返され、絶対位置指定の{@code get}/{@code put}で参照される。<br />
+ * ヒープ上に確保する実装({@link #HEAP})と、一時ファイルにマッピングされたヒープ外の領域に確保する実装({@link #mapped})がある。
+ */
+abstract class WorkArea {
+    /**
+     * ヒープ上のint配列を確保する実装。
+     */
+    public static final WorkArea HEAP = new WorkArea() {
+	    public IntBuffer allocate(int size) {
+		return IntBuffer.wrap(new int[size]);
+	    }
+
+	    public IntBuffer extend(IntBuffer src, int newSize) {
+		return IntBuffer.wrap(java.util.Arrays.copyOf(src.array(), newSize));
+	    }
+	};
+
+    /**
+     * 指定されたディレクトリ内の一時ファイルにマッピングされた領域を確保する実装を返す。<br />
+     * 領域はヒープ外に確保されるため、ヒープサイズに関わらず大きな配列を扱える。
+     * 物理メモリに収まらない部分はOSによってファイルに書き出される。<br />
+     * 一時ファイルはマッピング直後に削除され(削除できない場合はVMの終了時に削除される)、領域はバッファがGCにより回収されるまで有効。<br />
+     * 一つの配列の大きさは2GB(要素数{@code 2^29})未満に制限される。
+     *
+     * @param dir 一時ファイルを作成するディレクトリ
+     * @return {@link WorkArea}インスタンス
+     */
+    public static WorkArea mapped(final File dir) {
+	return new WorkArea() {
+	    public IntBuffer allocate(int size) {
+		if((long)size*4 > Integer.MAX_VALUE)
+		    throw new IllegalStateException("Too many nodes for a file-backed work area: "+size);
+		try {
+		    final File file = File.createTempFile("jada", ".work", dir);
+		    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		    try {
+			raf.setLength((long)size*4); // sparse: the new area reads as 0
+			final FileChannel cnl = raf.getChannel();
+			return cnl.map(FileChannel.MapMode.READ_WRITE, 0, (long)size*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		    } finally {
+			raf.close();
+			if(file.delete()==false)
+			    file.deleteOnExit();
+		    }
+		} catch (IOException e) {
+		    throw new UncheckedIOException(e);
+		}
+	    }
+	};
+    }
+
+    /**
+     * 全要素が0に初期化された配列を確保する。
+     *
+     * @param size 要素数
+     * @return 配列
+     */
+    public abstract IntBuffer allocate(int size);
+
+    /**
+     * 配列を拡張する。<br />
+     * 返される配列の先頭には元の配列の内容がコピーされ、残りの要素は0に初期化される。
+     * 元の配列はそれ以降使用してはならない。
+     *
+     * @param src 元の配列
+     * @param newSize 拡張後の要素数
+     * @return 拡張後の配列
+     */
+    public IntBuffer extend(IntBuffer src, int newSize) {
+	final IntBuffer dst = allocate(newSize);
+	final IntBuffer s = src.duplicate();
+	s.clear();
+	dst.put(s);
+	dst.clear();
+	return dst;
+    }
+}
@@ -2,27 +2,35 @@ package net.reduls.jada.bin;
 
 import net.reduls.jada.TrieBuilder;
 import net.reduls.jada.Trie;
+import net.reduls.jada.NodeLayout;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * トライ構築用のコマンドクラス。
  */
 public final class Build {
     /**
-     * ソート済みのキーセットを標準入力から読み込み、トライを構築し、ファイルに保存する。<br />
+     * ソート済みのキーセットを標準入力(またはファイル)から読み込み、トライを構築し、ファイルに保存する。<br />
      * 入力キーセットがソート済みではない、あるいは、各要素がユニークではない場合の動作は未定義。<br />
      * <br />
      * <h><b>【コマンドライン引数】</b></h><br />
-     * {@code $ java net.reduls.jada.bin.Build [--shrink] [--bench] index < unique-sorted-key-set}<br />
+     * {@code $ java net.reduls.jada.bin.Build [--shrink] [--interleaved|--packed] [--work-dir=dir] [--bench] index < unique-sorted-key-set}<br />
+     * {@code $ java net.reduls.jada.bin.Build [--shrink] [--interleaved|--packed] [--work-dir=dir] index unique-sorted-key-file}<br />
      * <table border="1">
      * <tr><td><b>--shrink:</b></td><td>指定された場合は、TAIL配列の圧縮を行う。</td></tr>
+     * <tr><td><b>--interleaved:</b></td><td>指定された場合は、ノードを{@link NodeLayout#INTERLEAVED}形式で配置する。</td></tr>
+     * <tr><td><b>--packed:</b></td><td>指定された場合は、ノードを{@link NodeLayout#PACKED}形式で配置する。</td></tr>
+     * <tr><td><b>--work-dir=dir:</b></td><td>指定された場合は、構築時のBASE/CHECK配列をヒープではなくディレクトリ{@code dir}内の一時ファイル上に確保する({@link TrieBuilder#setWorkDirectory})。</td></tr>
      * <tr><td><b>--bench:</b></td><td>指定された場合は、実際のトライ構築の前にVMのウォームアップを行う。</td></tr>
      * <tr><td><b>index:</b></td><td>構築したトライを保存するファイルのパス。</td></tr>
      * <tr><td><b>unique-sorted-key-set:</b></td><td>トライ構築対象となるキーセット。ソート済みかつユニーク。標準入力から読み込む。</td></tr>
+     * <tr><td><b>unique-sorted-key-file:</b></td><td>トライ構築対象となるキーセットを一行に一つずつ保持するファイル。ソート済みかつユニーク。<br />
+     *     指定された場合は、キーセット全体をメモリに読み込まずに、ファイルを逐次読み込みながらトライを構築する({@link TrieBuilder#fromSortedFile})。</td></tr>
      * </table>
      *
      * @param args コマンドライン引数
@@ -31,12 +39,32 @@ public final class Build {
     public static void main(String[] args) throws IOException {
         final Argument arg = new Argument(args);
         if(arg.valid==false) {
-	    System.err.println("Usage: java net.reduls.jada.bin.Build [--shrink] [--bench] index < unique-sorted-key-set");
+	    System.err.println("Usage: java net.reduls.jada.bin.Build [--shrink] [--interleaved|--packed] [--work-dir=dir] [--bench] index < unique-sorted-key-set");
+	    System.err.println("       java net.reduls.jada.bin.Build [--shrink] [--interleaved|--packed] [--work-dir=dir] index unique-sorted-key-file");
 	    System.exit(1);
 	}
 
 	Time t;
 
+	if(arg.keyFilePath != null) {
+	    // build trie while streaming the key file
+	    System.err.println("= Build trie from "+arg.keyFilePath);
+	    t = new Time();
+	    TrieBuilder bld = TrieBuilder.fromSortedFile(arg.keyFilePath, Charset.defaultCharset().name());
+	    bld.setNodeLayout(arg.layout);
+	    bld.setWorkDirectory(arg.workDir);
+	    Trie trie = bld.build(arg.shrink);
+	    System.err.println("    === key count:   "+trie.keyCount());
+	    System.err.println("    === node count:  "+trie.nodeCount());
+	    System.err.println("    === tail length: "+trie.tailLength());
+	    System.err.println("    === allocations: "+bld.allocationCount()+" ("+bld.probeCount()+" candidates probed)");
+	    System.err.println("  == save: "+arg.indexFilePath);
+	    trie.save(arg.indexFilePath);
+	    System.err.println("DONE ("+t.elapsed()+" ms passed)");
+            System.err.println("");
+            return;
+        }
+
         // read key set
 	System.err.println("= Read key set");
 	t = new Time();
@@ -55,6 +83,8 @@ public final class Build {
                 System.err.print("  == loop#"+(i+1)+" ... ");
                 t = new Time();
                 TrieBuilder bld = new TrieBuilder(keys);
+                bld.setNodeLayout(arg.layout);
+                bld.setWorkDirectory(arg.workDir);
                 Trie trie = bld.build(arg.shrink);
                 trie.save(arg.indexFilePath);
                 System.err.println(t.elapsed()+" ms");
@@ -68,10 +98,13 @@ public final class Build {
         t = new Time();
         System.err.println("  == initialize");
         TrieBuilder bld = new TrieBuilder(keys);
+        bld.setNodeLayout(arg.layout);
+        bld.setWorkDirectory(arg.workDir);
         System.err.println("  == build");
         Trie trie = bld.build(arg.shrink);
         System.err.println("    === node count:  "+trie.nodeCount());
         System.err.println("    === tail length: "+trie.tailLength());
+        System.err.println("    === allocations: "+bld.allocationCount()+" ("+bld.probeCount()+" candidates probed)");
         
         // save trie
         System.err.println("  == save: "+arg.indexFilePath);
@@ -88,7 +121,10 @@ public final class Build {
     private static class Argument {
         public boolean shrink=false;
         public boolean bench=false;
+        public NodeLayout layout=NodeLayout.SPLIT;
         public String indexFilePath;
+        public String keyFilePath;
+        public String workDir;
         public boolean valid=false;
 
         public Argument(String[] args) {
@@ -98,15 +134,23 @@ public final class Build {
                     break;
                 if(args[i].equals("--shrink")) 
                     shrink=true;
+                else if(args[i].equals("--interleaved"))
+                    layout=NodeLayout.INTERLEAVED;
+                else if(args[i].equals("--packed"))
+                    layout=NodeLayout.PACKED;
+                else if(args[i].startsWith("--work-dir="))
+                    workDir=args[i].substring("--work-dir=".length());
                 else if(args[i].equals("--bench"))
                     bench=true;
                 else
                     return;
             }
 
-            if(args.length-i != 1)
+            if(args.length-i != 1 && args.length-i != 2)
                 return;
             indexFilePath = args[i];
+            if(args.length-i == 2)
+                keyFilePath = args[i+1];
             valid=true;
         }
     }
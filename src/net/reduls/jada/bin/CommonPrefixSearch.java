@@ -1,10 +1,6 @@
 package net.reduls.jada.bin;
 
 import net.reduls.jada.Trie;
-import java.util.List;
-import java.util.ArrayList;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.IOException;
 
 /**
@@ -22,8 +18,10 @@ public final class CommonPrefixSearch {
      * </div>
      * <br />
      * <h><b>【コマンドライン引数】</b></h><br />
-     * {@code $ java net.reduls.jada.bin.CommonPrefixSearch index < key-list}<br />
+     * {@code $ java net.reduls.jada.bin.CommonPrefixSearch [--threads=N] index < key-list}<br />
      * <table border="1">
+     * <tr><td><b>--threads=N:</b></td><td>検索に用いるスレッド数。デフォルトは1。<br />
+     *     入力は一定行数毎のチャンクに分けて読み込まれ、各チャンクがN個のスレッドで並列に検索される。出力の順序は入力の順序と一致する。</td></tr>
      * <tr><td><b>index:</b></td><td>検索に用いる構築済みトライが保存されているファイルのパス。</td></tr>
      * <tr><td><b>key-list:</b></td><td>検索対象となるキーのリスト。標準入力から読み込む。</td></tr>
      * </table>
@@ -32,21 +30,49 @@ public final class CommonPrefixSearch {
      * @throws IOException 入出力エラーが生じた場合に送出される
      */
     public static void main(String[] args) throws IOException {
-	if(args.length!=1) {
-	    System.err.println("Usage: java net.reduls.jada.bin.CommonPrefixSearch index < key-list");
+	int threads = 1;
+	int argi=0;
+	for(; argi < args.length && args[argi].startsWith("--"); argi++) {
+	    if(args[argi].startsWith("--threads="))
+		threads = Search.parseThreads(args[argi].substring("--threads=".length()));
+	    else
+		break;
+	}
+	if(args.length-argi != 1 || threads == 0) {
+	    System.err.println("Usage: java net.reduls.jada.bin.CommonPrefixSearch [--threads=N] index < key-list");
 	    System.exit(1);
 	}
 
-	final Trie srch = Trie.load(args[0]);
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-        for(String line=br.readLine(); line!=null; line=br.readLine()) {
-            System.out.println(line);
-            Trie.CharSequenceCodeStream in = new Trie.CharSequenceCodeStream(line);
-            Trie.Node node = new Trie.Node();
-            while(srch.commonPrefixSearch(in, node))
-                System.out.println("\t"+line.substring(0, in.offset())+"\t"+node.id());
-            if(node.id()!=-1)
-                System.out.println("\t"+line.substring(0, in.offset())+"\t"+node.id());
+	final Trie srch = Trie.load(args[argi]);
+	LineProcessor.run(threads, new LineProcessor.Handler() {
+		public void handle(String[] lines, StringBuilder out) {
+		    final Printer printer = new Printer(out);
+		    for(String line : lines) {
+			printer.begin(line);
+			srch.commonPrefixSearch(line, 0, line.length(), printer);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * 検索対象キーに対する出力を組み立てるコールバック。
+     */
+    private static class Printer implements Trie.PrefixCallback {
+	private final StringBuilder sb;
+        private String line;
+
+        public Printer(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        public void begin(String line) {
+            this.line = line;
+            sb.append(line).append('\n');
+        }
+
+        public void found(int length, int id) {
+            sb.append('\t').append(line, 0, length).append('\t').append(id).append('\n');
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package net.reduls.jada.bin;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 標準入力の各行に処理を適用し、その結果を標準出力に書き出すクラス。<br />
+ * 入力は一定行数毎のチャンクに分けて読み込まれ、各チャンクの処理結果は、まとめてバイト列に符号化された後に、標準出力のチャネルに直接書き出される。<br />
+ * スレッド数が2以上の場合は、複数のチャンクが並列に処理される。その場合も、出力の順序は入力の順序と一致する。
+ */
+final class LineProcessor {
+    private static final int CHUNK_LINES = 8192;
+    private static final int READ_BUFFER_SIZE = 1<<16;
+
+    private LineProcessor() {}
+
+    /**
+     * 入力行のチャンクを処理し、出力を組み立てるインターフェース。<br />
+     * 複数のスレッドから同時に呼び出されるため、スレッドセーフである必要がある。
+     */
+    public interface Handler {
+	/**
+	 * チャンクを処理する。
+	 *
+	 * @param lines 入力行(改行文字を含まない)
+	 * @param out 出力の追加先
+	 */
+	public void handle(String[] lines, StringBuilder out);
+    }
+
+    /**
+     * 標準入力を最後まで読み込み、各チャンクに{@code handler}を適用した結果を標準出力に書き出す。
+     *
+     * @param threads 処理に用いるスレッド数。1の場合は、読み込みを行うスレッド自身が処理する
+     * @param handler 各チャンクの処理
+     * @throws IOException 入出力エラーが生じた場合に送出される
+     */
+    public static void run(final int threads, final Handler handler) throws IOException {
+	final Charset charset = Charset.defaultCharset();
+	final BufferedReader br = new BufferedReader(new InputStreamReader(System.in, charset), READ_BUFFER_SIZE);
+	final FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel();
+	final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+	final ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+	try {
+	    for(String[] chunk=readChunk(br); chunk != null; chunk=readChunk(br)) {
+		final Callable<ByteBuffer> task = newTask(chunk, handler, charset);
+		if(executor == null) {
+		    write(out, call(task));
+		    continue;
+		}
+
+		pending.add(executor.submit(task));
+		if(pending.size() >= threads*2) // keeps a bounded number of chunks in flight
+		    write(out, get(pending.poll()));
+	    }
+	    while(pending.isEmpty()==false)
+		write(out, get(pending.poll()));
+	} finally {
+	    if(executor != null)
+		executor.shutdownNow();
+	}
+    }
+
+    private static String[] readChunk(final BufferedReader br) throws IOException {
+	final String[] lines = new String[CHUNK_LINES];
+	int count = 0;
+	for(String line=br.readLine(); line != null; line=br.readLine()) {
+	    lines[count++] = line;
+	    if(count == lines.length)
+		return lines;
+	}
+	return count==0 ? null : Arrays.copyOf(lines, count);
+    }
+
+    private static Callable<ByteBuffer> newTask(final String[] lines, final Handler handler, final Charset charset) {
+	return new Callable<ByteBuffer>() {
+	    public ByteBuffer call() {
+		final StringBuilder sb = new StringBuilder(lines.length*16);
+		handler.handle(lines, sb);
+		return ByteBuffer.wrap(sb.toString().getBytes(charset));
+	    }
+	};
+    }
+
+    private static void write(final FileChannel out, final ByteBuffer buf) throws IOException {
+	while(buf.hasRemaining())
+	    out.write(buf);
+    }
+
+    private static ByteBuffer call(final Callable<ByteBuffer> task) {
+	try {
+	    return task.call();
+	} catch (RuntimeException e) {
+	    throw e;
+	} catch (Exception e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    private static ByteBuffer get(final Future<ByteBuffer> future) throws IOException {
+	try {
+	    return future.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted", e);
+	} catch (ExecutionException e) {
+	    if(e.getCause() instanceof RuntimeException)
+		throw (RuntimeException)e.getCause();
+	    if(e.getCause() instanceof Error)
+		throw (Error)e.getCause();
+	    throw new IOException(e.getCause());
+	}
+    }
+}
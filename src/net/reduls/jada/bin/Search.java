@@ -3,6 +3,7 @@ package net.reduls.jada.bin;
 import net.reduls.jada.Trie;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
@@ -16,9 +17,14 @@ public final class Search {
      * キーに対応するIDが存在しない場合は、-1が出力される。<br />
      * <br />
      * <h><b>【コマンドライン引数】</b></h><br />
-     * {@code $ java net.reduls.jada.bin.Search [--bench] index < key-list > id-list}<br />
+     * {@code $ java net.reduls.jada.bin.Search [--bench] [--threads=N] index < key-list > id-list}<br />
      * <table border="1">
-     * <tr><td><b>--bench:</b></td><td>指定された場合は、IDの出力ではなく検索処理のベンチマークを行う。</td></tr>
+     * <tr><td><b>--bench:</b></td><td>指定された場合は、IDの出力ではなく検索処理のベンチマークを行う。<br />
+     *     キー毎の{@link Trie#search(CharSequence)}の呼び出し、{@link Trie#searchAll(CharSequence[],int[])}による一括検索、
+     *     およびその並列版のそれぞれについて、処理時間とスループットを出力する。</td></tr>
+     * <tr><td><b>--threads=N:</b></td><td>検索に用いるスレッド数。デフォルトは1。<br />
+     *     入力は一定行数毎のチャンクに分けて読み込まれ、各チャンクがN個のスレッドで並列に検索される。出力の順序は入力の順序と一致する。<br />
+     *     --benchオプションが指定されている場合は、並列版の一括検索のスレッド数となる(デフォルトは利用可能なプロセッサ数)。</td></tr>
      * <tr><td><b>index:</b></td><td>検索に用いる構築済みトライが保存されているファイルのパス。</td></tr>
      * <tr><td><b>key-list:</b></td><td>検索対象となるキーのリスト。標準入力から読み込む。</td></tr>
      * <tr><td><b>id-list:</b></td><td>入力キーリストに対応するIDのリスト。標準出力に出力される。--benchオプションが指定されている場合は出力なし。</td></tr>
@@ -28,17 +34,32 @@ public final class Search {
      * @throws IOException 入出力エラーが生じた場合に送出される
      */
     public static void main(String[] args) throws IOException {
-	if(!(args.length==1 || (args.length==2 && args[0].equals("--bench")))) {
-	    System.err.println("Usage: java net.reduls.jada.bin.Search [--bench] index < key-list > key-id-list");
+	boolean bench = false;
+	int threads = -1;
+	int argi=0;
+	for(; argi < args.length && args[argi].startsWith("--"); argi++) {
+	    if(args[argi].equals("--bench"))
+		bench = true;
+	    else if(args[argi].startsWith("--threads="))
+		threads = parseThreads(args[argi].substring("--threads=".length()));
+	    else
+		break;
+	}
+	if(args.length-argi != 1 || threads == 0) {
+	    System.err.println("Usage: java net.reduls.jada.bin.Search [--bench] [--threads=N] index < key-list > key-id-list");
 	    System.exit(1);
 	}
 
-	final Trie srch = Trie.load(args.length==1 ? args[0] : args[1]);
-        final boolean bench = args.length==2;
+	final Trie srch = Trie.load(args[argi]);
         if(bench==false) {
-	    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-	    for(String line=br.readLine(); line!=null; line=br.readLine())
-		System.out.println(srch.search(line));
+            LineProcessor.run(Math.max(1, threads), new LineProcessor.Handler() {
+                    public void handle(String[] lines, StringBuilder out) {
+                        final int[] ids = new int[lines.length];
+                        srch.searchAll(lines, ids);
+                        for(int id : ids)
+                            out.append(id).append('\n');
+                    }
+                });
         } else {
 	    Time t;
             
@@ -77,12 +98,63 @@ public final class Search {
             for(String key : keys)
                 if(srch.search(key)==-1)
                     fails++;
+            final long singleElapsed = t.elapsed();
             System.err.println("  == failed: "+fails+"/"+keys.size());
-            System.err.println("DONE ("+t.elapsed()+" ms passed)");
+            System.err.println("  == throughput: "+throughput(keys.size(), singleElapsed));
+            System.err.println("DONE ("+singleElapsed+" ms passed)");
+            System.err.println("");
+
+            // batch search
+            final CharSequence[] keyArray = keys.toArray(new CharSequence[keys.size()]);
+            final int[] ids = new int[keyArray.length];
+            System.err.println("= Batch search (searchAll)");
+            for(int i=0; i < 5; i++)
+                srch.searchAll(keyArray, ids);
+            t = new Time();
+            srch.searchAll(keyArray, ids);
+            final long batchElapsed = t.elapsed();
+            System.err.println("  == failed: "+count(ids, -1)+"/"+keys.size());
+            System.err.println("  == throughput: "+throughput(keys.size(), batchElapsed));
+            System.err.println("DONE ("+batchElapsed+" ms passed)");
+            System.err.println("");
+
+            // parallel batch search
+            final ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+            System.err.println("= Parallel batch search ("+pool.getParallelism()+" threads)");
+            for(int i=0; i < 5; i++)
+                srch.searchAll(keyArray, ids, pool);
+            t = new Time();
+            srch.searchAll(keyArray, ids, pool);
+            final long parallelElapsed = t.elapsed();
+            pool.shutdown();
+            System.err.println("  == failed: "+count(ids, -1)+"/"+keys.size());
+            System.err.println("  == throughput: "+throughput(keys.size(), parallelElapsed));
+            System.err.println("DONE ("+parallelElapsed+" ms passed)");
             System.err.println("");
 	}
     }
 
+    // returns 0 for an invalid value
+    static int parseThreads(String value) {
+	try {
+	    return Math.max(0, Integer.parseInt(value));
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+    private static int count(int[] ids, int id) {
+	int n = 0;
+	for(int x : ids)
+	    if(x == id)
+		n++;
+	return n;
+    }
+
+    private static String throughput(int keyCount, long elapsed) {
+	return (elapsed==0 ? "-" : String.valueOf(keyCount*1000L/elapsed))+" keys/sec";
+    }
+
     private static class Time {
 	private final long beg_t = System.currentTimeMillis();
 	public long elapsed() { return System.currentTimeMillis()-beg_t; }
@@ -0,0 +1,207 @@
+package net.reduls.jada.check;
+
+import net.reduls.jada.DynamicTrie;
+import net.reduls.jada.Trie;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * {@link DynamicTrie}の動作確認用のコマンドクラス。
+ */
+public final class DynamicTrieCheck {
+    private static final String[] ALPHABETS = {
+	"ab",                        // few codes: deep tries with many TAIL splits
+	"abcdefghijklmnopqrstuvwxyz",
+	"aあいうアイ漢字z\uffff", // codes assigned beyond the initial code limit
+	range('\u4e00', 20000)    // kanji-width alphabet: nodes with thousands of children, whose links are kept by relocations and deletions
+    };
+
+    /**
+     * ランダムな追加/削除を繰り返し、{@link DynamicTrie}の状態がHashMapによるモデルと一致することを確認する。<br />
+     * 不一致が見つかった場合は、その内容を標準エラー出力に出力して終了コード1で終了する。<br />
+     * <br />
+     * 確認内容:
+     * <ul>
+     * <li>{@link DynamicTrie#insert}/{@link DynamicTrie#delete}の戻り値(既存キーのID、新しいIDの重複、削除したID)</li>
+     * <li>全てのキーの{@link DynamicTrie#search}と{@link DynamicTrie#key}、存在しないキーの検索、{@link DynamicTrie#size}</li>
+     * <li>{@link DynamicTrie#commonPrefixSearch}の結果</li>
+     * <li>{@link DynamicTrie#freeze(int[])}で構築したトライのキー数、およびIDの対応</li>
+     * <li>{@link DynamicTrie#DynamicTrie(Trie)}によるIDの保存</li>
+     * </ul>
+     * <br />
+     * <h><b>【コマンドライン引数】</b></h><br />
+     * {@code $ java net.reduls.jada.check.DynamicTrieCheck [--seeds=N] [--ops=N]}<br />
+     * <table border="1">
+     * <tr><td><b>--seeds=N:</b></td><td>確認に用いる乱数のシードの数(各文字種毎)。デフォルトは10。</td></tr>
+     * <tr><td><b>--ops=N:</b></td><td>シード毎の追加/削除の回数。デフォルトは20000。</td></tr>
+     * </table>
+     *
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+	int seeds = 10;
+	int ops = 20000;
+	int argi=0;
+	for(; argi < args.length && args[argi].startsWith("--"); argi++) {
+	    if(args[argi].startsWith("--seeds="))
+		seeds = parseCount(args[argi].substring("--seeds=".length()));
+	    else if(args[argi].startsWith("--ops="))
+		ops = parseCount(args[argi].substring("--ops=".length()));
+	    else
+		break;
+	}
+	if(argi != args.length || seeds == 0 || ops == 0) {
+	    System.err.println("Usage: java net.reduls.jada.check.DynamicTrieCheck [--seeds=N] [--ops=N]");
+	    System.exit(1);
+	}
+
+	for(String alphabet : ALPHABETS)
+	    for(int seed=0; seed < seeds; seed++) {
+		String error;
+		try {
+		    error = check(alphabet, seed, ops);
+		} catch (RuntimeException e) {
+		    error = e.toString(); // a broken node array may also surface as an exception
+		}
+		if(error != null) {
+		    System.err.println("alphabet="+describe(alphabet)+" seed="+seed+": "+error);
+		    System.exit(1);
+		}
+	    }
+	System.out.println("ok");
+    }
+
+    // returns a description of the first mismatch, or null
+    private static String check(final String alphabet, final long seed, final int ops) {
+	final Random rnd = new Random(seed);
+	final DynamicTrie trie = new DynamicTrie();
+	final Map<String,Integer> model = new HashMap<String,Integer>();
+	final Set<Integer> ids = new HashSet<Integer>();   // IDs in use
+	final List<String> keys = new ArrayList<String>(); // inserted at least once, for picking keys to delete
+
+	for(int op=1; op <= ops; op++) {
+	    // biased towards insertion so that the trie grows, while deletions still free many nodes
+	    if(rnd.nextInt(3) != 0 || keys.isEmpty()) {
+		final String key = randomKey(rnd, alphabet);
+		final Integer expected = model.get(key);
+		final int id = trie.insert(key);
+		if(expected != null && id != expected)
+		    return "insert("+key+") returned "+id+", expected existing "+expected;
+		if(expected == null) {
+		    if(ids.add(id)==false)
+			return "insert("+key+") returned an ID in use: "+id;
+		    model.put(key, id);
+		    keys.add(key);
+		}
+	    } else {
+		final String key = rnd.nextInt(8)==0 ? randomKey(rnd, alphabet) : keys.get(rnd.nextInt(keys.size()));
+		final Integer expected = model.remove(key);
+		final int id = trie.delete(key);
+		if(id != (expected==null ? -1 : expected))
+		    return "delete("+key+") returned "+id+", expected "+expected;
+		ids.remove(id);
+	    }
+
+	    if(op % (ops/4) == 0) {
+		final String error = verify(trie, model, rnd, alphabet);
+		if(error != null)
+		    return "after "+op+" operations: "+error;
+	    }
+	}
+	return verifyFreeze(trie, model);
+    }
+
+    private static String verify(DynamicTrie trie, Map<String,Integer> model, Random rnd, String alphabet) {
+	if(trie.size() != model.size())
+	    return "size "+trie.size()+", expected "+model.size();
+	for(Map.Entry<String,Integer> e : model.entrySet()) {
+	    if(trie.search(e.getKey()) != e.getValue())
+		return "search("+e.getKey()+") returned "+trie.search(e.getKey())+", expected "+e.getValue();
+	    if(e.getKey().equals(trie.key(e.getValue()))==false)
+		return "key("+e.getValue()+") returned "+trie.key(e.getValue())+", expected "+e.getKey();
+	}
+
+	for(int i=0; i < 1000; i++) {
+	    final String text = randomKey(rnd, alphabet)+randomKey(rnd, alphabet);
+	    if(model.containsKey(text)==false && trie.search(text) != -1)
+		return "search("+text+") found an absent key";
+
+	    // like Trie.commonPrefixSearch, the empty key is never reported as a match
+	    final StringBuilder expected = new StringBuilder();
+	    for(int len=1; len <= text.length(); len++) {
+		final Integer id = model.get(text.substring(0, len));
+		if(id != null)
+		    expected.append(len).append(':').append(id).append(' ');
+	    }
+	    final StringBuilder actual = new StringBuilder();
+	    trie.commonPrefixSearch(text, 0, text.length(), new Trie.PrefixCallback() {
+		    public void found(int length, int id) {
+			actual.append(length).append(':').append(id).append(' ');
+		    }
+		});
+	    if(actual.toString().equals(expected.toString())==false)
+		return "commonPrefixSearch("+text+") returned ["+actual+"], expected ["+expected+"]";
+	}
+	return null;
+    }
+
+    private static String verifyFreeze(DynamicTrie trie, Map<String,Integer> model) {
+	final int[] idMap = new int[trie.idLimit()];
+	final Trie frozen = trie.freeze(idMap);
+	if(frozen.keyCount() != model.size())
+	    return "freeze: keyCount "+frozen.keyCount()+", expected "+model.size();
+	int live = 0;
+	for(int id=0; id < idMap.length; id++)
+	    if(idMap[id] != -1)
+		live++;
+	if(live != model.size())
+	    return "freeze: "+live+" IDs are mapped, expected "+model.size();
+	for(Map.Entry<String,Integer> e : model.entrySet()) {
+	    final int mapped = idMap[e.getValue()];
+	    if(mapped != frozen.search(e.getKey()) || e.getKey().equals(frozen.key(mapped))==false)
+		return "freeze: idMap["+e.getValue()+"]="+mapped+", but search("+e.getKey()+") returned "+frozen.search(e.getKey());
+	}
+
+	final DynamicTrie copy = new DynamicTrie(frozen);
+	for(Map.Entry<String,Integer> e : model.entrySet())
+	    if(copy.search(e.getKey()) != frozen.search(e.getKey()))
+		return "DynamicTrie(Trie): search("+e.getKey()+") returned "+copy.search(e.getKey())+", expected "+frozen.search(e.getKey());
+	return null;
+    }
+
+    private static int parseCount(String value) {
+	try {
+	    return Math.max(0, Integer.parseInt(value));
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+    // the 'count' consecutive characters from 'first'
+    private static String range(char first, int count) {
+	final StringBuilder sb = new StringBuilder();
+	for(int i=0; i < count; i++)
+	    sb.append((char)(first+i));
+	return sb.toString();
+    }
+
+    // the alphabet as printed in error messages. wide alphabets are shortened to their range
+    private static String describe(String alphabet) {
+	if(alphabet.length() <= 32)
+	    return alphabet;
+	return alphabet.charAt(0)+".."+alphabet.charAt(alphabet.length()-1)+" ("+alphabet.length()+" characters)";
+    }
+
+    // short keys. over the small alphabets, prefixes and duplicates are common
+    private static String randomKey(Random rnd, String alphabet) {
+	final StringBuilder sb = new StringBuilder();
+	for(int len=rnd.nextInt(9); len > 0; len--)
+	    sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+	return sb.toString();
+    }
+}
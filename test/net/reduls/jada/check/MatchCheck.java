@@ -0,0 +1,190 @@
+package net.reduls.jada.check;
+
+import net.reduls.jada.NodeLayout;
+import net.reduls.jada.Trie;
+import net.reduls.jada.TrieBuilder;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * テキスト中のキーの照合({@link Trie#scan}、{@link Trie#commonPrefixSearch}、{@link Trie#longestPrefix})の動作確認用のコマンドクラス。
+ */
+public final class MatchCheck {
+    private static final String[] ALPHABETS = {"ab", "abcdefghijklmnopqrstuvwxyz", "aあ漢z"};
+
+    // key sets where the root node is a leaf, or where the empty key is a terminal of the root
+    private static final String[][] EDGE_KEY_SETS = {
+	{}, {""}, {"a"}, {"ab"}, {"", "a"}, {"", "ab", "b"}
+    };
+
+    /**
+     * ランダムなキーセットとテキストについて、照合の結果が全てのキーを総当たりで照合するモデルと一致することを確認する。<br />
+     * キーセットには空文字列を含むものや、ルートノードが葉となるもの(キーが一つ以下)も含まれる。<br />
+     * 不一致が見つかった場合は、その内容を標準エラー出力に出力して終了コード1で終了する。<br />
+     * <br />
+     * 確認内容:
+     * <ul>
+     * <li>{@link Trie#scan(CharSequence,Trie.ScanCallback)}および{@link Trie#scan(java.io.Reader,Trie.ScanCallback)}が報告する出現とその順序。空文字列のキーは報告されないこと</li>
+     * <li>{@link Trie#commonPrefixSearch(CharSequence,int,int,Trie.PrefixCallback)}および{@link Trie#commonPrefixSearch(char[],int,int,Trie.PrefixCallback)}が報告するマッチングとその順序。空文字列のキーは報告されないこと</li>
+     * <li>{@link Trie#longestPrefix}の結果。空文字列のキーはマッチしないこと</li>
+     * </ul>
+     * <br />
+     * <h><b>【コマンドライン引数】</b></h><br />
+     * {@code $ java net.reduls.jada.check.MatchCheck [--seeds=N]}<br />
+     * <table border="1">
+     * <tr><td><b>--seeds=N:</b></td><td>確認に用いる乱数のシードの数(各文字種毎)。デフォルトは10。</td></tr>
+     * </table>
+     *
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+	int seeds = 10;
+	int argi=0;
+	for(; argi < args.length && args[argi].startsWith("--"); argi++) {
+	    if(args[argi].startsWith("--seeds="))
+		seeds = parseCount(args[argi].substring("--seeds=".length()));
+	    else
+		break;
+	}
+	if(argi != args.length || seeds == 0) {
+	    System.err.println("Usage: java net.reduls.jada.check.MatchCheck [--seeds=N]");
+	    System.exit(1);
+	}
+
+	String error = null;
+	for(int i=0; error == null && i < EDGE_KEY_SETS.length; i++) {
+	    final List<String> keys = Arrays.asList(EDGE_KEY_SETS[i]);
+	    error = checkAll(keys, "ab", new Random(i));
+	    if(error != null)
+		error = "keys="+keys+": "+error;
+	}
+	for(int i=0; error == null && i < ALPHABETS.length*seeds; i++) {
+	    final String alphabet = ALPHABETS[i % ALPHABETS.length];
+	    final Random rnd = new Random(i / ALPHABETS.length);
+	    final TreeSet<String> keys = new TreeSet<String>();
+	    for(int n=1+rnd.nextInt(i < ALPHABETS.length ? 3 : 2000); n > 0; n--)
+		keys.add(randomText(rnd, alphabet, 6));
+	    if(rnd.nextBoolean())
+		keys.add("");
+	    error = checkAll(new ArrayList<String>(keys), alphabet, rnd);
+	    if(error != null)
+		error = "alphabet="+alphabet+" seed="+(i / ALPHABETS.length)+": "+error;
+	}
+	if(error != null) {
+	    System.err.println(error);
+	    System.exit(1);
+	}
+	System.out.println("ok");
+    }
+
+    // checks the tries built from 'keys' in every layout. returns a description of the first mismatch, or null
+    private static String checkAll(final List<String> keys, final String alphabet, final Random rnd) {
+	for(NodeLayout layout : NodeLayout.values()) {
+	    final TrieBuilder builder = new TrieBuilder(keys);
+	    builder.setNodeLayout(layout);
+	    builder.setFailureLinks(true);
+	    builder.setLexicographicIds(rnd.nextBoolean());
+	    final String error;
+	    try {
+		error = check(builder.build(), alphabet, rnd);
+	    } catch (RuntimeException e) {
+		return layout+": "+e;
+	    }
+	    if(error != null)
+		return layout+": "+error;
+	}
+	return null;
+    }
+
+    private static String check(final Trie trie, final String alphabet, final Random rnd) {
+	for(int i=0; i < 300; i++) {
+	    final String text = randomText(rnd, alphabet, 20);
+
+	    // occurrences in ascending order of the end position, longer keys first
+	    final StringBuilder expected = new StringBuilder();
+	    for(int end=1; end <= text.length(); end++)
+		for(int start=0; start < end; start++)
+		    if(trie.search(text.substring(start, end)) != -1)
+			expected.append(start).append(':').append(end).append(':').append(trie.search(text.substring(start, end))).append(' ');
+
+	    final StringBuilder actual = new StringBuilder();
+	    trie.scan(text, recorder(actual));
+	    if(actual.toString().equals(expected.toString())==false)
+		return "scan("+text+") reported ["+actual+"], expected ["+expected+"]";
+
+	    actual.setLength(0);
+	    try {
+		trie.scan(new StringReader(text), recorder(actual));
+	    } catch (IOException e) {
+		return e.toString();
+	    }
+	    if(actual.toString().equals(expected.toString())==false)
+		return "scan(Reader "+text+") reported ["+actual+"], expected ["+expected+"]";
+
+	    final int start = rnd.nextInt(text.length()+1);
+	    final StringBuilder expectedMatches = new StringBuilder();
+	    long expectedLongest = -1;
+	    for(int end=start+1; end <= text.length(); end++)
+		if(trie.search(text.substring(start, end)) != -1) {
+		    expectedMatches.append(end-start).append(':').append(trie.search(text.substring(start, end))).append(' ');
+		    expectedLongest = ((long)(end-start) << 32) | trie.search(text.substring(start, end));
+		}
+
+	    actual.setLength(0);
+	    trie.commonPrefixSearch(text, start, text.length(), prefixRecorder(actual));
+	    if(actual.toString().equals(expectedMatches.toString())==false)
+		return "commonPrefixSearch("+text+", "+start+") reported ["+actual+"], expected ["+expectedMatches+"]";
+
+	    actual.setLength(0);
+	    trie.commonPrefixSearch(text.toCharArray(), start, text.length(), prefixRecorder(actual));
+	    if(actual.toString().equals(expectedMatches.toString())==false)
+		return "commonPrefixSearch(char[] "+text+", "+start+") reported ["+actual+"], expected ["+expectedMatches+"]";
+
+	    final long longest = trie.longestPrefix(text, start, text.length());
+	    if(longest != expectedLongest)
+		return "longestPrefix("+text+", "+start+") returned "+describe(longest)+", expected "+describe(expectedLongest);
+	}
+	return null;
+    }
+
+    private static Trie.ScanCallback recorder(final StringBuilder sb) {
+	return new Trie.ScanCallback() {
+	    public void found(long start, long end, int id) {
+		sb.append(start).append(':').append(end).append(':').append(id).append(' ');
+	    }
+	};
+    }
+
+    private static Trie.PrefixCallback prefixRecorder(final StringBuilder sb) {
+	return new Trie.PrefixCallback() {
+	    public void found(int length, int id) {
+		sb.append(length).append(':').append(id).append(' ');
+	    }
+	};
+    }
+
+    private static String describe(long match) {
+	return match == -1 ? "-1" : Trie.matchLength(match)+":"+Trie.matchId(match);
+    }
+
+    private static int parseCount(String value) {
+	try {
+	    return Math.max(0, Integer.parseInt(value));
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+    // short texts over a small alphabet, so that keys occur often and overlap
+    private static String randomText(Random rnd, String alphabet, int maxLength) {
+	final StringBuilder sb = new StringBuilder();
+	for(int len=1+rnd.nextInt(maxLength); len > 0; len--)
+	    sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+	return sb.toString();
+    }
+}
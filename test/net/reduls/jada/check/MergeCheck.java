@@ -0,0 +1,204 @@
+package net.reduls.jada.check;
+
+import net.reduls.jada.Trie;
+import net.reduls.jada.TrieBuilder;
+import net.reduls.jada.TrieMerger;
+import net.reduls.jada.TrieOverlay;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * {@link TrieMerger}および{@link TrieOverlay}の動作確認用のコマンドクラス。
+ */
+public final class MergeCheck {
+    private static final String[] ALPHABETS = {"abc", "aあ漢z"};
+
+    /**
+     * ランダムなベースの辞書と差分辞書を構築し、併合/重ね合わせの結果がTreeMapによるモデルと一致することを確認する。<br />
+     * 不一致が見つかった場合は、その内容を標準エラー出力に出力して終了コード1で終了する。<br />
+     * <br />
+     * 確認内容:
+     * <ul>
+     * <li>{@link TrieMerger.DuplicatePolicy#FIRST}/{@link TrieMerger.DuplicatePolicy#LAST}で併合したトライのキー数、キー、値、および{@link TrieMerger#keys}の順序</li>
+     * <li>{@link TrieMerger.DuplicatePolicy#ERROR}での重複キーの検出</li>
+     * <li>{@link TrieOverlay}の{@code search}/{@code searchValue}/{@code key}/{@code value}/{@code commonPrefixSearch}</li>
+     * <li>値を保持するトライと保持しないトライの混在の拒否、および空のリストの併合</li>
+     * </ul>
+     * <br />
+     * <h><b>【コマンドライン引数】</b></h><br />
+     * {@code $ java net.reduls.jada.check.MergeCheck [--seeds=N]}<br />
+     * <table border="1">
+     * <tr><td><b>--seeds=N:</b></td><td>確認に用いる乱数のシードの数(各文字種毎)。デフォルトは10。</td></tr>
+     * </table>
+     *
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+	int seeds = 10;
+	int argi=0;
+	for(; argi < args.length && args[argi].startsWith("--"); argi++) {
+	    if(args[argi].startsWith("--seeds="))
+		seeds = parseCount(args[argi].substring("--seeds=".length()));
+	    else
+		break;
+	}
+	if(argi != args.length || seeds == 0) {
+	    System.err.println("Usage: java net.reduls.jada.check.MergeCheck [--seeds=N]");
+	    System.exit(1);
+	}
+
+	String error = checkEdgeCases();
+	for(int i=0; error == null && i < ALPHABETS.length*seeds; i++) {
+	    final String alphabet = ALPHABETS[i % ALPHABETS.length];
+	    try {
+		error = check(alphabet, i / ALPHABETS.length);
+	    } catch (RuntimeException e) {
+		error = e.toString();
+	    }
+	    if(error != null)
+		error = "alphabet="+alphabet+" seed="+(i / ALPHABETS.length)+": "+error;
+	}
+	if(error != null) {
+	    System.err.println(error);
+	    System.exit(1);
+	}
+	System.out.println("ok");
+    }
+
+    // returns a description of the first mismatch, or null
+    private static String check(final String alphabet, final long seed) {
+	final Random rnd = new Random(seed);
+	final List<TreeMap<String,Long>> models = new ArrayList<TreeMap<String,Long>>();
+	final List<Trie> tries = new ArrayList<Trie>();
+	for(int i=1+rnd.nextInt(4); i > 0; i--) {
+	    // a large base and small deltas, with values distinct per source
+	    final TreeMap<String,Long> model = new TreeMap<String,Long>();
+	    for(int n = tries.isEmpty() ? 3000 : rnd.nextInt(300); n > 0; n--)
+		model.put(randomKey(rnd, alphabet), models.size()*100000L + rnd.nextInt(1000)-500);
+	    models.add(model);
+	    tries.add(build(model));
+	}
+
+	for(TrieMerger.DuplicatePolicy policy : new TrieMerger.DuplicatePolicy[]{TrieMerger.DuplicatePolicy.FIRST, TrieMerger.DuplicatePolicy.LAST}) {
+	    final TreeMap<String,Long> expected = new TreeMap<String,Long>();
+	    for(TreeMap<String,Long> model : models)
+		for(Map.Entry<String,Long> e : model.entrySet())
+		    if(policy==TrieMerger.DuplicatePolicy.LAST || expected.containsKey(e.getKey())==false)
+			expected.put(e.getKey(), e.getValue());
+
+	    final TrieMerger merger = new TrieMerger(tries);
+	    merger.setDuplicatePolicy(policy);
+	    final List<String> keys = new ArrayList<String>();
+	    for(String key : merger.keys())
+		keys.add(key);
+	    if(keys.equals(new ArrayList<String>(expected.keySet()))==false)
+		return policy+": keys() is not the sorted union of the key sets";
+
+	    final Trie merged = merger.merge();
+	    if(merged.keyCount() != expected.size())
+		return policy+": keyCount "+merged.keyCount()+", expected "+expected.size();
+	    for(Map.Entry<String,Long> e : expected.entrySet()) {
+		final int id = merged.search(e.getKey());
+		if(id == -1 || e.getKey().equals(merged.key(id))==false || merged.value(id) != e.getValue())
+		    return policy+": "+e.getKey()+" is missing or has a wrong value in the merged trie";
+	    }
+	}
+
+	if(tries.size() > 1) {
+	    final Set<String> seen = new HashSet<String>();
+	    boolean duplicated = false;
+	    for(TreeMap<String,Long> model : models)
+		for(String key : model.keySet())
+		    duplicated |= seen.add(key)==false;
+	    final TrieMerger merger = new TrieMerger(tries);
+	    merger.setDuplicatePolicy(TrieMerger.DuplicatePolicy.ERROR);
+	    try {
+		merger.merge();
+		if(duplicated)
+		    return "ERROR: duplicate keys were not detected";
+	    } catch (IllegalStateException e) {
+		if(duplicated==false)
+		    return "ERROR: "+e.getMessage()+" without duplicate keys";
+	    }
+	}
+
+	return checkOverlay(tries, models, rnd, alphabet);
+    }
+
+    private static String checkOverlay(List<Trie> tries, List<TreeMap<String,Long>> models, Random rnd, String alphabet) {
+	final TreeMap<String,Long> expected = new TreeMap<String,Long>();
+	for(TreeMap<String,Long> model : models)
+	    expected.putAll(model); // later layers shadow earlier ones
+	final TrieOverlay overlay = new TrieOverlay(tries);
+
+	for(int i=0; i < 3000; i++) {
+	    final String text = randomKey(rnd, alphabet);
+	    final Long value = expected.get(text);
+	    final int id = overlay.search(text);
+	    if((value == null) != (id == -1))
+		return "overlay: search("+text+") returned "+id;
+	    if(value != null && (overlay.value(id) != value || text.equals(overlay.key(id))==false || overlay.searchValue(text, -1) != value))
+		return "overlay: wrong key or value for "+text;
+
+	    // like Trie.commonPrefixSearch, the empty key is never reported as a match
+	    final StringBuilder expectedMatches = new StringBuilder();
+	    for(int len=1; len <= text.length(); len++)
+		if(expected.containsKey(text.substring(0, len)))
+		    expectedMatches.append(len).append(':').append(overlay.search(text.substring(0, len))).append(' ');
+	    final StringBuilder actual = new StringBuilder();
+	    overlay.commonPrefixSearch(text, 0, text.length(), new Trie.PrefixCallback() {
+		    public void found(int length, int id) {
+			actual.append(length).append(':').append(id).append(' ');
+		    }
+		});
+	    if(actual.toString().equals(expectedMatches.toString())==false)
+		return "overlay: commonPrefixSearch("+text+") returned ["+actual+"], expected ["+expectedMatches+"]";
+	}
+	return null;
+    }
+
+    private static String checkEdgeCases() {
+	final TreeMap<String,Long> model = new TreeMap<String,Long>();
+	model.put("b", 1L);
+	try {
+	    new TrieMerger(Arrays.asList(new TrieBuilder(Arrays.asList("a")).build(), build(model)));
+	    return "tries with and without values were accepted";
+	} catch (IllegalArgumentException e) {
+	}
+	if(new TrieMerger(new ArrayList<Trie>()).merge().keyCount() != 0)
+	    return "merging no tries did not produce an empty trie";
+	return null;
+    }
+
+    private static Trie build(TreeMap<String,Long> model) {
+	final TrieBuilder builder = new TrieBuilder(model.keySet());
+	final long[] values = new long[model.size()];
+	int i = 0;
+	for(long value : model.values())
+	    values[i++] = value;
+	builder.setValues(values);
+	return builder.build();
+    }
+
+    private static int parseCount(String value) {
+	try {
+	    return Math.max(0, Integer.parseInt(value));
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+    // short keys over a small alphabet, so that the sources share many keys and prefixes
+    private static String randomKey(Random rnd, String alphabet) {
+	final StringBuilder sb = new StringBuilder();
+	for(int len=1+rnd.nextInt(8); len > 0; len--)
+	    sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+	return sb.toString();
+    }
+}
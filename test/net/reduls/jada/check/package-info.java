@@ -0,0 +1,5 @@
+/**
+ * ランダムな操作の結果をモデルと比較する動作確認用のコマンドを集めたパッケージ。<br />
+ * {@code ant check}で実行する。jarファイルには含まれない。
+ */
+package net.reduls.jada.check;